@@ -40,9 +40,10 @@
  */
 package com.myopicmobile.textwarrior.android;
 
-import java.util.List;
+import java.util.Arrays;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
@@ -60,13 +61,20 @@ import android.view.inputmethod.InputConnection;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Scroller;
 
+import com.myopicmobile.textwarrior.common.BracketIndex;
 import com.myopicmobile.textwarrior.common.ColorScheme;
 import com.myopicmobile.textwarrior.common.DocumentProvider;
+import com.myopicmobile.textwarrior.common.Flag;
+import com.myopicmobile.textwarrior.common.FoldModel;
 import com.myopicmobile.textwarrior.common.LanguageCFamily;
 import com.myopicmobile.textwarrior.common.Lexer;
 import com.myopicmobile.textwarrior.common.Pair;
 import com.myopicmobile.textwarrior.common.RowListener;
+import com.myopicmobile.textwarrior.common.Segment;
+import com.myopicmobile.textwarrior.common.SpanArray;
 import com.myopicmobile.textwarrior.common.TextWarriorException;
+import com.myopicmobile.textwarrior.common.WrapIndex;
+import com.myopicmobile.textwarrior.android.RowLayoutCache.RowLayout;
 
 /**
  * A custom text view that uses a solid shaded caret (aka cursor) instead of a 
@@ -100,6 +108,21 @@ import com.myopicmobile.textwarrior.common.TextWarriorException;
 public class FreeScrollingTextField extends View{
 
 	protected DocumentProvider _hDoc; // the model in MVC
+	private FoldModel _folds = new FoldModel();
+	/** Visual rows of the text when word wrap is on, or null */
+	private WrapIndex _wrap = null;
+	/**
+	 * Number of wrapped rows hidden by the ranges of folded rows before
+	 * each range, followed by the total, or null if not counted yet
+	 */
+	private int[] _hiddenVisualRowsBefore = null;
+	private WrapThread _wrapThread = null;
+	private boolean _isWordWrap = false;
+	private final RowLayoutCache _rowLayouts = new RowLayoutCache();
+	private final RowTileCache _rowTiles = new RowTileCache(TILE_CACHE_MAX_BYTES);
+	private boolean _isTileCacheEnabled = false;
+	/** Horizontal scroll position of the last frame drawn */
+	private int _lastDrawScrollX = 0;
 	TextFieldController _fieldController; // the controller in MVC
 	TextFieldInputConnection _inputConnection;
 	private Scroller _scroller;
@@ -114,6 +137,10 @@ public class FreeScrollingTextField extends View{
 	protected int _selectionEdge = -1; // exclusive
 
 	private Paint _brush;
+	private BrushMeasurer _measurer;
+	/** Positions of the chars in the run being drawn, as x, y pairs */
+	private float[] _runPositions = new float[256];
+	private final char[] _charBuffer = new char[1];
 	/** Max amount that can be scrolled horizontally for the current frame */
 	private int _xExtent = 0;
 	protected int _tabLength = DEFAULT_TAB_LENGTH_SPACES;
@@ -126,6 +153,16 @@ public class FreeScrollingTextField extends View{
 	protected static float SEL_CARET_HEIGHT_SCALE = 0.5f;
 	protected static int DEFAULT_TAB_LENGTH_SPACES = 4;
 	protected static int BASE_TEXT_SIZE_PIXELS = 16;
+	/** Texts up to this length are wrapped at once, on the UI thread */
+	protected static int WRAP_SYNC_MAX_LENGTH = 1 << 16;
+	/** Drawn at the end of the header row of a collapsed fold */
+	protected static char[] FOLD_MARKER = {' ', '.', '.', '.'};
+	/** Number of rows above and below the view whose layouts stay cached */
+	protected static int LAYOUT_CACHE_MARGIN_ROWS = 32;
+	/** Screen rows longer than this are laid out only around the visible part */
+	protected static int LAYOUT_MAX_ROW_LENGTH = 1 << 12;
+	/** Most bytes of row tiles kept for fling scrolling */
+	protected static int TILE_CACHE_MAX_BYTES = 8 << 20;
 
 
 	public FreeScrollingTextField(Context context, AttributeSet attrs){
@@ -150,6 +187,7 @@ public class FreeScrollingTextField extends View{
 		_brush = new Paint();
 		_brush.setAntiAlias(true);
 		_brush.setTextSize(BASE_TEXT_SIZE_PIXELS);
+		_measurer = new BrushMeasurer(_brush);
 		
 		setBackgroundColor(ColorScheme.backgroundColor);
 		setFocusableInTouchMode(true);
@@ -175,6 +213,9 @@ public class FreeScrollingTextField extends View{
 	}
 
 	private void resetView(){
+		_folds = new FoldModel();
+		_wrap = null;
+		rewrap();
 		_caretPosition = 0;
 		_caretRow = 0;
 		_xExtent = 0;
@@ -258,6 +299,9 @@ public class FreeScrollingTextField extends View{
     @Override
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		super.onSizeChanged(w, h, oldw, oldh);
+		if(w != oldw){
+			rewrap();
+		}
 		makeCharVisible(_caretPosition);
 	}
 
@@ -302,7 +346,7 @@ public class FreeScrollingTextField extends View{
 	//---------------------------------------------------------------------
 	//-------------------------- Paint methods ----------------------------
 	/**
-	 * The first row of text to paint, which may be partially visible.
+	 * The first screen row to paint, which may be partially visible.
 	 * Deduced from the clipping rectangle given to onDraw()
 	 */
 	private int getBeginPaintRow(Canvas canvas){
@@ -311,7 +355,7 @@ public class FreeScrollingTextField extends View{
 	}
 
 	/**
-	 * The last row of text to paint, which may be partially visible.
+	 * The last screen row to paint, which may be partially visible.
 	 * Deduced from the clipping rectangle given to onDraw()
 	 */
 	private int getEndPaintRow(Canvas canvas){
@@ -321,7 +365,8 @@ public class FreeScrollingTextField extends View{
 	}
 	
 	/**
-	 * @return The x-value of the baseline for drawing text on the given row
+	 * @return The y-value of the baseline for drawing text on the given
+	 * 		screen row
 	 */
 	private int getPaintBaseline(int row){
 		Paint.FontMetricsInt metrics = _brush.getFontMetricsInt();
@@ -348,106 +393,332 @@ public class FreeScrollingTextField extends View{
 	}
 
 	private void realDraw(Canvas canvas){
- 		int beginPaintRow = getBeginPaintRow(canvas);
-	    int currentIndex = _hDoc.getStartCharOfRow(beginPaintRow);
- 		if(currentIndex < 0){
- 			return;
- 		}
-
-		//----------------------------------------------
-		// set up span coloring settings
-		//----------------------------------------------
-		int spanIndex = 0;
-		List<Pair> spans = _hDoc.getSpans();
+		SpanArray spans = _hDoc.getSpans();
 
 	    // There must be at least one span to paint, even for an empty file,
 	    // where the span contains only the EOF character
 		TextWarriorException.assertVerbose(!spans.isEmpty(),
 		 	"No spans to paint in TextWarrior.paint()");
 
-		Pair nextSpan = (Pair) spans.get(spanIndex++);
-		Pair currSpan;
-		do{
-			currSpan = nextSpan;
-			if(spanIndex < spans.size()){
-				nextSpan = (Pair) spans.get(spanIndex++);
+		// keep the layouts of the rows around the visible ones, which is
+		// more than the clipping region when only a few rows are redrawn
+		syncLayout();
+		int firstVisibleRow = getScrollY() / rowHeight();
+		int lastVisibleRow = (getScrollY() + getContentHeight()) / rowHeight();
+		_rowLayouts.retain(firstVisibleRow - LAYOUT_CACHE_MARGIN_ROWS,
+			lastVisibleRow + LAYOUT_CACHE_MARGIN_ROWS);
+
+	    // tiles are drawn from one horizontal scroll position, so frames
+	    // that scroll sideways are drawn directly instead of redrawing them
+	    boolean isScrolledSideways = (getScrollX() != _lastDrawScrollX);
+	    _lastDrawScrollX = getScrollX();
+	    if (_isTileCacheEnabled && isFlingScrolling() && getContentWidth() > 0 &&
+	    		(!isScrolledSideways || getScrollX() == _rowTiles.getLeft())){
+	    	drawTiles(canvas, spans);
+	    	return;
+	    }
+
+	    Rect clip = canvas.getClipBounds();
+	    int endPaintRow = getEndPaintRow(canvas);
+	    for (int screenRow = getBeginPaintRow(canvas);
+	    		screenRow <= endPaintRow; ++screenRow){
+	    	RowLayout layout = getRowLayout(screenRow);
+	    	if (layout == null){
+	    		// past the end of the text
+	    		break;
+	    	}
+	    	layout.layOut(spans, getPaintBaseline(screenRow));
+
+	    	int paintX = drawRowLayout(canvas, layout, clip);
+	    	if (paintX > _xExtent){
+	    		// record widest line seen so far
+	    		_xExtent = paintX;
+	    	}
+	    }
+	}
+
+	/**
+	 * Draws the tiles of the screen rows in the clipping region, drawing
+	 * the rows of the tiles that are not cached
+	 */
+	private void drawTiles(Canvas canvas, SpanArray spans){
+		_rowTiles.sync(getScrollX(), getContentWidth(), rowHeight(),
+			_hDoc.getVersion(), spans,
+			_caretPosition, _selectionAnchor, _selectionEdge, isFocused());
+
+		int lastTile = getEndPaintRow(canvas) / RowTileCache.TILE_ROWS;
+		for (int tile = getBeginPaintRow(canvas) / RowTileCache.TILE_ROWS;
+				tile <= lastTile; ++tile){
+			Bitmap bitmap = _rowTiles.get(tile);
+			if (bitmap == null){
+				bitmap = drawTile(tile, spans);
+				if (bitmap == null){
+					// past the end of the text
+					break;
+				}
+				_rowTiles.put(tile, bitmap);
 			}
-			else{
-				nextSpan = null;
+			canvas.drawBitmap(bitmap, getScrollX(),
+				tile * RowTileCache.TILE_ROWS * rowHeight(), null);
+		}
+	}
+
+	/**
+	 * Draws the screen rows of a tile onto a bitmap from the tile cache
+	 *
+	 * @return The bitmap, or null if the tile is past the end of the text
+	 */
+	private Bitmap drawTile(int tile, SpanArray spans){
+		int firstRow = tile * RowTileCache.TILE_ROWS;
+		if (getRowLayout(firstRow) == null){
+			return null;
+		}
+
+		int top = firstRow * rowHeight();
+		int height = RowTileCache.TILE_ROWS * rowHeight();
+		Bitmap bitmap = _rowTiles.obtain(getContentWidth(), height);
+		Canvas tileCanvas = new Canvas(bitmap);
+		tileCanvas.translate(-getScrollX(), -top);
+		Rect clip = new Rect(getScrollX(), top,
+			getScrollX() + getContentWidth(), top + height);
+
+		for (int screenRow = firstRow;
+				screenRow < firstRow + RowTileCache.TILE_ROWS; ++screenRow){
+			RowLayout layout = getRowLayout(screenRow);
+			if (layout == null){
+				break;
+			}
+			layout.layOut(spans, getPaintBaseline(screenRow));
+
+			int paintX = drawRowLayout(tileCanvas, layout, clip);
+			if (paintX > _xExtent){
+				_xExtent = paintX;
 			}
 		}
-		while(nextSpan != null &&
-				nextSpan.getFirst() <= currentIndex);
-		
-		int spanColor = ColorScheme.getTokenColor(currSpan.getSecond());
-		_brush.setColor(spanColor);
-
-		//----------------------------------------------
-		// set up graphics settings
-		//----------------------------------------------
-	    int paintX = 0;
-	    int paintY = getPaintBaseline(beginPaintRow);
-	    int endY = getPaintBaseline(getEndPaintRow(canvas));
-
-	    //----------------------------------------------
-	    // start painting!
-	    //----------------------------------------------
-	    _hDoc.seekChar(currentIndex);
-	    while (paintY <= endY && _hDoc.hasNext()){
-	     	// check if formatting changes are needed
-	     	if (reachedNextSpan(currentIndex, nextSpan)){
-	 			currSpan = nextSpan;
-	 			spanColor = ColorScheme.getTokenColor(currSpan.getSecond());
-	 			_brush.setColor(spanColor);
-	
-	 			if(spanIndex < spans.size()){
-	 				nextSpan = (Pair) spans.get(spanIndex++);
-	 			}
-	 			else{
-	 				nextSpan = null;
-	 			}
-	     	}
-	
-	     	char c = _hDoc.next();
-//TODO investigate performance gain	 if (paintX < getScrollX() + getWidth()){
+		return bitmap;
+	}
 
-	    	if (currentIndex == _caretPosition){
-	    		paintX += drawCaret(canvas, c, paintX, paintY);
-	    	}
-	    	else if (_fieldController.inSelectionRange(currentIndex)){
-	    		paintX += drawSelectedText(canvas, c, paintX, paintY);
-	    	}
-	    	else{
-	    		paintX += drawChar(canvas, c, paintX, paintY);
-	    	}
+	/**
+	 * Returns the layout of screenRow, laying it out if it is not cached,
+	 * or null if screenRow is past the end of the text
+	 */
+	private RowLayout getRowLayout(int screenRow){
+		RowLayout layout = _rowLayouts.get(screenRow);
+		if(layout != null &&
+				layout.covers(getScrollX(), getScrollX() + getContentWidth())){
+			return layout;
+		}
 
-	     	++currentIndex;
-	     	if (c == LanguageCFamily.NEWLINE){
-	 	 		paintY += rowHeight();
-	     		if (paintX > _xExtent){
-	     			_xExtent = paintX;
-	     		}
-	 	 		paintX = 0;
-	     	}
-		} // end while
-	    
- 		if (paintX > _xExtent){
- 			// record widest line seen so far
- 			_xExtent = paintX;
- 		}
+		int start = getScreenRowStart(screenRow);
+		if(start < 0){
+			return null;
+		}
+		int row = _hDoc.getRowIndex(start);
+		int end = getWrapEnd(start);
+		if(end < 0){
+			end = _hDoc.getStartCharOfRow(row) + _hDoc.rowLength(row);
+		}
+
+		if(end - start > LAYOUT_MAX_ROW_LENGTH){
+			layout = layOutRowWindow(row, start, end);
+		}
+		else{
+			char[] chars = new char[end - start];
+			_hDoc.getChars(start, end, chars, 0);
+			int[] x = new int[chars.length + 1];
+			for(int i = 0; i < chars.length; ++i){
+				x[i + 1] = x[i] + getAdvance(chars[i]);
+			}
+			layout = new RowLayout(row, start, chars, x);
+		}
+		_rowLayouts.put(screenRow, layout, _hDoc, countScreenRows());
+		return layout;
+	}
+
+	/**
+	 * Lays out the chars of the screen row [start, end) that are less than
+	 * a screen away from the visible part of the row, and at most
+	 * LAYOUT_MAX_ROW_LENGTH of them. The whole row is still measured.
+	 */
+	private RowLayout layOutRowWindow(int row, int start, int end){
+		int left = getScrollX() - getContentWidth();
+		int right = getScrollX() + 2 * getContentWidth();
+		int windowStart = -1;
+		int windowEnd = -1;
+		int windowX = 0;
+		int x = 0;
+		char lastChar = 0;
+
+		int charOffset = start;
+		Segment segment = new Segment();
+		_hDoc.seekChar(start);
+		while(charOffset < end && _hDoc.nextSegment(segment)){
+			char[] chars = segment.array;
+			for(int i = segment.start; i < segment.end && charOffset < end; ++i){
+				lastChar = chars[i];
+				int advance = getAdvance(lastChar);
+				if(windowStart < 0 && (x + advance > left || charOffset == end - 1)){
+					windowStart = charOffset;
+					windowX = x;
+				}
+				else if(windowStart >= 0 && windowEnd < 0 && (x >= right ||
+						charOffset - windowStart == LAYOUT_MAX_ROW_LENGTH)){
+					windowEnd = charOffset;
+				}
+				x += advance;
+				++charOffset;
+			}
+		}
+		if(windowEnd < 0){
+			windowEnd = end;
+		}
+
+		char[] chars = new char[windowEnd - windowStart];
+		_hDoc.getChars(windowStart, windowEnd, chars, 0);
+		int[] charX = new int[chars.length + 1];
+		charX[0] = windowX;
+		for(int i = 0; i < chars.length; ++i){
+			charX[i + 1] = charX[i] + getAdvance(chars[i]);
+		}
+		boolean endsRow = (lastChar == LanguageCFamily.NEWLINE ||
+				lastChar == LanguageCFamily.EOF);
+		return new RowLayout(row, windowStart, chars, charX, x, endsRow,
+			windowStart > start, windowEnd < end);
+	}
+
+	/**
+	 * Draws a screen row laid out with RowLayout.layOut(), along with the
+	 * caret, the selection and the fold marker on it
+	 *
+	 * @return The width of the drawn row
+	 */
+	private int drawRowLayout(Canvas canvas, RowLayout layout, Rect clip){
+		char[] chars = layout.getChars();
+		int start = layout.getStart();
+		int paintY = layout.getBaseline();
+
+		// the range of chars that may be the caret or selected, which are
+		// drawn one at a time over their backgrounds
+		int markStart = _caretPosition;
+		int markEnd = _caretPosition + 1;
+		if (isSelectText()){
+			markStart = Math.min(markStart, _selectionAnchor);
+			markEnd = Math.max(markEnd, _selectionEdge);
+		}
+		markStart = Math.max(markStart - start, 0);
+		markEnd = Math.min(markEnd - start, chars.length);
+
+		int runCount = layout.getRunCount();
+		for (int r = 0; r < runCount; ++r){
+			int runStart = layout.getRunStart(r);
+			int runEnd = runStart + layout.getRunLength(r);
+			if (layout.getX(runEnd) <= clip.left ||
+					layout.getX(runStart) >= clip.right){
+				// outside the clipping region
+				continue;
+			}
+
+			_brush.setColor(layout.getRunColor(r));
+			float[] positions = layout.getRunPositions(r);
+			if (runEnd <= markStart || runStart >= markEnd){
+				canvas.drawPosText(chars, runStart, runEnd - runStart,
+					positions, _brush);
+				continue;
+			}
+
+			// draw the marked chars of the run on their own
+			int i = runStart;
+			while (i < runEnd){
+				if (isMarked(start + i)){
+					drawMarkedChar(canvas, chars[i], start + i,
+						layout.getX(i), paintY);
+					++i;
+					continue;
+				}
+				int unmarkedEnd = i + 1;
+				while (unmarkedEnd < runEnd && !isMarked(start + unmarkedEnd)){
+					++unmarkedEnd;
+				}
+				drawPartOfRun(canvas, chars, i, unmarkedEnd - i,
+					positions, i - runStart);
+				i = unmarkedEnd;
+			}
+		}
+
+		// marked chars that are not part of any run, like tabs
+		for (int i = markStart; i < markEnd; ++i){
+			char c = chars[i];
+			if ((c == LanguageCFamily.NEWLINE ||
+					c == LanguageCFamily.EOF ||
+					c == LanguageCFamily.TAB) && isMarked(start + i)){
+				drawMarkedChar(canvas, c, start + i, layout.getX(i), paintY);
+			}
+		}
+
+		int paintX = layout.getWidth();
+		if (layout.endsRow() && _folds.isFoldHeader(layout.getRow())){
+			paintX += drawFoldMarker(canvas, paintX, paintY);
+		}
+		return paintX;
+	}
+
+	/**
+	 * Whether the char at charOffset is drawn as the caret or as selected
+	 */
+	private boolean isMarked(int charOffset){
+		return charOffset == _caretPosition ||
+			_fieldController.inSelectionRange(charOffset);
+	}
+
+	private int drawMarkedChar(Canvas canvas, char c, int charOffset,
+			int paintX, int paintY){
+		if (charOffset == _caretPosition){
+			return drawCaret(canvas, c, paintX, paintY);
+		}
+		return drawSelectedText(canvas, c, paintX, paintY);
+	}
+
+	/**
+	 * Draws chars[start, start+length), the part of a run starting at its
+	 * index-th char. runPositions are the positions of the whole run.
+	 */
+	private void drawPartOfRun(Canvas canvas, char[] chars, int start,
+			int length, float[] runPositions, int index){
+		if(2 * length > _runPositions.length){
+			_runPositions = new float[2 * Math.max(length, _runPositions.length)];
+		}
+		System.arraycopy(runPositions, 2 * index, _runPositions, 0, 2 * length);
+		canvas.drawPosText(chars, start, length, _runPositions, _brush);
 	}
 	
+	/**
+	 * Returns the offset of the wrapIndex-th wrap of a row, or -1 if the row
+	 * does not have that many
+	 */
+	private static int wrapStart(int[] wraps, int wrapIndex, int rowStart){
+		return (wraps != null && wrapIndex < wraps.length)
+			? rowStart + wraps[wrapIndex] : -1;
+	}
+
 	private int drawChar(Canvas canvas, char c, int paintX, int paintY){
 		if(c != LanguageCFamily.NEWLINE &&
 				c != LanguageCFamily.EOF &&
 				c != LanguageCFamily.TAB){
- 			char[] ca = {c};
-	 		canvas.drawText(ca, 0, 1, paintX, paintY, _brush);
+			_charBuffer[0] = c;
+	 		canvas.drawText(_charBuffer, 0, 1, paintX, paintY, _brush);
 		}
 
 		return getAdvance(c);
 	}
 
+	private int drawFoldMarker(Canvas canvas, int paintX, int paintY){
+		int oldColor = _brush.getColor();
+		_brush.setColor(ColorScheme.caretDisabledColor);
+		canvas.drawText(FOLD_MARKER, 0, FOLD_MARKER.length, paintX, paintY, _brush);
+		_brush.setColor(oldColor);
+		return (int) _brush.measureText(FOLD_MARKER, 0, FOLD_MARKER.length);
+	}
+
 	// paintY is the baseline for text, NOT the top extent
 	private void drawTextBackground(Canvas canvas, int paintX, int paintY,
 			int advance){
@@ -524,31 +795,98 @@ public class FreeScrollingTextField extends View{
 	 * @return Advance of character
 	 */
 	protected int getAdvance(char c){
-		int advance;
-		
-		switch (c){
- 		case LanguageCFamily.NEWLINE: // fall-through
- 		case LanguageCFamily.EOF:
- 			advance = getEmptyAdvance();
- 			break;
- 		case LanguageCFamily.TAB:
- 			advance = getTabAdvance();
- 			break;
- 		default:
- 			char[] ca = {c};
- 			advance = (int) _brush.measureText(ca, 0, 1);
- 			break;	
-		}
-		
-		return advance;
+		return _measurer.getAdvance(c);
 	}
 	
 	final protected int getEmptyAdvance(){
-		return (int) (EMPTY_CARET_WIDTH_SCALE * _brush.measureText(" ", 0, 1));
+		return _measurer.getEmptyAdvance();
 	}
 	
 	final protected int getTabAdvance(){
-		return _tabLength * (int) _brush.measureText(" ", 0, 1);
+		return _measurer.getTabAdvance();
+	}
+
+	/**
+	 * Measures chars with a brush, giving tabs, NEWLINE and EOF the widths
+	 * used by the text field. The wrap index is built with a copy of the
+	 * brush off the UI thread, so the measurements do not race with drawing.
+	 *
+	 * Advances are cached, since measuring a char is a native call. The
+	 * cache is a table indexed by char, split into pages of PAGE_SIZE chars
+	 * that are allocated when a char in them is first measured, so text in
+	 * a few scripts only needs a few pages. It must be cleared whenever
+	 * the typeface or text size of the brush changes.
+	 */
+	private class BrushMeasurer implements WrapIndex.Measurer{
+		private final static int PAGE_BITS = 8;
+		private final static int PAGE_SIZE = 1 << PAGE_BITS;
+
+		private final Paint _paint;
+		private int[][] _advancePages;
+		/** Width of a space, or -1 if not measured yet */
+		private float _spaceWidth;
+		private final char[] _measureBuffer = new char[1];
+
+		BrushMeasurer(Paint paint){
+			_paint = paint;
+			clearCache();
+		}
+
+		void clearCache(){
+			_advancePages = new int[(Character.MAX_VALUE + 1) / PAGE_SIZE][];
+			_spaceWidth = -1;
+		}
+
+		public int getAdvance(char c){
+			int advance;
+			
+			switch (c){
+	 		case LanguageCFamily.NEWLINE: // fall-through
+	 		case LanguageCFamily.EOF:
+	 			advance = getEmptyAdvance();
+	 			break;
+	 		case LanguageCFamily.TAB:
+	 			advance = getTabAdvance();
+	 			break;
+	 		default:
+	 			advance = getCharAdvance(c);
+	 			break;	
+			}
+			
+			return advance;
+		}
+
+		private int getCharAdvance(char c){
+			int[] page = _advancePages[c >>> PAGE_BITS];
+			if(page == null){
+				page = new int[PAGE_SIZE];
+				Arrays.fill(page, -1);
+				_advancePages[c >>> PAGE_BITS] = page;
+			}
+
+			int advance = page[c & (PAGE_SIZE - 1)];
+			if(advance < 0){
+				_measureBuffer[0] = c;
+				advance = (int) _paint.measureText(_measureBuffer, 0, 1);
+				page[c & (PAGE_SIZE - 1)] = advance;
+			}
+			return advance;
+		}
+
+		private float getSpaceWidth(){
+			if(_spaceWidth < 0){
+				_spaceWidth = _paint.measureText(" ", 0, 1);
+			}
+			return _spaceWidth;
+		}
+
+		int getEmptyAdvance(){
+			return (int) (EMPTY_CARET_WIDTH_SCALE * getSpaceWidth());
+		}
+
+		int getTabAdvance(){
+			return _tabLength * (int) getSpaceWidth();
+		}
 	}
 	
 	/**
@@ -557,7 +895,17 @@ public class FreeScrollingTextField extends View{
 	private void invalidateRows(int startRow, int endRow) {
 		TextWarriorException.assertVerbose(startRow <= endRow && startRow >= 0,
 	 		"Invalid startRow and/or endRow");
+		if (startRow < endRow) {
+			endRow = rowToLastScreenRow(endRow - 1) + 1;
+		}
+		startRow = rowToScreenRow(startRow);
+		invalidateScreenRows(startRow, Math.max(startRow, endRow));
+	}
 
+	/**
+	 * Invalidate screen rows from startRow (inclusive) to endRow (exclusive)
+	 */
+	private void invalidateScreenRows(int startRow, int endRow) {
         //TODO The descent of (startRow-1) and the ascent of (startRow+1)
 		//may jut inside startRow, so parts of these rows have to be invalidated
 		//as well. This is a problem for Thai, Vietnamese and Indic scripts
@@ -581,6 +929,7 @@ public class FreeScrollingTextField extends View{
 	private void invalidateFromRow(int startRow) {
 		TextWarriorException.assertVerbose(startRow >= 0,
 	 		"Invalid startRow");
+		startRow = rowToScreenRow(startRow);
 		
         //TODO The descent of (startRow-1) and the ascent of (startRow+1)
 		//may jut inside startRow, so parts of these rows have to be invalidated
@@ -599,6 +948,51 @@ public class FreeScrollingTextField extends View{
 			getScrollY() + getHeight());
 	}
 
+	/**
+	 * Invalidates the rows from startRow to endRow (inclusive) after they
+	 * were edited. If the number of screen rows changed, the rows after
+	 * them moved, so the rest of the field is invalidated.
+	 *
+	 * @param oldScreenRowCount The number of screen rows before the edit
+	 */
+	private void invalidateEditedRows(int startRow, int endRow,
+			int oldScreenRowCount) {
+		if (screenRowCount() == oldScreenRowCount){
+			invalidateRows(startRow, endRow+1);
+		}
+		else{
+			invalidateFromRow(startRow);
+		}
+	}
+
+	/**
+	 * Invalidates the visible screen rows that spans color differently
+	 * than they were drawn. The layouts of the rows are resolved with spans.
+	 */
+	private void invalidateRespannedRows(SpanArray spans) {
+		syncLayout();
+		int firstVisibleRow = getScrollY() / rowHeight();
+		int lastVisibleRow = (getScrollY() + getContentHeight()) / rowHeight();
+
+		int startRow = -1;
+		int endRow = -1;
+		for (int screenRow = firstVisibleRow; screenRow <= lastVisibleRow; ++screenRow){
+			RowLayout layout = _rowLayouts.get(screenRow);
+			// rows without a layout were not drawn with the old spans
+			if (layout == null ||
+					layout.layOut(spans, getPaintBaseline(screenRow))){
+				if (startRow < 0){
+					startRow = screenRow;
+				}
+				endRow = screenRow + 1;
+			}
+		}
+
+		if (startRow >= 0){
+			invalidateScreenRows(startRow, endRow);
+		}
+	}
+
 	private void invalidateCaretRow(){
 		invalidateRows(_caretRow, _caretRow+1);
 	}
@@ -644,7 +1038,7 @@ public class FreeScrollingTextField extends View{
 	 */
 	private int makeCharRowVisible(int charOffset){
 		int scrollBy = 0;
-		int charTop = _hDoc.getRowIndex(charOffset) * rowHeight();
+		int charTop = charToScreenRow(charOffset) * rowHeight();
 		int charBottom = charTop + rowHeight();
 
 		if (charTop < getScrollY()){
@@ -689,28 +1083,20 @@ public class FreeScrollingTextField extends View{
 	 * 		contains the left edge and Pair.second contains the right edge
 	 */
 	protected Pair getCharExtent(int charOffset){
-		int rowIndex = _hDoc.getRowIndex(charOffset);
-		int charCount = _hDoc.seekLine(rowIndex);
+		int charCount = getWrapStart(charOffset);
+		_hDoc.seekChar(charCount);
 		int left = 0;
 		int right = 0;
 
-		while(charCount <= charOffset && _hDoc.hasNext()){
-			left = right;
-			char c = _hDoc.next();
-			switch (c){
-			case LanguageCFamily.NEWLINE:
-			case LanguageCFamily.EOF:
-				right += getEmptyAdvance();
-				break;
-			case LanguageCFamily.TAB:
-				right += getTabAdvance();
-				break;
-			default:
-				char[] ca = {c};
-				right += (int) _brush.measureText(ca, 0, 1);
-				break;
+		Segment segment = new Segment();
+		while(charCount <= charOffset && _hDoc.nextSegment(segment)){
+			char[] chars = segment.array;
+			for(int i = segment.start;
+					i < segment.end && charCount <= charOffset; ++i){
+				left = right;
+				right += getAdvance(chars[i]);
+				++charCount;
 			}
-			++charCount;
 		}
  
 		return new Pair(left, right);
@@ -731,7 +1117,7 @@ public class FreeScrollingTextField extends View{
 			return new Rect(-1, -1, -1, -1);
 		}
 
-		int row = _hDoc.getRowIndex(charOffset);
+		int row = charToScreenRow(charOffset);
 		int top = row * rowHeight();
 		int bottom = top + rowHeight();
 		
@@ -743,6 +1129,338 @@ public class FreeScrollingTextField extends View{
 	}
 
 	
+	//---------------------------------------------------------------------
+	//---------------------------- Screen rows ----------------------------
+	/*
+	 Rows hidden by folds take no space on screen, and rows broken by word
+	 wrap take more than one screen row, so the rows of the document and the
+	 rows on screen differ. Methods that place text on screen convert
+	 between them with these.
+	 */
+	private void syncLayout(){
+		boolean isChanged = _folds.sync(_hDoc);
+		if(_wrap != null){
+			isChanged |= _wrap.sync(_hDoc, _measurer);
+		}
+		if(isChanged){
+			_hiddenVisualRowsBefore = null;
+		}
+		if(_rowLayouts.isStale(_hDoc)){
+			_rowLayouts.sync(_hDoc, countScreenRows());
+		}
+	}
+
+	/**
+	 * Returns the first screen row that row is shown on. Rows hidden by
+	 * a fold are given the screen row of the fold header.
+	 */
+	private int rowToScreenRow(int row){
+		syncLayout();
+		if(_wrap == null){
+			return _folds.toScreenRow(row);
+		}
+
+		if(_folds.isHidden(row)){
+			row = _folds.previousVisibleRow(row);
+		}
+		// binary search for the number of hidden ranges before row
+		int low = 0;
+		int high = _folds.getHiddenRangeCount();
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(_folds.getHiddenEnd(mid) < row){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return _wrap.getFirstVisualRow(row) - hiddenVisualRowsBefore(low);
+	}
+
+	/**
+	 * Returns the last screen row that row is shown on
+	 */
+	private int rowToLastScreenRow(int row){
+		int screenRow = rowToScreenRow(row);
+		if(_wrap != null){
+			if(_folds.isHidden(row)){
+				row = _folds.previousVisibleRow(row);
+			}
+			screenRow += _wrap.getVisualRowCount(row) - 1;
+		}
+		return screenRow;
+	}
+
+	/**
+	 * Number of wrapped rows hidden by the ranges of folded rows before
+	 * the range-th one, which is all of them if range is the number of
+	 * ranges. The sums are counted again after the folds or wraps change.
+	 */
+	private int hiddenVisualRowsBefore(int range){
+		if(_hiddenVisualRowsBefore == null){
+			int rangeCount = _folds.getHiddenRangeCount();
+			int[] before = new int[rangeCount + 1];
+			for(int i = 0; i < rangeCount; ++i){
+				before[i + 1] = before[i] +
+					_wrap.getFirstVisualRow(_folds.getHiddenEnd(i) + 1) -
+					_wrap.getFirstVisualRow(_folds.getHiddenStart(i));
+			}
+			_hiddenVisualRowsBefore = before;
+		}
+		return _hiddenVisualRowsBefore[range];
+	}
+
+	private int charToScreenRow(int charOffset){
+		int row = _hDoc.getRowIndex(charOffset);
+		int screenRow = rowToScreenRow(row);
+		if(_wrap != null && !_folds.isHidden(row)){
+			screenRow += _wrap.getPart(row,
+				charOffset - _hDoc.getStartCharOfRow(row));
+		}
+		return screenRow;
+	}
+
+	/**
+	 * Returns the offset of the first char on screenRow, or -1 if
+	 * screenRow is past the end of the text
+	 */
+	private int getScreenRowStart(int screenRow){
+		syncLayout();
+		if(_wrap == null){
+			return _hDoc.getStartCharOfRow(_folds.toRow(screenRow));
+		}
+
+		// add back the wrapped rows hidden by folds before screenRow. The
+		// screen rows where the hidden ranges would start are in order, so
+		// the ranges before screenRow are found by binary search
+		int low = 0;
+		int high = _folds.getHiddenRangeCount();
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(_wrap.getFirstVisualRow(_folds.getHiddenStart(mid)) -
+					hiddenVisualRowsBefore(mid) <= screenRow){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		int visualRow = screenRow + hiddenVisualRowsBefore(low);
+
+		int row = _wrap.getRowOfVisualRow(visualRow);
+		if(row >= _wrap.rowCount()){
+			return -1;
+		}
+		int rowStart = _hDoc.getStartCharOfRow(row);
+		int part = visualRow - _wrap.getFirstVisualRow(row);
+		return (part == 0) ? rowStart : rowStart + _wrap.getBreaks(row)[part - 1];
+	}
+
+	private int screenRowCount(){
+		syncLayout();
+		return countScreenRows();
+	}
+
+	/**
+	 * Like screenRowCount(), without syncing the layout first
+	 */
+	private int countScreenRows(){
+		if(_wrap == null){
+			return _folds.screenRowCount(_hDoc.rowCount());
+		}
+
+		return _wrap.visualRowCount() -
+			hiddenVisualRowsBefore(_folds.getHiddenRangeCount());
+	}
+
+	/**
+	 * Returns the offset of the first char on the screen row of charOffset,
+	 * which is the start of its row unless the row is wrapped
+	 */
+	private int getWrapStart(int charOffset){
+		int row = _hDoc.getRowIndex(charOffset);
+		int rowStart = _hDoc.getStartCharOfRow(row);
+		syncLayout();
+		if(_wrap == null){
+			return rowStart;
+		}
+		int part = _wrap.getPart(row, charOffset - rowStart);
+		return (part == 0) ? rowStart : rowStart + _wrap.getBreaks(row)[part - 1];
+	}
+
+	/**
+	 * Returns the offset of the first char on the screen row after the one
+	 * of charOffset if both are parts of the same wrapped row, or -1
+	 */
+	private int getWrapEnd(int charOffset){
+		syncLayout();
+		if(_wrap == null){
+			return -1;
+		}
+		int row = _hDoc.getRowIndex(charOffset);
+		int rowStart = _hDoc.getStartCharOfRow(row);
+		return wrapStart(_wrap.getBreaks(row),
+			_wrap.getPart(row, charOffset - rowStart), rowStart);
+	}
+
+
+	/**
+	 * Drops the cached counts, layouts and tiles of rows, after rows are
+	 * folded, wrapped or measured differently
+	 */
+	private void clearLayoutCaches(){
+		_hiddenVisualRowsBefore = null;
+		_rowLayouts.clear();
+		_rowTiles.clear();
+	}
+
+
+	//---------------------------------------------------------------------
+	//----------------------------- Folding -------------------------------
+
+	/**
+	 * Collapses the innermost block around charOffset that spans more than
+	 * two rows. Blocks are delimited by brackets.
+	 *
+	 * @return False if there is no such block, or the brackets are not
+	 * 		known yet because the text is still being lexed
+	 */
+	public boolean collapseBlockAt(int charOffset){
+		BracketIndex brackets = getBracketIndex();
+		if(brackets == null){
+			return false;
+		}
+
+		// move the folds along with the text here, where the hidden row
+		// counts are updated, instead of in FoldModel.collapse()
+		syncLayout();
+		int open = brackets.findEnclosing(charOffset);
+		while(open >= 0){
+			int close = brackets.getMatch(open);
+			if(close >= 0 && _folds.collapse(_hDoc,
+					brackets.getPosition(open), brackets.getPosition(close))){
+				// the caret must not be left in a hidden row
+				if(_folds.isHidden(_caretRow)){
+					moveCaret(brackets.getPosition(open));
+				}
+				clearLayoutCaches();
+				invalidate();
+				return true;
+			}
+			open = brackets.findEnclosing(brackets.getPosition(open));
+		}
+		return false;
+	}
+
+	public void expandAll(){
+		if(!_folds.isEmpty()){
+			_folds.expandAll();
+			clearLayoutCaches();
+			invalidate();
+		}
+	}
+
+
+	//---------------------------------------------------------------------
+	//----------------------------- Word wrap -----------------------------
+	public boolean isWordWrap(){
+		return _isWordWrap;
+	}
+
+	/**
+	 * Breaks rows wider than the view into several screen rows instead of
+	 * scrolling horizontally, scrolls the view to display the caret if
+	 * needed, and invalidates the entire view
+	 */
+	public void setWordWrap(boolean enable){
+		if(enable == _isWordWrap){
+			return;
+		}
+
+		_isWordWrap = enable;
+		_xExtent = 0;
+		scrollTo(0, getScrollY());
+		rewrap();
+		if(!makeCharVisible(_caretPosition)){
+			invalidate();
+		}
+	}
+
+	/**
+	 * Wraps the whole text again, after the width or the font changes.
+	 * Big texts are wrapped by a WrapThread, and stay wrapped the old way
+	 * until it is done. Does not invalidate the view.
+	 */
+	private void rewrap(){
+		if(_wrapThread != null){
+			_wrapThread.abort();
+			_wrapThread = null;
+		}
+		clearLayoutCaches();
+
+		int width = getContentWidth();
+		if(!_isWordWrap || width <= 0){
+			_wrap = null;
+			return;
+		}
+
+		DocumentProvider text = _hDoc.snapshot();
+		if(text.docLength() <= WRAP_SYNC_MAX_LENGTH){
+			_wrap = WrapIndex.build(text, width, _measurer, null);
+		}
+		else{
+			_wrapThread = new WrapThread(text, width);
+			_wrapThread.start();
+		}
+	}
+
+	/**
+	 * Wraps a snapshot of the text in the background. The edits made
+	 * in the meantime are wrapped when the result is synced.
+	 */
+	private class WrapThread extends Thread{
+		private final DocumentProvider _text;
+		private final int _width;
+		private final BrushMeasurer _brushCopy;
+		private final Flag _abort = new Flag();
+
+		WrapThread(DocumentProvider text, int width){
+			_text = text;
+			_width = width;
+			_brushCopy = new BrushMeasurer(new Paint(_brush));
+			setDaemon(true);
+		}
+
+		public void abort(){
+			_abort.set();
+		}
+
+		@Override
+		public void run(){
+			final WrapIndex wrap = WrapIndex.build(_text, _width,
+				_brushCopy, _abort);
+			if(wrap == null){
+				return;
+			}
+
+			post(new Runnable(){
+				public void run(){
+					// discard the result if the text was wrapped again
+					if(_wrapThread == WrapThread.this){
+						_wrapThread = null;
+						_wrap = wrap;
+						clearLayoutCaches();
+						if(!makeCharVisible(_caretPosition)){
+							invalidate();
+						}
+					}
+				}
+			});
+		}
+	}
+
+
 	//---------------------------------------------------------------------
 	//------------------- Scrolling and touch -----------------------------
 	/**
@@ -759,32 +1477,24 @@ public class FreeScrollingTextField extends View{
 	 * 			no character or nearest character at that coordinate
 	 */
 	public int coordToCharIndex(int x, int y){
-		int row = y / rowHeight();
-		int charIndex = _hDoc.seekLine(row);
+		int charIndex = getScreenRowStart(y / rowHeight());
 		if(charIndex >= 0){
 			if(x < 0){
 				return charIndex; // coordinate is outside, to the left of view
 			}
 			
-			int extent = 0;
-			while(extent < x && _hDoc.hasNext()){
-				char c = _hDoc.next();
-				if (c == LanguageCFamily.NEWLINE || c == LanguageCFamily.EOF){
-					break;
-				}
-				else if (c == LanguageCFamily.TAB){
-					extent += getTabAdvance();
-				}
-				else{
-					char[] ca = {c};
-					extent += (int) _brush.measureText(ca, 0, 1);
-				}
-				++charIndex;
-			}
+			int wrapEnd = getWrapEnd(charIndex);
+			Pair measured = measureRowUntil(x, charIndex);
+			int extent = measured.getFirst();
+			charIndex += measured.getSecond();
 			if(extent > x){
 				//went one past the mapped char
 				--charIndex;
 			}
+			if(wrapEnd >= 0 && charIndex >= wrapEnd){
+				// past the end of a wrapped screen row
+				charIndex = wrapEnd - 1;
+			}
 			return charIndex;
 		}
 		else{
@@ -793,6 +1503,36 @@ public class FreeScrollingTextField extends View{
 		}
 	}
 	
+	/**
+	 * Adds up the advances of the chars from charOffset until the sum reaches
+	 * x or the end of the screen row is reached.
+	 * 
+	 * @return Pair.first contains the sum of the advances and Pair.second
+	 * 		contains the number of chars added
+	 */
+	private Pair measureRowUntil(int x, int charOffset){
+		int extent = 0;
+		int charCount = 0;
+		boolean isRowEnd = false;
+		int wrapEnd = getWrapEnd(charOffset);
+		Segment segment = new Segment();
+		_hDoc.seekChar(charOffset);
+		while(extent < x && !isRowEnd && _hDoc.nextSegment(segment)){
+			char[] chars = segment.array;
+			for(int i = segment.start; i < segment.end && extent < x; ++i){
+				char c = chars[i];
+				if (c == LanguageCFamily.NEWLINE || c == LanguageCFamily.EOF ||
+						charOffset + charCount == wrapEnd){
+					isRowEnd = true;
+					break;
+				}
+				extent += getAdvance(c);
+				++charCount;
+			}
+		}
+		return new Pair(extent, charCount);
+	}
+	
 	/**
 	 * Maps a coordinate to the character that it is on.
 	 * Returns -1 if there is no character on the coordinate.
@@ -806,25 +1546,12 @@ public class FreeScrollingTextField extends View{
 	 * 			or -1 if there is no character at that coordinate.
 	 */
 	public int coordToCharIndexStrict(int x, int y){
-		int row = y / rowHeight();
-		int charIndex = _hDoc.seekLine(row);
+		int charIndex = getScreenRowStart(y / rowHeight());
 		
 		if(charIndex >= 0 && x >= 0){
-			int extent = 0;
-			while(extent < x && _hDoc.hasNext()){
-				char c = _hDoc.next();
-				if (c == LanguageCFamily.NEWLINE || c == LanguageCFamily.EOF){
-					break;
-				}
-				else if (c == LanguageCFamily.TAB){
-					extent += getTabAdvance();
-				}
-				else{
-					char[] ca = {c};
-					extent += (int) _brush.measureText(ca, 0, 1);
-				}
-				++charIndex;
-			}
+			Pair measured = measureRowUntil(x, charIndex);
+			int extent = measured.getFirst();
+			charIndex += measured.getSecond();
 			
 			if(extent < x){
 				charIndex = -1; //no char on x
@@ -860,7 +1587,7 @@ public class FreeScrollingTextField extends View{
 	 */
 	int getMaxScrollY(){
 		return Math.max(0,
-			_hDoc.rowCount()*rowHeight() - getContentHeight() + _navMethod.getCaretBloat().bottom);
+			screenRowCount()*rowHeight() - getContentHeight() + _navMethod.getCaretBloat().bottom);
 	}
 	
 	@Override
@@ -870,7 +1597,7 @@ public class FreeScrollingTextField extends View{
 
 	@Override
 	protected int computeVerticalScrollRange() {
-		return _hDoc.rowCount() * rowHeight() + getPaddingTop() + getPaddingBottom();
+		return screenRowCount() * rowHeight() + getPaddingTop() + getPaddingBottom();
 	}
 
 	@Override
@@ -890,6 +1617,21 @@ public class FreeScrollingTextField extends View{
 		postInvalidate();
 	}
 
+	public boolean isTileCacheEnabled() {
+		return _isTileCacheEnabled;
+	}
+
+	/**
+	 * While fling scrolling, draws rows from bitmaps of the rows kept from
+	 * earlier frames, at the cost of up to TILE_CACHE_MAX_BYTES of memory
+	 */
+	public void setTileCacheEnabled(boolean enable) {
+		_isTileCacheEnabled = enable;
+		if (!enable){
+			_rowTiles.clear();
+		}
+	}
+
 	public boolean isFlingScrolling() {
 		return !_scroller.isFinished();
 	}
@@ -1046,7 +1788,14 @@ public class FreeScrollingTextField extends View{
 	 * Typically, the return value is then used to set _caretRow. 
 	 */
 	private int determineCaretRow(){
-		return _hDoc.getRowIndex(_caretPosition);
+		int row = _hDoc.getRowIndex(_caretPosition);
+		syncLayout();
+		if(_folds.expandRow(row)){
+			// reveal the caret
+			clearLayoutCaches();
+			invalidate();
+		}
+		return row;
 	}
 	
 	/**
@@ -1118,11 +1867,11 @@ public class FreeScrollingTextField extends View{
 	}
 
 	final protected boolean caretOnFirstRowOfFile(){
-		return (_caretRow == 0);
+		return (charToScreenRow(_caretPosition) == 0);
 	}
 
 	final protected boolean caretOnLastRowOfFile(){
-		return (_caretRow == (_hDoc.rowCount()-1));
+		return (charToScreenRow(_caretPosition) == (screenRowCount()-1));
 	}
   
 	final protected boolean caretOnEOF(){
@@ -1197,24 +1946,45 @@ public class FreeScrollingTextField extends View{
 	//---------------------------------------------------------------------
 	//------------------------- Formatting methods ------------------------
 	
-	private boolean reachedNextSpan(int charIndex, Pair span){
-		return (span == null) ? false : (charIndex == span.getFirst());
-	}
-
 	public void respan() {
 		_fieldController.determineSpans();
 	}
+
+	/**
+	 * Sets the language of the document being edited and lexes it again.
+	 * Spans are cleared if language is not a programming language.
+	 */
+	public void setLanguage(LanguageCFamily language) {
+		_hDoc.setLanguage(language);
+		if(language.isProgLang()){
+			respan();
+		}
+		else{
+			cancelSpanning();
+			_hDoc.clearSpans();
+		}
+	}
 	
 	public void cancelSpanning() {
 		_fieldController.cancelSpanning();
 	}
 
+	/**
+	 * Returns the brackets in the text, or null if the text has changed
+	 * since it was last lexed
+	 */
+	public BracketIndex getBracketIndex() {
+		return _fieldController.getBracketIndex();
+	}
+
 	/**
 	 * Sets the text to use the new typeface, scrolls the view to display the 
 	 * caret if needed, and invalidates the entire view
 	 */
 	public void setTypeface(Typeface typeface) {
 		_brush.setTypeface(typeface);
+		_measurer.clearCache();
+		rewrap();
 		if(!makeCharVisible(_caretPosition)){
 			invalidate();
 		}
@@ -1231,6 +2001,8 @@ public class FreeScrollingTextField extends View{
 		
 		int newSize = (int) (factor * BASE_TEXT_SIZE_PIXELS);
 		_brush.setTextSize(newSize);
+		_measurer.clearCache();
+		rewrap();
 		if(!makeCharVisible(_caretPosition)){
 			invalidate();
 		}
@@ -1248,6 +2020,7 @@ public class FreeScrollingTextField extends View{
 		}
 		
 		_tabLength = spaceCount;
+		rewrap();
 		if(!makeCharVisible(_caretPosition)){
 			invalidate();
 		}
@@ -1384,6 +2157,7 @@ public class FreeScrollingTextField extends View{
 	 */
 	void onPause() {
 		_navMethod.onPause();
+		_hDoc.compact();
 	}
 
 	void onResume() {
@@ -1405,26 +2179,56 @@ public class FreeScrollingTextField extends View{
 
 		/**
 		 * Analyze the text for programming language keywords and redraws the
-		 * text view when done. The global programming language used is set with
-		 * the static method Lexer.setLanguage(Language)
+		 * text view when done. The programming language used is the language
+		 * of the document, set with setLanguage(LanguageCFamily)
+		 * 
+		 * Does nothing if the document language is not a programming language
 		 * 
-		 * Does nothing if the Lexer language is not a programming language
+		 * The rows on screen are colored as soon as they are lexed, without
+		 * waiting for the rest of the text.
 		 */
 		public void determineSpans() {
-			_lexer.tokenize(_hDoc);
+			int visibleEnd = getScreenRowStart(
+					(getScrollY() + getContentHeight()) / rowHeight() + 1);
+			if(visibleEnd < 0){
+				visibleEnd = _hDoc.docLength();
+			}
+			_lexer.tokenize(_hDoc, visibleEnd);
 		}
 		
 		public void cancelSpanning() {
 			_lexer.cancelTokenize();
 		}
+
+		public BracketIndex getBracketIndex() {
+			BracketIndex brackets = _lexer.getBracketIndex();
+			if(brackets == null || brackets.getVersion() != _hDoc.getVersion()){
+				return null;
+			}
+			return brackets;
+		}
 		
 		@Override
 		//This is usually called from a non-UI thread
-		public void lexDone(final List<Pair> results) {
+		public void lexDone(final SpanArray results, final long version) {
+			publishSpans(results, version);
+		}
+
+		@Override
+		//This is usually called from a non-UI thread
+		public void lexProgress(final SpanArray partialResults, final long version) {
+			publishSpans(partialResults, version);
+		}
+
+		private void publishSpans(final SpanArray results, final long version) {
 			post(new Runnable(){
 				public void run(){
-					_hDoc.setSpans(results);
-					invalidate();
+					// discard spans of an outdated text; the edits since
+					// then will have started another lex
+					if(version == _hDoc.getVersion()){
+						_hDoc.setSpans(results);
+						invalidateRespannedRows(results);
+					}
 				}
 			});
 		}
@@ -1441,6 +2245,7 @@ public class FreeScrollingTextField extends View{
 				selectionDeleted = true;
 			}
 
+			int screenRowCount = screenRowCount();
 			switch(c){
 			case LanguageCFamily.BACKSPACE:
 				if(selectionDeleted){
@@ -1449,23 +2254,14 @@ public class FreeScrollingTextField extends View{
 				
 				if (_caretPosition > 0){
 					moveCaretLeft();
-					char deleted = _hDoc.charAt(_caretPosition);
 					_hDoc.deleteAt(_caretPosition, System.nanoTime());
-
-					if (deleted == LanguageCFamily.NEWLINE){
-						// mark rest of screen from caret for repainting
-						invalidateFromRow(_caretRow);
-					}
+					invalidateEditedRows(_caretRow, _caretRow, screenRowCount);
 				}
 				break;
 				
-			case LanguageCFamily.NEWLINE:
-				// mark rest of screen from caret for repainting
-				invalidateFromRow(_caretRow);
-			//fall-through
-				
 			default:
 				_hDoc.insertBefore(c, _caretPosition, System.nanoTime());
+				invalidateEditedRows(_caretRow, _caretRow, screenRowCount);
 				moveCaretRight();
 				break;
 			}
@@ -1478,22 +2274,8 @@ public class FreeScrollingTextField extends View{
 	    	if (!caretOnLastRowOfFile()){
 	    		int currCaret = _caretPosition;
 	    		int currRow = _caretRow;
-	    		int newRow = currRow + 1;
-	    		int currColumn = getColumn(currCaret);
-	    		int currRowLength = _hDoc.rowLength(currRow);
-	    		int newRowLength = _hDoc.rowLength(newRow);
-	    		
-	    		if (currColumn < newRowLength){
-		    		// Position at the same column as old row.
-		    		_caretPosition += currRowLength;
-		    	}
-		    	else{
-		    		// Column does not exist in the new row (new row is too short).
-		    		// Position at end of new row instead.
-		    		_caretPosition +=
-		    			currRowLength - currColumn + newRowLength - 1;
-		    	}
-	    		++_caretRow;
+	    		moveCaretToScreenRow(charToScreenRow(currCaret) + 1);
+	    		int newRow = _caretRow;
 
 	    		updateSelectionRange(currCaret, _caretPosition);
 	    		if (!makeCharVisible(_caretPosition)){
@@ -1508,20 +2290,8 @@ public class FreeScrollingTextField extends View{
 	    	if (!caretOnFirstRowOfFile()){
 	    		int currCaret = _caretPosition;
 	    		int currRow = _caretRow;
-	    		int newRow = currRow - 1;
-	    		int currColumn = getColumn(currCaret);
-	    		int newRowLength = _hDoc.rowLength(newRow);
-
-		    	if (currColumn < newRowLength){
-		    		// Position at the same column as old row.
-		    		_caretPosition -= newRowLength;
-		    	}
-		    	else{
-		    		// Column does not exist in the new row (new row is too short).
-		    		// Position at end of new row instead.
-		    		_caretPosition -= (currColumn + 1);
-		    	}
-	    		--_caretRow;
+	    		moveCaretToScreenRow(charToScreenRow(currCaret) - 1);
+	    		int newRow = _caretRow;
 
 	    		updateSelectionRange(currCaret, _caretPosition);
 	    		if (!makeCharVisible(_caretPosition)){
@@ -1532,6 +2302,23 @@ public class FreeScrollingTextField extends View{
 	    	}
 	    }
 
+		/**
+		 * Positions the caret at the same column of screenRow as on its
+		 * current screen row, or at the end of screenRow if it is too short
+		 */
+		private void moveCaretToScreenRow(int screenRow){
+			int column = _caretPosition - getWrapStart(_caretPosition);
+			int start = getScreenRowStart(screenRow);
+			int end = getWrapEnd(start);
+			if(end < 0){
+				int row = _hDoc.getRowIndex(start);
+				end = _hDoc.getStartCharOfRow(row) + _hDoc.rowLength(row);
+			}
+
+			_caretPosition = start + Math.min(column, end - start - 1);
+			_caretRow = _hDoc.getRowIndex(_caretPosition);
+		}
+
 		public void moveCaretRight(){
 	    	if(!caretOnEOF()){
 	    		int currRow = _caretRow;
@@ -1766,9 +2553,9 @@ public class FreeScrollingTextField extends View{
 			//TODO catch OutOfMemoryError
 			if(_isInSelectionMode &&
 					_selectionAnchor < _selectionEdge){
-				char[] contents = _hDoc.subSequence(_selectionAnchor,
-					_selectionEdge - _selectionAnchor);
-				cb.setText(new String(contents));
+				// the clipboard outlives the view, so it needs its own copy
+				cb.setText(_hDoc.getCharSequence(_selectionAnchor,
+					_selectionEdge - _selectionAnchor).toString());
 			}
 		}
 		
@@ -1787,6 +2574,7 @@ public class FreeScrollingTextField extends View{
 			_hDoc.beginBatchEdit();
 			selectionDelete();
 			int originalRow = _caretRow;
+			int screenRowCount = screenRowCount();
 			_hDoc.insertBefore(text.toCharArray(), _caretPosition, System.nanoTime());
 			_hDoc.endBatchEdit();
 			
@@ -1802,13 +2590,7 @@ public class FreeScrollingTextField extends View{
 			stopTextComposing();
 
 			if(!makeCharVisible(_caretPosition)){
-				if(originalRow == newRow){
-					//pasted text only affects current row
-					invalidateRows(originalRow, newRow+1);
-				}
-				else{
-					invalidateFromRow(originalRow);
-				}
+				invalidateEditedRows(originalRow, newRow, screenRowCount);
 			}
 		}
 		
@@ -1828,7 +2610,7 @@ public class FreeScrollingTextField extends View{
 
 			if(totalChars > 0){
 				int newRow = _hDoc.getRowIndex(_selectionAnchor);
-				boolean isSingleRowSel = _hDoc.getRowIndex(_selectionEdge) == newRow;
+				int screenRowCount = screenRowCount();
 				_hDoc.deleteAt(_selectionAnchor, totalChars, System.nanoTime());
 
 				_caretPosition = _selectionAnchor;
@@ -1842,12 +2624,7 @@ public class FreeScrollingTextField extends View{
 				stopTextComposing();
 
 				if(!makeCharVisible(_caretPosition)){
-					if(isSingleRowSel){
-						invalidateRows(newRow, newRow+1);
-					}
-					else{
-						invalidateFromRow(newRow);
-					}
+					invalidateEditedRows(newRow, newRow, screenRowCount);
 				}
 			}
 			else{
@@ -1869,7 +2646,7 @@ public class FreeScrollingTextField extends View{
 		 */
 		void replaceComposingText(int from, int charCount, String text){
 			int startInvalidateRow = _caretRow;
-			boolean invalidateSingleRow = true;
+			int screenRowCount = screenRowCount();
 			boolean dirty = false;
 
 			//delete selection
@@ -1882,7 +2659,6 @@ public class FreeScrollingTextField extends View{
 					int newRow = determineCaretRow();
 					if(newRow < startInvalidateRow){
 						startInvalidateRow = newRow;
-						invalidateSingleRow = false;
 					}
 					dirty = true;
 				}
@@ -1897,7 +2673,6 @@ public class FreeScrollingTextField extends View{
 				int newRow = determineCaretRow();
 				if(newRow < startInvalidateRow){
 					startInvalidateRow = newRow;
-					invalidateSingleRow = false;
 				}
 				dirty = true;
 			}
@@ -1918,16 +2693,11 @@ public class FreeScrollingTextField extends View{
 			if(newRow != _caretRow){
 				_caretRow = newRow;
 				_rowLis.onRowChange(newRow);
-				invalidateSingleRow = false;
 			}
 
 			if(!makeCharVisible(_caretPosition)){
-				if(invalidateSingleRow){
-					invalidateRows(newRow, newRow+1);
-				}
-				else{
-					invalidateFromRow(startInvalidateRow);
-				}
+				invalidateEditedRows(Math.min(startInvalidateRow, newRow),
+					Math.max(startInvalidateRow, newRow), screenRowCount);
 			}
 		}
 		
@@ -1951,16 +2721,16 @@ public class FreeScrollingTextField extends View{
 			replaceComposingText(start, end-start, "");
 		}
 
-		String getTextAfterCursor(int maxLen){
-			return new String(_hDoc.subSequence(_caretPosition, maxLen));
+		CharSequence getTextAfterCursor(int maxLen){
+			return _hDoc.getCharSequence(_caretPosition, maxLen);
 		}
 
-		String getTextBeforeCursor(int maxLen){
+		CharSequence getTextBeforeCursor(int maxLen){
 			int start = _caretPosition - maxLen;
 			if(start < 0){
 				start = 0;
 			}
-			return new String(_hDoc.subSequence(start, _caretPosition-start));
+			return _hDoc.getCharSequence(start, _caretPosition-start);
 		}
 	}//end inner controller class
 
@@ -2067,7 +2837,7 @@ public class FreeScrollingTextField extends View{
 			if((reqModes & InputType.TYPE_TEXT_FLAG_CAP_WORDS)
 					== InputType.TYPE_TEXT_FLAG_CAP_WORDS){
 				int prevChar = _caretPosition - 1;
-				if(prevChar < 0 || Lexer.getLanguage().isWhitespace(_hDoc.charAt(prevChar)) ){
+				if(prevChar < 0 || _hDoc.getLanguage().isWhitespace(_hDoc.charAt(prevChar)) ){
 					capsMode |= InputType.TYPE_TEXT_FLAG_CAP_WORDS;
 					
 					//set CAP_SENTENCES if client is interested in it
@@ -2083,7 +2853,7 @@ public class FreeScrollingTextField extends View{
 			// Android bug? Therefore, we assume TYPE_TEXT_FLAG_CAP_SENTENCES
 			// is always set to be on the safe side.
 			else {
-				LanguageCFamily lang = Lexer.getLanguage();
+				LanguageCFamily lang = _hDoc.getLanguage();
 
 				int prevChar = _caretPosition - 1;
 				int whitespaceCount = 0;
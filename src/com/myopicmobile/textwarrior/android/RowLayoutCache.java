@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.android;
+
+import java.util.Arrays;
+import android.util.SparseArray;
+import com.myopicmobile.textwarrior.common.ColorScheme;
+import com.myopicmobile.textwarrior.common.DocumentProvider;
+import com.myopicmobile.textwarrior.common.LanguageCFamily;
+import com.myopicmobile.textwarrior.common.Pair;
+import com.myopicmobile.textwarrior.common.SpanArray;
+
+/**
+ * The layouts of the screen rows around the visible window, so redrawing
+ * them, like when the caret blinks or the selection changes, does not go
+ * back to the document.
+ *
+ * Layouts are keyed by screen row. When the text changes, sync() drops the
+ * layouts of the rows that were edited and moves the layouts after them
+ * with the text, like FoldModel does with folds. Anything else that moves
+ * or measures rows, like folding, wrapping or a new zoom, must clear() it.
+ */
+class RowLayoutCache{
+	private SparseArray<RowLayout> _layouts = new SparseArray<RowLayout>();
+	/** The text the layouts describe, or null if there are no layouts */
+	private DocumentProvider _text = null;
+	/** Number of screen rows when the layouts were made */
+	private int _screenRowCount = 0;
+
+	public void clear(){
+		_layouts.clear();
+		_text = null;
+	}
+
+	public RowLayout get(int screenRow){
+		return _layouts.get(screenRow);
+	}
+
+	/**
+	 * @param doc The text the layout was made from, which must not have
+	 * 		changed since the last sync()
+	 * @param screenRowCount Number of screen rows of doc
+	 */
+	public void put(int screenRow, RowLayout layout, DocumentProvider doc,
+			int screenRowCount){
+		if(_text == null){
+			_text = doc.snapshot();
+			_screenRowCount = screenRowCount;
+		}
+		_layouts.put(screenRow, layout);
+	}
+
+	/**
+	 * Whether doc changed since the last sync(). Checking first saves
+	 * counting the screen rows for sync().
+	 */
+	public boolean isStale(DocumentProvider doc){
+		return _text != null && _text.getVersion() != doc.getVersion();
+	}
+
+	/**
+	 * Drops the layouts of the rows of doc changed since the last call,
+	 * and moves the layouts after them along with the text
+	 *
+	 * @param screenRowCount Number of screen rows of doc now
+	 */
+	public void sync(DocumentProvider doc, int screenRowCount){
+		if(!isStale(doc)){
+			return;
+		}
+
+		DocumentProvider text = doc.snapshot();
+		Pair change = text.changesSince(_text);
+		int changeStart = change.getFirst();
+		int oldLength = _text.docLength();
+		int oldChangeEnd = Math.max(changeStart, oldLength - change.getSecond());
+
+		// an edit can move word wrap breaks anywhere in its row, so whole
+		// rows are dropped, up to the row of the first unchanged char
+		int changedFrom = _text.getStartCharOfRow(
+				_text.getRowIndex(Math.min(changeStart, oldLength - 1)));
+		int unchangedFrom = _text.getStartCharOfRow(
+				_text.getRowIndex(Math.min(oldChangeEnd, oldLength - 1)) + 1);
+		int lengthDelta = text.docLength() - oldLength;
+		int rowDelta = text.rowCount() - _text.rowCount();
+		int screenRowDelta = screenRowCount - _screenRowCount;
+
+		SparseArray<RowLayout> layouts = new SparseArray<RowLayout>();
+		for(int i = 0; i < _layouts.size(); ++i){
+			RowLayout layout = _layouts.valueAt(i);
+			if(layout.getEnd() <= changedFrom){
+				layouts.put(_layouts.keyAt(i), layout);
+			}
+			else if(unchangedFrom >= 0 && layout.getStart() >= unchangedFrom){
+				layout.shift(lengthDelta, rowDelta);
+				layouts.put(_layouts.keyAt(i) + screenRowDelta, layout);
+			}
+		}
+
+		_layouts = layouts;
+		_text = text;
+		_screenRowCount = screenRowCount;
+	}
+
+	/**
+	 * Drops the layouts of the screen rows outside [first, last]
+	 */
+	public void retain(int first, int last){
+		for(int i = _layouts.size() - 1; i >= 0; --i){
+			int screenRow = _layouts.keyAt(i);
+			if(screenRow < first || screenRow > last){
+				_layouts.removeAt(i);
+			}
+		}
+	}
+
+
+	/**
+	 * The chars of a screen row and where they are drawn.
+	 *
+	 * The chars are split into runs of the same color that are drawn with
+	 * one call. NEWLINE, EOF and tabs are not drawn, so they are left out
+	 * of the runs. The runs are resolved again when the spans change.
+	 *
+	 * A layout of a very long row may hold only a window of its chars
+	 * around the visible part, which covers() tells apart.
+	 */
+	static class RowLayout{
+		/** The document row the screen row is part of */
+		private int _row;
+		/** Offset of the first char */
+		private int _start;
+		private final char[] _chars;
+		/** The x offset of each char, followed by the x offset after the last one */
+		private final int[] _x;
+		/** Width of the whole screen row */
+		private final int _width;
+		private final boolean _endsRow;
+		/** Whether chars of the screen row before or after _chars were left out */
+		private final boolean _isCutLeft, _isCutRight;
+
+		/** The spans the runs were resolved with */
+		private SpanArray _spans = null;
+		private int _baseline = 0;
+		private int _runCount = 0;
+		private int[] _runStarts;
+		private int[] _runLengths;
+		private int[] _runColors;
+		/** The x, baseline pairs of the chars of each run */
+		private float[][] _runPositions;
+
+		/**
+		 * Runs being resolved, before they are compared with the current
+		 * ones. Shared by all layouts, which are only used on the UI thread.
+		 */
+		private static int[] _newRunStarts = new int[64];
+		private static int[] _newRunLengths = new int[64];
+		private static int[] _newRunColors = new int[64];
+		private static int _newRunCount = 0;
+
+		/**
+		 * Lays out a whole screen row
+		 *
+		 * @param x The x offset of each char in chars, followed by the
+		 * 		width of the row
+		 */
+		RowLayout(int row, int start, char[] chars, int[] x){
+			_row = row;
+			_start = start;
+			_chars = chars;
+			_x = x;
+			int length = chars.length;
+			_width = x[length];
+			_endsRow = length > 0 && (chars[length - 1] == LanguageCFamily.NEWLINE ||
+					chars[length - 1] == LanguageCFamily.EOF);
+			_isCutLeft = false;
+			_isCutRight = false;
+		}
+
+		/**
+		 * Lays out a window of the chars of a screen row
+		 *
+		 * @param x The x offset of each char in chars, followed by the x
+		 * 		offset after the last one
+		 * @param width Width of the whole screen row
+		 * @param endsRow Whether the screen row is the last one of its
+		 * 		document row
+		 * @param isCutLeft Whether chars of the screen row before chars
+		 * 		were left out
+		 * @param isCutRight Whether chars of the screen row after chars
+		 * 		were left out
+		 */
+		RowLayout(int row, int start, char[] chars, int[] x, int width,
+				boolean endsRow, boolean isCutLeft, boolean isCutRight){
+			_row = row;
+			_start = start;
+			_chars = chars;
+			_x = x;
+			_width = width;
+			_endsRow = endsRow;
+			_isCutLeft = isCutLeft;
+			_isCutRight = isCutRight;
+		}
+
+		public int getRow(){
+			return _row;
+		}
+
+		/** Offset of the first laid out char */
+		public int getStart(){
+			return _start;
+		}
+
+		/** Offset after the last laid out char */
+		public int getEnd(){
+			return _start + _chars.length;
+		}
+
+		/** Number of laid out chars */
+		public int length(){
+			return _chars.length;
+		}
+
+		/** The returned array must not be modified */
+		public char[] getChars(){
+			return _chars;
+		}
+
+		/**
+		 * Returns the x offset of the index-th laid out char, or the x
+		 * offset after the last one if index is length()
+		 */
+		public int getX(int index){
+			return _x[index];
+		}
+
+		/** Width of the whole screen row */
+		public int getWidth(){
+			return _width;
+		}
+
+		/**
+		 * Whether the laid out chars include all the chars of the screen
+		 * row between x offsets left and right
+		 */
+		public boolean covers(int left, int right){
+			return (!_isCutLeft || _x[0] <= left) &&
+				(!_isCutRight || _x[_chars.length] >= right);
+		}
+
+		/** The baseline given to the last layOut() */
+		public int getBaseline(){
+			return _baseline;
+		}
+
+		/** Whether the screen row is the last one of its document row */
+		public boolean endsRow(){
+			return _endsRow;
+		}
+
+		private void shift(int lengthDelta, int rowDelta){
+			_start += lengthDelta;
+			_row += rowDelta;
+		}
+
+		/**
+		 * Resolves the runs with spans, and places them at baseline. Does
+		 * nothing if neither changed since the last call.
+		 *
+		 * @return true if the runs are colored differently than before
+		 */
+		public boolean layOut(SpanArray spans, int baseline){
+			boolean isRecolored = false;
+			if(spans != _spans){
+				isRecolored = resolveRuns(spans, baseline);
+			}
+			else if(baseline != _baseline){
+				for(int r = 0; r < _runCount; ++r){
+					float[] positions = _runPositions[r];
+					for(int i = 1; i < positions.length; i += 2){
+						positions[i] = baseline;
+					}
+				}
+				_baseline = baseline;
+			}
+			return isRecolored;
+		}
+
+		/**
+		 * The runs are only copied out of the shared arrays, and their
+		 * positions made again, if they changed
+		 *
+		 * @return true if the runs differ from the ones resolved before
+		 */
+		private boolean resolveRuns(SpanArray spans, int baseline){
+			int length = _chars.length;
+			_newRunCount = 0;
+
+			// binary search for the first span, then step through the spans
+			// that start on the row
+			int spanIndex = spans.findSpan(_start);
+			int color = ColorScheme.getTokenColor(spans.getType(spanIndex));
+			int nextSpanStart = nextSpanStart(spans, spanIndex);
+			int runLength = 0;
+			for(int i = 0; i < length; ++i){
+				int charOffset = _start + i;
+				if(charOffset >= nextSpanStart){
+					// skip empty spans
+					do{
+						++spanIndex;
+					} while(nextSpanStart(spans, spanIndex) <= charOffset);
+					nextSpanStart = nextSpanStart(spans, spanIndex);
+
+					// spans of the same color are drawn as one run
+					int spanColor = ColorScheme.getTokenColor(spans.getType(spanIndex));
+					if(spanColor != color){
+						endRun(i, runLength, color);
+						runLength = 0;
+						color = spanColor;
+					}
+				}
+
+				char c = _chars[i];
+				if(c == LanguageCFamily.NEWLINE ||
+						c == LanguageCFamily.EOF ||
+						c == LanguageCFamily.TAB){
+					endRun(i, runLength, color);
+					runLength = 0;
+				}
+				else{
+					++runLength;
+				}
+			}
+			endRun(length, runLength, color);
+			_spans = spans;
+
+			if(_runStarts != null && isSameRuns()){
+				layOut(spans, baseline);
+				return false;
+			}
+
+			_runCount = _newRunCount;
+			_runStarts = Arrays.copyOf(_newRunStarts, _runCount);
+			_runLengths = Arrays.copyOf(_newRunLengths, _runCount);
+			_runColors = Arrays.copyOf(_newRunColors, _runCount);
+			_runPositions = new float[_runCount][];
+			for(int r = 0; r < _runCount; ++r){
+				float[] positions = new float[2 * _runLengths[r]];
+				for(int i = 0; i < _runLengths[r]; ++i){
+					positions[2 * i] = _x[_runStarts[r] + i];
+					positions[2 * i + 1] = baseline;
+				}
+				_runPositions[r] = positions;
+			}
+			_baseline = baseline;
+			return true;
+		}
+
+		/** Whether the runs just resolved are the current ones */
+		private boolean isSameRuns(){
+			if(_newRunCount != _runCount){
+				return false;
+			}
+			for(int r = 0; r < _runCount; ++r){
+				if(_newRunStarts[r] != _runStarts[r] ||
+						_newRunLengths[r] != _runLengths[r] ||
+						_newRunColors[r] != _runColors[r]){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Records the run of runLength chars before end, if any */
+		private static void endRun(int end, int runLength, int color){
+			if(runLength <= 0){
+				return;
+			}
+			if(_newRunCount == _newRunStarts.length){
+				int newSize = 2 * _newRunCount;
+				_newRunStarts = Arrays.copyOf(_newRunStarts, newSize);
+				_newRunLengths = Arrays.copyOf(_newRunLengths, newSize);
+				_newRunColors = Arrays.copyOf(_newRunColors, newSize);
+			}
+			_newRunStarts[_newRunCount] = end - runLength;
+			_newRunLengths[_newRunCount] = runLength;
+			_newRunColors[_newRunCount] = color;
+			++_newRunCount;
+		}
+
+		private static int nextSpanStart(SpanArray spans, int spanIndex){
+			return (spanIndex + 1 < spans.size())
+				? spans.getStart(spanIndex + 1) : Integer.MAX_VALUE;
+		}
+
+		public int getRunCount(){
+			return _runCount;
+		}
+
+		/** Index of the first char of the run */
+		public int getRunStart(int run){
+			return _runStarts[run];
+		}
+
+		public int getRunLength(int run){
+			return _runLengths[run];
+		}
+
+		public int getRunColor(int run){
+			return _runColors[run];
+		}
+
+		/**
+		 * Returns the x, baseline pairs of the chars of run, as taken by
+		 * Canvas.drawPosText(). The returned array must not be modified.
+		 */
+		public float[] getRunPositions(int run){
+			return _runPositions[run];
+		}
+	}
+}
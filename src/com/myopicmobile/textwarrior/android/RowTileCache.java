@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.android;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import com.myopicmobile.textwarrior.common.SpanArray;
+
+/**
+ * Bitmaps of strips of screen rows, so that a frame of fling scrolling
+ * mostly copies bitmaps, and only the rows scrolled into view for the first
+ * time are drawn.
+ *
+ * Tile i holds the screen rows [i * TILE_ROWS, (i+1) * TILE_ROWS), as drawn
+ * from the horizontal scroll position, at the width and row height given to
+ * sync(). Tiles are kept within a budget of bytes, and the least recently
+ * used ones are dropped first.
+ *
+ * Dropped bitmaps are not recycled but reused by obtain(), so scrolling
+ * does not allocate a bitmap for every new tile. A bitmap dropped while a
+ * frame is drawn is only reused from the next frame on, since a hardware
+ * accelerated canvas may still draw it from its display list.
+ *
+ * A tile shows the text, spans, caret, selection and focus it was drawn
+ * with. sync() clears the cache when any of them changed, and the text
+ * field clears it when rows are folded, wrapped or measured differently.
+ */
+class RowTileCache{
+	public final static int TILE_ROWS = 16;
+	/** Most dropped bitmaps kept for reuse, on top of the budget */
+	private final static int MAX_FREE_TILES = 4;
+
+	/** Tiles by index, from the least recently used */
+	private final LinkedHashMap<Integer, Bitmap> _tiles =
+			new LinkedHashMap<Integer, Bitmap>(16, 0.75f, true);
+	private final int _budget;
+	/** Number of bytes taken by the tiles */
+	private int _size = 0;
+	/** Dropped bitmaps that can be drawn on again */
+	private final ArrayList<Bitmap> _free = new ArrayList<Bitmap>();
+	/** Bitmaps dropped while drawing the current frame */
+	private final ArrayList<Bitmap> _dropped = new ArrayList<Bitmap>();
+
+	// what the tiles were drawn with
+	private int _left = 0;
+	private int _width = 0;
+	private int _rowHeight = 0;
+	private long _version = -1;
+	private SpanArray _spans = null;
+	private int _caretPosition = -1;
+	private int _selectionAnchor = -1;
+	private int _selectionEdge = -1;
+	private boolean _isFocused = false;
+
+	/**
+	 * @param budget The most bytes of bitmaps to keep
+	 */
+	public RowTileCache(int budget){
+		_budget = budget;
+	}
+
+	/**
+	 * Drops all tiles. Must not be called after tiles were drawn in the
+	 * current frame, since their bitmaps may be reused right away.
+	 */
+	public void clear(){
+		for(Bitmap bitmap : _tiles.values()){
+			free(bitmap);
+		}
+		_tiles.clear();
+		_size = 0;
+	}
+
+	/**
+	 * Starts drawing a frame. Clears the cache unless its tiles were drawn
+	 * with the same arguments.
+	 *
+	 * @param left The x offset of the left edge of the tiles
+	 * @param version Version of the text
+	 */
+	public void sync(int left, int width, int rowHeight, long version,
+			SpanArray spans, int caretPosition, int selectionAnchor,
+			int selectionEdge, boolean isFocused){
+		// the previous frame no longer draws the bitmaps dropped during it
+		for(Bitmap bitmap : _dropped){
+			free(bitmap);
+		}
+		_dropped.clear();
+
+		if(left != _left || width != _width || rowHeight != _rowHeight ||
+				version != _version || spans != _spans ||
+				caretPosition != _caretPosition ||
+				selectionAnchor != _selectionAnchor ||
+				selectionEdge != _selectionEdge ||
+				isFocused != _isFocused){
+			clear();
+			_left = left;
+			_width = width;
+			_rowHeight = rowHeight;
+			_version = version;
+			_spans = spans;
+			_caretPosition = caretPosition;
+			_selectionAnchor = selectionAnchor;
+			_selectionEdge = selectionEdge;
+			_isFocused = isFocused;
+		}
+	}
+
+	/**
+	 * The x offset of the left edge of the tiles, as given to the last
+	 * sync()
+	 */
+	public int getLeft(){
+		return _left;
+	}
+
+	/**
+	 * Returns the tile-th tile, or null if it is not cached
+	 */
+	public Bitmap get(int tile){
+		return _tiles.get(tile);
+	}
+
+	/**
+	 * Returns a transparent bitmap to draw a tile on, reusing a dropped
+	 * one of the same size if there is any
+	 */
+	public Bitmap obtain(int width, int height){
+		while(!_free.isEmpty()){
+			Bitmap bitmap = _free.remove(_free.size() - 1);
+			if(bitmap.getWidth() == width && bitmap.getHeight() == height){
+				bitmap.eraseColor(Color.TRANSPARENT);
+				return bitmap;
+			}
+		}
+		return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * Adds a tile, dropping the least recently used tiles that no longer
+	 * fit in the budget
+	 */
+	public void put(int tile, Bitmap bitmap){
+		Bitmap old = _tiles.put(tile, bitmap);
+		if(old != null){
+			_size -= byteCount(old);
+			_dropped.add(old);
+		}
+		_size += byteCount(bitmap);
+
+		Iterator<Map.Entry<Integer, Bitmap>> eldest = _tiles.entrySet().iterator();
+		while(_size > _budget && eldest.hasNext()){
+			Bitmap evicted = eldest.next().getValue();
+			if(evicted == bitmap){
+				// keep the tile just drawn, even if it alone is over budget
+				break;
+			}
+			eldest.remove();
+			_size -= byteCount(evicted);
+			_dropped.add(evicted);
+		}
+	}
+
+	private void free(Bitmap bitmap){
+		if(_free.size() < MAX_FREE_TILES){
+			_free.add(bitmap);
+		}
+	}
+
+	private static int byteCount(Bitmap bitmap){
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
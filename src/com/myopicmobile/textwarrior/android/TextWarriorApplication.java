@@ -10,6 +10,8 @@
 package com.myopicmobile.textwarrior.android;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
@@ -24,6 +26,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.AssetManager;
 import android.content.DialogInterface.OnCancelListener;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
@@ -62,6 +65,8 @@ import com.myopicmobile.textwarrior.common.FindThread;
 import com.myopicmobile.textwarrior.common.LanguageC;
 import com.myopicmobile.textwarrior.common.LanguageCpp;
 import com.myopicmobile.textwarrior.common.LanguageCsharp;
+import com.myopicmobile.textwarrior.common.LanguageDetector;
+import com.myopicmobile.textwarrior.common.LanguageDetector.GrammarOpener;
 import com.myopicmobile.textwarrior.common.LanguageJava;
 import com.myopicmobile.textwarrior.common.LanguageJavascript;
 import com.myopicmobile.textwarrior.common.LanguageNonProg;
@@ -69,10 +74,11 @@ import com.myopicmobile.textwarrior.common.LanguageObjectiveC;
 import com.myopicmobile.textwarrior.common.LanguagePHP;
 import com.myopicmobile.textwarrior.common.LanguagePython;
 import com.myopicmobile.textwarrior.common.LanguageRuby;
-import com.myopicmobile.textwarrior.common.Lexer;
+import com.myopicmobile.textwarrior.common.PieceTableBuffer;
 import com.myopicmobile.textwarrior.common.ProgressObserver;
 import com.myopicmobile.textwarrior.common.ProgressSource;
 import com.myopicmobile.textwarrior.common.ReadThread;
+import com.myopicmobile.textwarrior.common.RopeBuffer;
 import com.myopicmobile.textwarrior.common.RowListener;
 import com.myopicmobile.textwarrior.common.TextBuffer;
 import com.myopicmobile.textwarrior.common.TextWarriorException;
@@ -110,13 +116,14 @@ public class TextWarriorApplication extends Activity implements
 		createFindPanel();
 		createClipboardPanel();
 		restorePersistentOptions();
+		registerGrammars();
 
 		_recentFiles = new RecentFiles(this);
 
 		NonConfigurationState ncs = (NonConfigurationState) getLastNonConfigurationInstance();
 		if (savedInstanceState == null) {
 			/* Scenario 1 */
-			setModel(new TextBuffer());
+			setModel(createDocument(0));
 
 			Intent i = getIntent();
 			String action = i.getAction();
@@ -130,7 +137,7 @@ public class TextWarriorApplication extends Activity implements
 			restoreUiState((UiState) savedInstanceState.getParcelable(STATE_UI));
 		} else {
 			/* Scenario 3 */
-			setModel(new TextBuffer());
+			setModel(createDocument(0));
 
 			// Workaround to dismiss system-managed dialogs that were at the
 			// foreground when the process was force-killed
@@ -212,6 +219,33 @@ public class TextWarriorApplication extends Activity implements
 		_editField.setSelModeListener(this);
 	}
 
+	private final static String GRAMMAR_DIR = "grammars";
+	private final static String GRAMMAR_SUFFIX = ".tlg";
+
+	/**
+	 * Registers the compiled grammars in the assets for the file extensions
+	 * they are named after, like grammars/go.tlg for .go files. A grammar
+	 * is only read when a file of its language is first opened.
+	 */
+	private void registerGrammars() {
+		AssetManager assets = getApplicationContext().getAssets();
+		String[] names;
+		try {
+			names = assets.list(GRAMMAR_DIR);
+		} catch (IOException e) {
+			Log.w(LOG_TAG, "Cannot list grammars");
+			return;
+		}
+
+		for (String name : names) {
+			if (name.endsWith(GRAMMAR_SUFFIX)) {
+				LanguageDetector.registerGrammar(
+						new AssetGrammar(assets, GRAMMAR_DIR + "/" + name),
+						name.substring(0, name.length() - GRAMMAR_SUFFIX.length()));
+			}
+		}
+	}
+
 	private void restorePersistentOptions() {
 		PreferenceManager.getDefaultSharedPreferences(this)
 				.registerOnSharedPreferenceChangeListener(this);
@@ -359,7 +393,7 @@ public class TextWarriorApplication extends Activity implements
 	// ------------------------- Menu item callbacks -------------------------
 
 	private void onNew() {
-		setModel(new TextBuffer());
+		setModel(createDocument(0));
 		_filename = null;
 		updateTitle();
 	}
@@ -993,6 +1027,36 @@ public class TextWarriorApplication extends Activity implements
 		return ub.build();
 	}
 
+	/**
+	 * Files at least this size (in bytes) are stored in a piece table instead
+	 * of a gap buffer. Edits in a piece table do not move text around, so
+	 * editing far apart in a big file stays fast.
+	 */
+	private final static long PIECE_TABLE_MIN_FILE_SIZE = 1024 * 1024;
+	/**
+	 * Files at least this size (in bytes) are stored in a rope, which is
+	 * loaded in small chunks instead of one array as big as the file
+	 */
+	private final static long ROPE_MIN_FILE_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * Creates an empty document with the storage best suited for a file of
+	 * fileSize bytes
+	 */
+	private TextBuffer createDocument(long fileSize) {
+		TextBuffer buf;
+		if (fileSize >= ROPE_MIN_FILE_SIZE) {
+			buf = new RopeBuffer();
+		} else if (fileSize >= PIECE_TABLE_MIN_FILE_SIZE) {
+			buf = new PieceTableBuffer();
+		} else {
+			buf = new TextBuffer();
+		}
+		// use the current language until ReadThread detects the file's own
+		buf.setLanguage(_editField.createDocumentProvider().getLanguage());
+		return buf;
+	}
+
 	public void open(String filename) {
 		_lastSelectedFile = filename;
 
@@ -1006,7 +1070,7 @@ public class TextWarriorApplication extends Activity implements
 				EncodingScheme.LINE_BREAK_AUTO);
 
 		File inputFile = new File(filename);
-		_newDoc = new TextBuffer();
+		_newDoc = createDocument(inputFile.length());
 		_taskRead = new ReadThread(inputFile, _newDoc, encoding, eolChar);
 		_taskRead.registerObserver(this); // so that readTask can notify
 											// TextWarriorApplication when done
@@ -1129,7 +1193,11 @@ public class TextWarriorApplication extends Activity implements
 					_filename = _lastSelectedFile;
 					updateTitle();
 					_recentFiles.addRecentFile(_lastSelectedFile);
-					_editField.setDirty(false);
+					// edits made while saving are not in the file
+					if (_taskWrite.getVersion() == _editField
+							.createDocumentProvider().getVersion()) {
+						_editField.setDirty(false);
+					}
 					Toast.makeText(TextWarriorApplication.this,
 							R.string.dialog_file_save_success,
 							Toast.LENGTH_SHORT).show();
@@ -1141,9 +1209,15 @@ public class TextWarriorApplication extends Activity implements
 						|| requestCode == ProgressSource.FIND_BACKWARDS) {
 					final int foundIndex = ((FindResults) result).foundOffset;
 					final int length = ((FindResults) result).searchTextLength;
+					final boolean isCurrent = ((FindResults) result).version
+							== _editField.createDocumentProvider().getVersion();
 
 					if (foundIndex != -1) {
-						_editField.setSelectionRange(foundIndex, length);
+						// if the text was edited during the search, foundIndex
+						// may no longer point at the search text
+						if (isCurrent) {
+							_editField.setSelectionRange(foundIndex, length);
+						}
 					} else {
 						Toast.makeText(TextWarriorApplication.this,
 								R.string.dialog_find_no_results,
@@ -1353,39 +1427,28 @@ public class TextWarriorApplication extends Activity implements
 				getString(R.string.settings_syntax_none));
 
 		if (lang.equals(getString(R.string.settings_syntax_c))) {
-			Lexer.setLanguage(LanguageC.getCharacterEncodings());
-			_editField.respan();
+			_editField.setLanguage(LanguageC.getCharacterEncodings());
 		} else if (lang.equals(getString(R.string.settings_syntax_cpp))) {
-			Lexer.setLanguage(LanguageCpp.getCharacterEncodings());
-			_editField.respan();
+			_editField.setLanguage(LanguageCpp.getCharacterEncodings());
 		} else if (lang.equals(getString(R.string.settings_syntax_csharp))) {
-			Lexer.setLanguage(LanguageCsharp.getCharacterEncodings());
-			_editField.respan();
+			_editField.setLanguage(LanguageCsharp.getCharacterEncodings());
 		} else if (lang.equals(getString(R.string.settings_syntax_java))) {
-			Lexer.setLanguage(LanguageJava.getCharacterEncodings());
-			_editField.respan();
+			_editField.setLanguage(LanguageJava.getCharacterEncodings());
 		} else if (lang.equals(getString(R.string.settings_syntax_javascript))) {
-			Lexer.setLanguage(LanguageJavascript.getCharacterEncodings());
-			_editField.respan();
+			_editField.setLanguage(LanguageJavascript.getCharacterEncodings());
 		} else if (lang.equals(getString(R.string.settings_syntax_objc))) {
-			Lexer.setLanguage(LanguageObjectiveC.getCharacterEncodings());
-			_editField.respan();
+			_editField.setLanguage(LanguageObjectiveC.getCharacterEncodings());
 		} else if (lang.equals(getString(R.string.settings_syntax_php))) {
-			Lexer.setLanguage(LanguagePHP.getCharacterEncodings());
-			_editField.respan();
+			_editField.setLanguage(LanguagePHP.getCharacterEncodings());
 		} else if (lang.equals(getString(R.string.settings_syntax_python))) {
-			Lexer.setLanguage(LanguagePython.getCharacterEncodings());
-			_editField.respan();
+			_editField.setLanguage(LanguagePython.getCharacterEncodings());
 		} else if (lang.equals(getString(R.string.settings_syntax_ruby))) {
-			Lexer.setLanguage(LanguageRuby.getCharacterEncodings());
-			_editField.respan();
+			_editField.setLanguage(LanguageRuby.getCharacterEncodings());
 		} else {
 			TextWarriorException.assertVerbose(
 					lang.equals(getString(R.string.settings_syntax_none)),
 					"Unsupported language set for syntax highlighting");
-			Lexer.setLanguage(LanguageNonProg.getCharacterEncodings());
-			_editField.cancelSpanning();
-			_editField.createDocumentProvider().clearSpans();
+			_editField.setLanguage(LanguageNonProg.getCharacterEncodings());
 		}
 	}
 
@@ -1600,6 +1663,24 @@ public class TextWarriorApplication extends Activity implements
 		}
 	}
 
+	/**
+	 * A compiled grammar in the assets. It does not refer to the activity,
+	 * which LanguageDetector would otherwise keep alive.
+	 */
+	private static class AssetGrammar implements GrammarOpener {
+		private final AssetManager _assets;
+		private final String _path;
+
+		AssetGrammar(AssetManager assets, String path) {
+			_assets = assets;
+			_path = path;
+		}
+
+		public InputStream open() throws IOException {
+			return _assets.open(_path);
+		}
+	}
+
 	/**
 	 * Contains application state that is expensive to reconstruct after a
 	 * configuration change. Also contains non-UI state.
@@ -21,7 +21,7 @@ public class AnalyzeStatisticsThread extends Thread implements ProgressSource{
 	
 	public AnalyzeStatisticsThread(DocumentProvider hDoc,
 			int start, int end){
-		_hDoc = hDoc;
+		_hDoc = hDoc.snapshot();
 		_start = start;
 		_end = end;
         _abortFlag = new Flag();
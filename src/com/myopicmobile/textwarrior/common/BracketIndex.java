@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * The positions of the brackets (), [] and {} in a text, outside of strings
+ * and comments, and how they nest. The Lexer builds one with every lex.
+ *
+ * Brackets are numbered in order of position. Each bracket knows its
+ * matching bracket and the innermost pair of brackets enclosing it, so
+ * finding the match of a bracket or the block around an offset is a binary
+ * search.
+ *
+ * A BracketIndex describes the version of the text that was lexed, and
+ * never changes. Check getVersion() against the text before using it.
+ */
+public class BracketIndex{
+	/** Bracket positions, with the bracket char as the span type */
+	private final SpanArray _brackets;
+	/** Index of the matching bracket, or -1 if there is none */
+	private final int[] _match;
+	/**
+	 * Index of the innermost open bracket that encloses the pair of
+	 * brackets, or -1 if there is none
+	 */
+	private final int[] _parent;
+	private final long _version;
+
+	/**
+	 * @param brackets The position of each bracket, in order, with the
+	 * 		bracket char as the span type. It must not be modified afterwards.
+	 * @param version Version of the text that brackets were found in
+	 */
+	public BracketIndex(SpanArray brackets, long version){
+		_brackets = brackets;
+		_version = version;
+
+		int count = brackets.size();
+		_match = new int[count];
+		_parent = new int[count];
+		// open brackets not matched yet, innermost last
+		int[] stack = new int[count];
+		int depth = 0;
+		for(int i = 0; i < count; ++i){
+			_match[i] = -1;
+			char c = (char) brackets.getType(i);
+			if(isOpen(c)){
+				_parent[i] = (depth > 0) ? stack[depth - 1] : -1;
+				stack[depth++] = i;
+				continue;
+			}
+
+			// a close bracket closes the innermost open bracket of its kind,
+			// and any unclosed brackets inside it are left unmatched
+			int open = depth - 1;
+			while(open >= 0 && brackets.getType(stack[open]) != openOf(c)){
+				--open;
+			}
+			if(open >= 0){
+				_match[i] = stack[open];
+				_match[stack[open]] = i;
+				depth = open;
+			}
+			_parent[i] = (depth > 0) ? stack[depth - 1] : -1;
+		}
+	}
+
+	public static boolean isBracket(char c){
+		return (c == '(' || c == ')' || c == '[' || c == ']' ||
+				c == '{' || c == '}');
+	}
+
+	public static boolean isOpen(char c){
+		return (c == '(' || c == '[' || c == '{');
+	}
+
+	private static int openOf(char close){
+		switch(close){
+		case ')':
+			return '(';
+		case ']':
+			return '[';
+		default:
+			return '{';
+		}
+	}
+
+	public long getVersion(){
+		return _version;
+	}
+
+	/**
+	 * Returns the bracket positions, with the bracket char as the span type.
+	 * The returned SpanArray must not be modified.
+	 */
+	SpanArray getBrackets(){
+		return _brackets;
+	}
+
+	public int size(){
+		return _brackets.size();
+	}
+
+	public int getPosition(int bracketIndex){
+		return _brackets.getStart(bracketIndex);
+	}
+
+	public char getChar(int bracketIndex){
+		return (char) _brackets.getType(bracketIndex);
+	}
+
+	/**
+	 * Returns the index of the bracket matching the bracketIndex-th bracket,
+	 * or -1 if it is unmatched
+	 */
+	public int getMatch(int bracketIndex){
+		return _match[bracketIndex];
+	}
+
+	/**
+	 * Returns the index of the bracket at charOffset, or -1 if there is none
+	 */
+	public int findBracket(int charOffset){
+		int i = _brackets.countBefore(charOffset);
+		return (i < _brackets.size() && _brackets.getStart(i) == charOffset)
+				? i : -1;
+	}
+
+	/**
+	 * Returns the position of the bracket matching the one at charOffset,
+	 * or -1 if there is no bracket at charOffset or it is unmatched
+	 */
+	public int findMatchingPosition(int charOffset){
+		int i = findBracket(charOffset);
+		if(i < 0 || _match[i] < 0){
+			return -1;
+		}
+		return _brackets.getStart(_match[i]);
+	}
+
+	/**
+	 * Returns the index of the innermost open bracket before charOffset
+	 * that is not closed before charOffset, or -1 if there is none
+	 */
+	public int findEnclosing(int charOffset){
+		int i = _brackets.countBefore(charOffset) - 1;
+		if(i < 0){
+			return -1;
+		}
+		if(isOpen(getChar(i)) && (_match[i] < 0 ||
+				_brackets.getStart(_match[i]) >= charOffset)){
+			return i;
+		}
+		return _parent[i];
+	}
+}
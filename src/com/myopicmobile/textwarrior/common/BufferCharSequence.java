@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * A read-only CharSequence over a range of a TextBuffer.
+ * 
+ * The chars are read from the TextBuffer when requested instead of being
+ * copied when the view is created, so the view reflects any edits made to
+ * the buffer after its creation. Use it only until the next edit.
+ *
+ * Like String, indexes outside the view throw IndexOutOfBoundsException
+ * instead of reading the text around it.
+ */
+public class BufferCharSequence implements CharSequence{
+	private final TextBuffer _buf;
+	private final int _start;
+	private final int _end;
+
+	/**
+	 * Creates a view of the chars of buf from start (inclusive) to end
+	 * (exclusive)
+	 */
+	public BufferCharSequence(TextBuffer buf, int start, int end){
+		_buf = buf;
+		_start = start;
+		_end = end;
+	}
+
+	@Override
+	public char charAt(int index){
+		if(index < 0 || index >= length()){
+			throw new IndexOutOfBoundsException("index " + index +
+					", length " + length());
+		}
+		return _buf.charAt(_start + index);
+	}
+
+	@Override
+	public int length(){
+		return _end - _start;
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end){
+		checkRange(start, end);
+		return new BufferCharSequence(_buf, _start + start, _start + end);
+	}
+
+	/**
+	 * Copies the chars of this view from srcBegin (inclusive) to srcEnd
+	 * (exclusive) into dst, starting at dstBegin
+	 */
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		checkRange(srcBegin, srcEnd);
+		_buf.getChars(_start + srcBegin, _start + srcEnd, dst, dstBegin);
+	}
+
+	/**
+	 * Throws IndexOutOfBoundsException unless [start, end) is within the view
+	 */
+	private void checkRange(int start, int end){
+		if(start < 0 || end > length() || start > end){
+			throw new IndexOutOfBoundsException("start " + start + ", end " +
+					end + ", length " + length());
+		}
+	}
+
+	@Override
+	public String toString(){
+		char[] chars = new char[length()];
+		getChars(0, chars.length, chars, 0);
+		return new String(chars);
+	}
+}
@@ -202,20 +202,37 @@ public class CharEncodingUtils {
 	 */
 	public Pair readAndConvert(InputStream byteStream,
 	char[] buffer, String encoding, String EOLchar, Flag abort)
+	throws IOException{
+		return readAndConvert(byteStream, buffer, null, encoding, EOLchar, abort);
+	}
+
+	/**
+	 * Same as readAndConvert(InputStream, char[], String, String, Flag),
+	 * except that the converted text is handed to listener whenever chunk is
+	 * full, instead of accumulating in one buffer big enough for all of it.
+	 * 
+	 * @param chunk Buffer that is reused for each chunk. Must hold at least
+	 * 			2 chars, so that a surrogate pair is never split across chunks
+	 * @param listener Receives each chunk of converted text
+	 * @return Pair(size of converted text, number of lines)
+	 */
+	public Pair readAndConvert(InputStream byteStream,
+	char[] chunk, ChunkListener listener, String encoding, String EOLchar,
+	Flag abort)
 	throws IOException{
 		_unitsDone = 0;
 
 		if(encoding.equals(EncodingScheme.TEXT_ENCODING_LATIN1)){
-			return Latin1toUTF16BE(byteStream, buffer, EOLchar, abort);
+			return Latin1toUTF16BE(byteStream, chunk, listener, EOLchar, abort);
 		}
 		else if(encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16BE)){
-			return UTF16toUTF16BE(byteStream, buffer, true, EOLchar, abort);
+			return UTF16toUTF16BE(byteStream, chunk, listener, true, EOLchar, abort);
 		}
 		else if(encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16LE)){
-			return UTF16toUTF16BE(byteStream, buffer, false, EOLchar, abort);
+			return UTF16toUTF16BE(byteStream, chunk, listener, false, EOLchar, abort);
 		}
 		else if(encoding.equals(EncodingScheme.TEXT_ENCODING_UTF8)){
-			return UTF8toUTF16BE(byteStream, buffer, EOLchar, abort);
+			return UTF8toUTF16BE(byteStream, chunk, listener, EOLchar, abort);
 		}
 		else{
 			TextWarriorException.assertVerbose(false,
@@ -225,14 +242,21 @@ public class CharEncodingUtils {
 	}
 	
 	private Pair Latin1toUTF16BE(InputStream byteStream,
-	char[] buffer, String EOLchar, Flag abort)
+	char[] buffer, ChunkListener listener, String EOLchar, Flag abort)
 	throws IOException{
 		int currCharRead;
 		int lineCount = 1;
 		int totalChar = 0;
+		int flushedChar = 0;
+		int flushLimit = flushLimit(buffer, listener);
 	
 		while((currCharRead = byteStream.read()) != -1 && !abort.isSet()){
 			++_unitsDone;
+			if(totalChar > flushLimit){
+				listener.onChunk(buffer, totalChar);
+				flushedChar += totalChar;
+				totalChar = 0;
+			}
 
 			if (currCharRead == '\r'){
 				if(EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
@@ -249,15 +273,21 @@ public class CharEncodingUtils {
 			buffer[totalChar++] = (char) currCharRead;
 		}
 
-		return new Pair(totalChar, lineCount);
+		if(listener != null && totalChar > 0){
+			listener.onChunk(buffer, totalChar);
+		}
+		return new Pair(flushedChar + totalChar, lineCount);
 	}
 
 	private Pair UTF16toUTF16BE(InputStream byteStream,
-	char[] buffer, boolean isBigEndian, String EOLchar, Flag abort)
+	char[] buffer, ChunkListener listener, boolean isBigEndian,
+	String EOLchar, Flag abort)
 	throws IOException{
 		int byte0, byte1;
 		int lineCount = 1;
 		int totalChar = 0;
+		int flushedChar = 0;
+		int flushLimit = flushLimit(buffer, listener);
 		char currCharRead;
 
 		byte0 = stripByteOrderMark(byteStream);
@@ -265,6 +295,11 @@ public class CharEncodingUtils {
 		&& (byte1 = byteStream.read()) != -1
 		&& !abort.isSet()){
 			_unitsDone += 2;
+			if(totalChar > flushLimit){
+				listener.onChunk(buffer, totalChar);
+				flushedChar += totalChar;
+				totalChar = 0;
+			}
 			//TODO place conditional outside loop
 			if(isBigEndian){
 				currCharRead = (char) (byte1 | (byte0 << 8));
@@ -291,9 +326,25 @@ public class CharEncodingUtils {
 			byte0 = byteStream.read();
 		}
 
-		return new Pair(totalChar, lineCount);
+		if(listener != null && totalChar > 0){
+			listener.onChunk(buffer, totalChar);
+		}
+		return new Pair(flushedChar + totalChar, lineCount);
 	}
 	
+	/**
+	 * Returns the number of chars that buffer can fill up to before it has to
+	 * be handed to listener. Up to 2 chars are added to buffer at a time.
+	 */
+	private static int flushLimit(char[] buffer, ChunkListener listener){
+		if(listener == null){
+			return Integer.MAX_VALUE; // buffer is big enough for all the text
+		}
+		TextWarriorException.assertVerbose(buffer.length >= 2,
+			"Chunk buffer is too small");
+		return buffer.length - 2;
+	}
+
 	public void writeAndConvert(OutputStream byteStream,
 	DocumentProvider hDoc, String encoding, String EOLchar, Flag abort)
 	throws IOException{
@@ -321,24 +372,28 @@ public class CharEncodingUtils {
 	private void UTF16BEtoLatin1(OutputStream byteStream,
 	DocumentProvider hDoc, String EOLchar, Flag abort)
 	throws IOException{
-		while(hDoc.hasNext() && !abort.isSet()){
-			char curr = hDoc.next();
-	    	++_unitsDone;
-	    	
-	    	if(curr == LanguageCFamily.EOF){
-	    		break;
-	    	}
+		Segment segment = new Segment();
+		while(!abort.isSet() && hDoc.nextSegment(segment)){
+			char[] chars = segment.array;
+			for(int i = segment.start; i < segment.end; ++i){
+				char curr = chars[i];
+				++_unitsDone;
 
-			// convert '\n' to desired line terminator symbol
-	    	if (curr == '\n' &&
-	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
-		    	byteStream.write('\r');
-	    	}
-	    	else if (curr == '\n' &&
-	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
-	    		curr = '\r';
-	    	}
-	    	byteStream.write(curr);
+				if(curr == LanguageCFamily.EOF){
+					return;
+				}
+
+				// convert '\n' to desired line terminator symbol
+				if (curr == '\n' &&
+				EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
+					byteStream.write('\r');
+				}
+				else if (curr == '\n' &&
+				EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
+					curr = '\r';
+				}
+				byteStream.write(curr);
+			}
 		}
 	}
 	
@@ -349,37 +404,41 @@ public class CharEncodingUtils {
 				: EncodingScheme.TEXT_ENCODING_UTF16LE;
 		writeByteOrderMark(byteStream, bom);
 
-		while(hDoc.hasNext() && !abort.isSet()){
-			char curr = hDoc.next();
-	    	++_unitsDone;
+		Segment segment = new Segment();
+		while(!abort.isSet() && hDoc.nextSegment(segment)){
+			char[] chars = segment.array;
+			for(int i = segment.start; i < segment.end; ++i){
+				char curr = chars[i];
+				++_unitsDone;
 
-	    	if(curr == LanguageCFamily.EOF){
-	    		break;
-	    	}
+				if(curr == LanguageCFamily.EOF){
+					return;
+				}
 
-			// convert '\n' to desired line terminator symbol
-	    	if (curr == '\n' &&
-	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
-	    		if(isBigEndian){
-		    		byteStream.write(0); byteStream.write('\r');
-		    	}
-	    		else{
-		    		byteStream.write('\r'); byteStream.write(0);
-	    		}
-	    	}
-	    	else if (curr == '\n' &&
-	    	EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
-	    		curr = '\r';
-	    	}
-			//TODO place conditional outside loop
-	    	if(isBigEndian){
-	    		byteStream.write(curr >>> 8);
-	    		byteStream.write(curr & 0xFF);
-	    	}
-	    	else{
-	    		byteStream.write(curr & 0xFF);
-	    		byteStream.write(curr >>> 8);
-	    	}
+				// convert '\n' to desired line terminator symbol
+				if (curr == '\n' &&
+				EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
+					if(isBigEndian){
+						byteStream.write(0); byteStream.write('\r');
+					}
+					else{
+						byteStream.write('\r'); byteStream.write(0);
+					}
+				}
+				else if (curr == '\n' &&
+				EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
+					curr = '\r';
+				}
+				//TODO place conditional outside loop
+				if(isBigEndian){
+					byteStream.write(curr >>> 8);
+					byteStream.write(curr & 0xFF);
+				}
+				else{
+					byteStream.write(curr & 0xFF);
+					byteStream.write(curr >>> 8);
+				}
+			}
 		}
 	}
 	
@@ -411,18 +470,25 @@ public class CharEncodingUtils {
 
 	
 	private Pair UTF8toUTF16BE(InputStream byteStream,
-	char[] buffer, String EOLchar, Flag abort)
+	char[] buffer, ChunkListener listener, String EOLchar, Flag abort)
 	throws IOException{
 		int currByte;
 		int utf32Char = 0;
 		int lineCount = 1;
 		int totalChar = 0;
+		int flushedChar = 0;
+		int flushLimit = flushLimit(buffer, listener);
 		int state = 0;
 		byte mask = 0;
 
 		currByte = stripByteOrderMark(byteStream);
 		while(currByte != -1 && !abort.isSet()){
 			++_unitsDone;
+			if(totalChar > flushLimit){
+				listener.onChunk(buffer, totalChar);
+				flushedChar += totalChar;
+				totalChar = 0;
+			}
 			state = states[state][currByte >>> 3];
 			
 			switch(state){
@@ -486,59 +552,82 @@ public class CharEncodingUtils {
 			currByte = byteStream.read();
 		}
 
-		return new Pair(totalChar, lineCount);
+		if(listener != null && totalChar > 0){
+			listener.onChunk(buffer, totalChar);
+		}
+		return new Pair(flushedChar + totalChar, lineCount);
 	}
 	
 	private void UTF16BEtoUTF8(OutputStream byteStream,
 	DocumentProvider hDoc, String EOLchar, Flag abort)
 	throws IOException{
 		writeByteOrderMark(byteStream, EncodingScheme.TEXT_ENCODING_UTF8);
-		while(hDoc.hasNext() && !abort.isSet()){
-			int utf32Char = 0;
-			char curr = hDoc.next();
-	    	++_unitsDone;
+		Segment segment = new Segment();
+		// first half of a surrogate pair, which may be at the end of a segment
+		int highSurrogate = -1;
+		while(!abort.isSet() && hDoc.nextSegment(segment)){
+			char[] chars = segment.array;
+			for(int i = segment.start; i < segment.end; ++i){
+				int utf32Char = 0;
+				char curr = chars[i];
+				++_unitsDone;
+
+				if(curr == LanguageCFamily.EOF){
+					return;
+				}
+
+				if(highSurrogate != -1){
+					// combine surrogate pair to UTF-32 value
+					utf32Char = (highSurrogate-0xD7C0) << 10;
+					utf32Char += curr & 0x03FF;
+					highSurrogate = -1;
+				}
+				else if(curr < 0xD800 || curr > 0xDFFF){
+					utf32Char = curr;
+				}
+				else{
+					highSurrogate = curr;
+					continue;
+				}
 
-	    	if(curr == LanguageCFamily.EOF){
-	    		break;
-	    	}
-	    	
-			if(curr < 0xD800 || curr > 0xDFFF){
-				utf32Char = curr;
+				writeUTF8(byteStream, utf32Char, EOLchar);
 			}
-			else{
-				// combine surrogate pair to UTF-32 value
-				utf32Char = (curr-0xD7C0) << 10;
-				utf32Char += hDoc.next() & 0x03FF;
+		}
+	}
+
+	/**
+	 * Writes the UTF-8 bytes of utf32Char
+	 */
+	private void writeUTF8(OutputStream byteStream, int utf32Char,
+	String EOLchar)
+	throws IOException{
+		// Encode variable number of UTF-8 bytes depending on the UTF-32 value
+		if (utf32Char < 0x80){
+			// convert '\n' to desired line terminator symbol
+			if (utf32Char == '\n' &&
+			EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
+				byteStream.write('\r');
 			}
-	    	
-			// Encode variable number of UTF-8 bytes depending on the UTF-32 value
-		    if (utf32Char < 0x80){
-		    	// convert '\n' to desired line terminator symbol
-		    	if (utf32Char == '\n' &&
-		    	EOLchar.equals(EncodingScheme.LINE_BREAK_CRLF)){
-					byteStream.write('\r');
-		    	}
-		    	else if (utf32Char == '\n' &&
-		    	EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
-		    		utf32Char = '\r';
-		    	}
-		    	byteStream.write(utf32Char);
-		    }
-		    else if (utf32Char < 0x800){
-		    	byteStream.write((utf32Char >> 6) + 0xC0);
-		    	byteStream.write((utf32Char & 0x3F) + 0x80);
-		    }
-		    else if (utf32Char < 0x10000){
-		    	byteStream.write((utf32Char >> 12) + 0xE0);
-		    	byteStream.write(((utf32Char >> 6) & 0x3F) + 0x80);
-		    	byteStream.write((utf32Char & 0x3F) + 0x80);
-		    }
-		    else{
-		    	byteStream.write((utf32Char >> 18) + 0xF0);
-		    	byteStream.write(((utf32Char >> 12) & 0x3F) + 0x80);
-		    	byteStream.write(((utf32Char >> 6) & 0x3F) + 0x80);
-		    	byteStream.write((utf32Char & 0x3F) + 0x80);
-		    }
+			else if (utf32Char == '\n' &&
+			EOLchar.equals(EncodingScheme.LINE_BREAK_CR)){
+				utf32Char = '\r';
+			}
+			byteStream.write(utf32Char);
+		}
+		else if (utf32Char < 0x800){
+			byteStream.write((utf32Char >> 6) + 0xC0);
+			byteStream.write((utf32Char & 0x3F) + 0x80);
+		}
+		else if (utf32Char < 0x10000){
+			byteStream.write((utf32Char >> 12) + 0xE0);
+			byteStream.write(((utf32Char >> 6) & 0x3F) + 0x80);
+			byteStream.write((utf32Char & 0x3F) + 0x80);
+		}
+		else{
+			byteStream.write((utf32Char >> 18) + 0xF0);
+			byteStream.write(((utf32Char >> 12) & 0x3F) + 0x80);
+			byteStream.write(((utf32Char >> 6) & 0x3F) + 0x80);
+			byteStream.write((utf32Char & 0x3F) + 0x80);
 		}
 	}
 
@@ -564,32 +653,38 @@ public class CharEncodingUtils {
 		_unitsDone = 0;
 		int whiteSpaceCount = 0;
 		int lines = 1;
-		LanguageCFamily charSet = Lexer.getLanguage();
+		LanguageCFamily charSet = src.getLanguage();
 		
 		char firstChar = src.charAt(start);
 		//whether the current char and possibly the ones before are whitespace
 		boolean whiteSpaceRun = charSet.isWhitespace(firstChar);
 		
+		Segment segment = new Segment();
 		src.seekChar(start);
-		while(src.hasNext() && _unitsDone < (end-start)
-				&& !abort.isSet()){
-			char c = src.next();
-			++_unitsDone;
+		while(_unitsDone < (end-start) && !abort.isSet()
+				&& src.nextSegment(segment)){
+			char[] chars = segment.array;
+			int segmentEnd = Math.min(segment.end,
+					segment.start + (end-start) - _unitsDone);
+			for(int i = segment.start; i < segmentEnd; ++i){
+				char c = chars[i];
+				++_unitsDone;
 
-			if(c == '\n'){
-				++lines;
-			}
-			
-			if(charSet.isWhitespace(c)){
-				++whiteSpaceCount;
+				if(c == '\n'){
+					++lines;
+				}
 				
-				if(!whiteSpaceRun){
-					whiteSpaceRun = true;
-					++wordCount;
+				if(charSet.isWhitespace(c)){
+					++whiteSpaceCount;
+					
+					if(!whiteSpaceRun){
+						whiteSpaceRun = true;
+						++wordCount;
+					}
+				}
+				else{
+					whiteSpaceRun = false;
 				}
-			}
-			else{
-				whiteSpaceRun = false;
 			}
 		}
 		
@@ -597,7 +692,7 @@ public class CharEncodingUtils {
 			// the final word didn't end with whitespace
 			++wordCount;
 		}
-		if(!src.hasNext() && _unitsDone > 0){
+		if(start + _unitsDone == src.docLength() && _unitsDone > 0){
 			// exclude the terminal EOF character
 			--_unitsDone;
 			--whiteSpaceCount;
@@ -622,4 +717,15 @@ public class CharEncodingUtils {
 			lineCount = lines;
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Receives text converted by readAndConvert() one chunk at a time
+	 */
+	public interface ChunkListener{
+		/**
+		 * Called with the next length chars of converted text, in chunk.
+		 * chunk is reused once this method returns.
+		 */
+		public void onChunk(char[] chunk, int length);
+	}
+}
@@ -8,15 +8,14 @@
  */
 package com.myopicmobile.textwarrior.common;
 
-import java.util.List;
-
 /**
  * Iterator class to access characters of the underlying text buffer.
  * 
  * The usage procedure is as follows:
  * 1. Call seekLine(lineNumber) to mark the position to start iterating
  * 2. Call hasNext() to see if there are any more char
- * 3. Call next() to get the next char
+ * 3. Call next() to get the next char, or nextSegment() to get the next
+ *    run of chars that are stored together
  *
  * If there is more than 1 DocumentProvider pointing to the same Document,
  * changes made by one DocumentProvider will not cause other DocumentProviders
@@ -42,6 +41,52 @@ public class DocumentProvider {
 		_theText = rhs._theText;
 	}
 	
+	/**
+	 * Returns a DocumentProvider over an immutable copy of the current text.
+	 * 
+	 * Worker threads should read the copy instead of this DocumentProvider,
+	 * so that they do not contend with edits made in the meantime. 
+	 * The copy can be checked for staleness by comparing getVersion() of
+	 * both DocumentProviders.
+	 */
+	public DocumentProvider snapshot(){
+		return new DocumentProvider(_theText.snapshot());
+	}
+	
+	/**
+	 * Returns the version of the text, which changes whenever the text does
+	 */
+	public long getVersion(){
+		return _theText.getVersion();
+	}
+
+	/**
+	 * Returns the id of the underlying text buffer. Snapshots have the id
+	 * of the buffer they were taken from, so results computed from an
+	 * earlier snapshot only apply to texts with the same id.
+	 */
+	public long getTextId(){
+		return _theText.getId();
+	}
+
+	/**
+	 * Finds the range of text that differs between older and this
+	 * DocumentProvider, both of which should be snapshots.
+	 * 
+	 * @return Pair.first is the offset of the first char that differs, and
+	 * 		Pair.second is the number of chars at the end of the text that are
+	 * 		the same in both. If either is not a snapshot, the whole text is
+	 * 		treated as changed.
+	 */
+	public Pair changesSince(DocumentProvider older){
+		if(_theText instanceof TextSnapshot
+				&& older._theText instanceof TextSnapshot){
+			return ((TextSnapshot) _theText).changesSince(
+					(TextSnapshot) older._theText);
+		}
+		return new Pair(0, 0);
+	}
+	
 	/**
 	 * Get a substring of up to maxChars length, starting from charOffset
 	 */
@@ -49,6 +94,22 @@ public class DocumentProvider {
 		return _theText.subSequence(charOffset, maxChars);
 	}
 	
+	/**
+	 * Get a view of up to maxChars length, starting from charOffset, without
+	 * copying the chars. The view is only meaningful until the next edit.
+	 */
+	public BufferCharSequence getCharSequence(int charOffset, int maxChars){
+		return _theText.getCharSequence(charOffset, maxChars);
+	}
+	
+	/**
+	 * Copies the chars from srcBegin (inclusive) to srcEnd (exclusive) into
+	 * dst, starting at dstBegin
+	 */
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		_theText.getChars(srcBegin, srcEnd, dst, dstBegin);
+	}
+	
 	public char charAt(int charOffset){
 		if(_theText.isValid(charOffset)){
 			return _theText.charAt(charOffset);
@@ -118,6 +179,25 @@ public class DocumentProvider {
 		return nextChar;
 	}
 	
+	/**
+	 * Sets seg to the chars from the iterator position up to the next break
+	 * in their storage, and moves the iterator past them.
+	 * 
+	 * Scanning a segment at a time avoids the locking and index
+	 * translation that next() does for every char.
+	 * 
+	 * @return false if there are no more chars, in which case seg is
+	 * 		unchanged
+	 */
+	public boolean nextSegment(Segment seg){
+		if(!hasNext()){
+			return false;
+		}
+		_theText.getSegment(_currIndex, seg);
+		_currIndex += seg.length();
+		return true;
+	}
+	
 	/**
 	 * Inserts c into the document, shifting existing characters from 
 	 * insertionPoint (inclusive) to the right
@@ -174,6 +254,14 @@ public class DocumentProvider {
 		_theText.endBatchEdit();
 	}
 	
+	/**
+	 * Releases spare memory held by the underlying text buffer.
+	 * Should only be called when the document is not being edited
+	 */
+	public void compact(){
+		_theText.compact();
+	}
+	
 	/**
 	 * Returns the number of characters in the row specified by rowNumber
 	 */
@@ -223,7 +311,7 @@ public class DocumentProvider {
 	/**
 	 * Beware: Not thread-safe!
 	 */
-	public List<Pair> getSpans(){
+	public SpanArray getSpans(){
 		return _theText.getSpans();
 	}
 
@@ -232,12 +320,25 @@ public class DocumentProvider {
 	 * Spans are continuous sequences of characters that have the same format 
 	 * like color, font, etc.
 	 * 
-	 * @param spans A collection of Pairs, where Pair.first is the start 
-	 * 		position of the token, and Pair.second is the type of the token.
+	 * @param spans The start position and type of each token, in order
 	 */
-	public void setSpans(List<Pair> spans){
+	public void setSpans(SpanArray spans){
 		_theText.setSpans(spans);
 	}
+
+	/**
+	 * Returns the language of the document, which determines how it is lexed
+	 */
+	public LanguageCFamily getLanguage(){
+		return _theText.getLanguage();
+	}
+
+	/**
+	 * Sets the language of the document. Other documents are not affected.
+	 */
+	public void setLanguage(LanguageCFamily language){
+		_theText.setLanguage(language);
+	}
 	
 	public boolean canUndo() {
 		return _theText.canUndo();
@@ -38,7 +38,8 @@ public class FindThread extends Thread implements ProgressSource{
 			String searchText, int start,
 			boolean isCaseSensitive, boolean isWholeWord){
 		_requestCode = requestCode;
-        _src = src;
+        // search an immutable copy, so that editing can go on meanwhile
+        _src = src.snapshot();
         _start = start;
         _searchText = searchText;
         _isCaseSensitive = isCaseSensitive;
@@ -75,6 +76,7 @@ public class FindThread extends Thread implements ProgressSource{
 	public void run(){
 		_isDone = false;
 		_results = new FindResults(_searchText.length());
+		_results.version = _src.getVersion();
 		
 		switch(_requestCode){
 		case ProgressSource.FIND:
@@ -105,6 +107,7 @@ public class FindThread extends Thread implements ProgressSource{
 					_isWholeWord);
 			_results.replacementCount = replaceResult.getFirst();
 			_results.newStartPosition = replaceResult.getSecond();
+			_results.version = _src.getVersion();
 	    	notifyComplete(_results);
 			break;
 		default:
@@ -185,6 +188,8 @@ public class FindThread extends Thread implements ProgressSource{
 		public int replacementCount = 0;
 		public int newStartPosition = 0;
 		public int searchTextLength = 0; //for convenience
+		/** Version of the document searched, after any replacements made */
+		public long version = 0;
 		
 		public FindResults(int searchLength){
 			searchTextLength = searchLength;
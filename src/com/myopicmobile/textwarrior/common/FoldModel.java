@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The collapsed folds of a document, and the mapping between document rows
+ * and the screen rows that are left after hiding the folded rows.
+ *
+ * A fold is a pair of brackets on different rows. Collapsing it hides the
+ * rows between the row of the open bracket, which stays visible as the
+ * header of the fold, and the row of the close bracket. Folds can be nested.
+ *
+ * Folds are anchored at the char offsets of their brackets. When the text
+ * changes, folds after the change are moved with the text, and folds that
+ * contain the change are expanded. Call sync() before using the mapping
+ * after the text may have changed.
+ *
+ * Mapping rows is a binary search over the hidden row ranges, so hidden
+ * rows cost nothing to draw, measure or scroll past.
+ */
+public class FoldModel{
+	/** Collapsed folds, with the offsets of their brackets */
+	private final ArrayList<Pair> _folds = new ArrayList<Pair>();
+	/** The text the fold offsets refer to, or null if there are no folds */
+	private DocumentProvider _text = null;
+
+	/** Disjoint ranges of hidden rows, inclusive, in order */
+	private int[] _hiddenStarts = new int[0];
+	private int[] _hiddenEnds = new int[0];
+	/** Number of rows hidden by the ranges before each range */
+	private int[] _hiddenBefore = new int[0];
+
+	public boolean isEmpty(){
+		return _folds.isEmpty();
+	}
+
+	/**
+	 * Moves the folds along with the changes made to doc since the last
+	 * call, expanding the folds that contain a change
+	 *
+	 * @return true if the screen rows changed
+	 */
+	public boolean sync(DocumentProvider doc){
+		if(_text == null || _text.getVersion() == doc.getVersion()){
+			return false;
+		}
+
+		DocumentProvider text = doc.snapshot();
+		Pair change = text.changesSince(_text);
+		int oldLength = _text.docLength();
+		int oldChangeEnd = oldLength - change.getSecond();
+		int lengthChange = text.docLength() - oldLength;
+
+		for(int i = _folds.size() - 1; i >= 0; --i){
+			Pair fold = _folds.get(i);
+			if(fold.getFirst() >= oldChangeEnd){
+				fold.setFirst(fold.getFirst() + lengthChange);
+				fold.setSecond(fold.getSecond() + lengthChange);
+			}
+			else if(fold.getSecond() >= change.getFirst()){
+				_folds.remove(i);
+			}
+		}
+
+		_text = text;
+		updateHiddenRows();
+		return true;
+	}
+
+	/**
+	 * Collapses the rows between the brackets at openOffset and closeOffset
+	 *
+	 * @return false if the brackets are less than 2 rows apart, so there is
+	 * 		nothing to hide
+	 */
+	public boolean collapse(DocumentProvider doc, int openOffset, int closeOffset){
+		sync(doc);
+		if(doc.getRowIndex(closeOffset) - doc.getRowIndex(openOffset) < 2){
+			return false;
+		}
+
+		if(_text == null){
+			_text = doc.snapshot();
+		}
+		_folds.add(new Pair(openOffset, closeOffset));
+		updateHiddenRows();
+		return true;
+	}
+
+	/**
+	 * Expands the folds that hide row
+	 *
+	 * @return true if any fold was expanded
+	 */
+	public boolean expandRow(int row){
+		if(!isHidden(row)){
+			return false;
+		}
+
+		for(int i = _folds.size() - 1; i >= 0; --i){
+			Pair fold = _folds.get(i);
+			if(_text.getRowIndex(fold.getFirst()) < row &&
+					_text.getRowIndex(fold.getSecond()) > row){
+				_folds.remove(i);
+			}
+		}
+		updateHiddenRows();
+		return true;
+	}
+
+	public void expandAll(){
+		_folds.clear();
+		updateHiddenRows();
+	}
+
+	private void updateHiddenRows(){
+		if(_folds.isEmpty()){
+			_text = null;
+			_hiddenStarts = new int[0];
+			_hiddenEnds = new int[0];
+			_hiddenBefore = new int[0];
+			return;
+		}
+
+		int count = _folds.size();
+		long[] ranges = new long[count];
+		for(int i = 0; i < count; ++i){
+			Pair fold = _folds.get(i);
+			long start = _text.getRowIndex(fold.getFirst()) + 1;
+			long end = _text.getRowIndex(fold.getSecond()) - 1;
+			ranges[i] = (start << 32) | end;
+		}
+		Arrays.sort(ranges);
+
+		// merge nested and adjacent ranges
+		int[] starts = new int[count];
+		int[] ends = new int[count];
+		int merged = 0;
+		for(int i = 0; i < count; ++i){
+			int start = (int) (ranges[i] >>> 32);
+			int end = (int) ranges[i];
+			if(merged > 0 && start <= ends[merged - 1] + 1){
+				ends[merged - 1] = Math.max(ends[merged - 1], end);
+			}
+			else{
+				starts[merged] = start;
+				ends[merged] = end;
+				++merged;
+			}
+		}
+
+		_hiddenStarts = new int[merged];
+		_hiddenEnds = new int[merged];
+		_hiddenBefore = new int[merged];
+		int hidden = 0;
+		for(int i = 0; i < merged; ++i){
+			_hiddenStarts[i] = starts[i];
+			_hiddenEnds[i] = ends[i];
+			_hiddenBefore[i] = hidden;
+			hidden += ends[i] - starts[i] + 1;
+		}
+	}
+
+	/**
+	 * Returns the index of the last hidden range that starts at or before
+	 * row, or -1 if there is none
+	 */
+	private int findRange(int row){
+		int low = 0;
+		int high = _hiddenStarts.length;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(_hiddenStarts[mid] <= row){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low - 1;
+	}
+
+	private int rangeLength(int range){
+		return _hiddenEnds[range] - _hiddenStarts[range] + 1;
+	}
+
+	/**
+	 * Returns the number of disjoint ranges of hidden rows. Together with
+	 * getHiddenStart() and getHiddenEnd(), this lets rows taking more than
+	 * one screen row, such as wrapped rows, be mapped.
+	 */
+	public int getHiddenRangeCount(){
+		return _hiddenStarts.length;
+	}
+
+	/** Returns the first hidden row of range, inclusive */
+	public int getHiddenStart(int range){
+		return _hiddenStarts[range];
+	}
+
+	/** Returns the last hidden row of range, inclusive */
+	public int getHiddenEnd(int range){
+		return _hiddenEnds[range];
+	}
+
+	public boolean isHidden(int row){
+		int range = findRange(row);
+		return (range >= 0 && row <= _hiddenEnds[range]);
+	}
+
+	/**
+	 * Whether row is the header of a collapsed fold
+	 */
+	public boolean isFoldHeader(int row){
+		return isHidden(row + 1) && !isHidden(row);
+	}
+
+	/**
+	 * Returns the screen row that row is shown on. Hidden rows are given
+	 * the screen row of the header of the fold they are in.
+	 */
+	public int toScreenRow(int row){
+		int range = findRange(row);
+		if(range < 0){
+			return row;
+		}
+		if(row <= _hiddenEnds[range]){
+			return _hiddenStarts[range] - 1 - _hiddenBefore[range];
+		}
+		return row - _hiddenBefore[range] - rangeLength(range);
+	}
+
+	/**
+	 * Returns the document row shown on screenRow
+	 */
+	public int toRow(int screenRow){
+		// find the last range that starts at or before the row shown on
+		// screenRow, which is the first row after the range on screen
+		int low = 0;
+		int high = _hiddenStarts.length;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(_hiddenStarts[mid] - _hiddenBefore[mid] <= screenRow){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		int range = low - 1;
+		if(range < 0){
+			return screenRow;
+		}
+		return screenRow + _hiddenBefore[range] + rangeLength(range);
+	}
+
+	/**
+	 * Returns the number of screen rows needed for rowCount document rows
+	 */
+	public int screenRowCount(int rowCount){
+		int count = _hiddenStarts.length;
+		if(count == 0){
+			return rowCount;
+		}
+		return rowCount - _hiddenBefore[count - 1] - rangeLength(count - 1);
+	}
+
+	/**
+	 * Returns the first row after row that is not hidden
+	 */
+	public int nextVisibleRow(int row){
+		int next = row + 1;
+		int range = findRange(next);
+		if(range >= 0 && next <= _hiddenEnds[range]){
+			next = _hiddenEnds[range] + 1;
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the last row before row that is not hidden
+	 */
+	public int previousVisibleRow(int row){
+		int previous = row - 1;
+		int range = findRange(previous);
+		if(range >= 0 && previous <= _hiddenEnds[range]){
+			previous = _hiddenStarts[range] - 1;
+		}
+		return previous;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * Compiles the text description of a language into the binary grammar
+ * read by LanguageDefinition. Grammars are compiled ahead of time with
+ * tools/src/com/myopicmobile/textwarrior/tools/CompileGrammar.java, like the
+ * sample tools/grammars/go.grammar is compiled into assets/grammars/go.tlg.
+ *
+ * Each line of the description is "key = value", where the value is a
+ * list of symbols separated by spaces. Lines starting with '#' are
+ * comments. Keys that are left out take the LanguageCFamily defaults.
+ *
+ * name = Go
+ * prog_lang = true
+ * keywords = break case chan const continue default ...
+ * operators = ( ) { } . , ; = + - / * & ! | : [ ] < > % ^
+ * word_start = @
+ * delimiter_a = "
+ * delimiter_b = '
+ * line_a_start = #
+ * line_b_start =
+ * escape = \
+ * sentence_terminator = .
+ * line_start = //
+ * multiline_start = /*
+ * multiline_end = * /   (without the space)
+ *
+ * The char keys take single chars, and the last three take pairs of chars.
+ * An empty value gives an empty set, unlike leaving the key out.
+ */
+public class GrammarCompiler{
+	private final static String[] CHAR_KEYS = {
+		"operators", "word_start", "delimiter_a", "delimiter_b",
+		"line_a_start", "line_b_start", "escape", "sentence_terminator"
+	}; // in the order of LanguageDefinition.CHARS_XXX
+
+	private final static String[] PAIR_KEYS = {
+		"line_start", "multiline_start", "multiline_end"
+	}; // in the order of LanguageDefinition.PAIRS_XXX
+
+	/**
+	 * Parses a language description
+	 *
+	 * @throws IOException if the description is malformed or cannot be read
+	 */
+	public static LanguageDefinition compile(Reader description)
+	throws IOException{
+		String name = "";
+		boolean isProgLang = true;
+		String[] keywords = new String[0];
+		char[][] charSets = new char[LanguageDefinition.CHAR_SET_COUNT][];
+		String[][] pairSets = new String[LanguageDefinition.PAIR_SET_COUNT][];
+
+		BufferedReader reader = new BufferedReader(description);
+		String line;
+		int lineNumber = 0;
+		while((line = reader.readLine()) != null){
+			++lineNumber;
+			line = line.trim();
+			if(line.length() == 0 || line.charAt(0) == '#'){
+				continue;
+			}
+
+			int equals = line.indexOf('=');
+			if(equals < 0){
+				throw new IOException("Line " + lineNumber + ": expected key = value");
+			}
+			String key = line.substring(0, equals).trim();
+			String[] symbols = split(line.substring(equals + 1));
+
+			if(key.equals("name")){
+				name = line.substring(equals + 1).trim();
+			}
+			else if(key.equals("prog_lang")){
+				isProgLang = Boolean.parseBoolean(line.substring(equals + 1).trim());
+			}
+			else if(key.equals("keywords")){
+				keywords = symbols;
+			}
+			else if(indexOf(CHAR_KEYS, key) >= 0){
+				char[] chars = new char[symbols.length];
+				for(int i = 0; i < symbols.length; ++i){
+					if(symbols[i].length() != 1){
+						throw new IOException("Line " + lineNumber + ": " + key +
+								" takes single chars, not " + symbols[i]);
+					}
+					chars[i] = symbols[i].charAt(0);
+				}
+				charSets[indexOf(CHAR_KEYS, key)] = chars;
+			}
+			else if(indexOf(PAIR_KEYS, key) >= 0){
+				for(int i = 0; i < symbols.length; ++i){
+					if(symbols[i].length() != 2){
+						throw new IOException("Line " + lineNumber + ": " + key +
+								" takes pairs of chars, not " + symbols[i]);
+					}
+				}
+				pairSets[indexOf(PAIR_KEYS, key)] = symbols;
+			}
+			else{
+				throw new IOException("Line " + lineNumber + ": unknown key " + key);
+			}
+		}
+
+		return new LanguageDefinition(name, isProgLang, keywords, charSets, pairSets);
+	}
+
+	private static String[] split(String value){
+		ArrayList<String> symbols = new ArrayList<String>();
+		StringTokenizer tokenizer = new StringTokenizer(value);
+		while(tokenizer.hasMoreTokens()){
+			symbols.add(tokenizer.nextToken());
+		}
+		return symbols.toArray(new String[symbols.size()]);
+	}
+
+	private static int indexOf(String[] keys, String key){
+		for(int i = 0; i < keys.length; ++i){
+			if(keys[i].equals(key)){
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * An immutable set of keywords that can be matched against a slice of a
+ * char array, so that the Lexer does not have to create a String for every
+ * word it finishes.
+ *
+ * Keywords are kept in an open-addressing hash table with linear probing.
+ * The table is at most half full, so a miss usually ends at the first or
+ * second empty slot.
+ */
+public class KeywordTable{
+	private final char[][] _keywords;
+	/** _keywords.length - 1; _keywords.length is a power of 2 */
+	private final int _mask;
+	private final int _size;
+
+	public KeywordTable(String[] keywords){
+		int capacity = 2;
+		while(capacity < 2 * keywords.length){
+			capacity <<= 1;
+		}
+		_keywords = new char[capacity][];
+		_mask = capacity - 1;
+
+		int size = 0;
+		for(int i = 0; i < keywords.length; ++i){
+			char[] keyword = keywords[i].toCharArray();
+			int slot = findSlot(keyword, 0, keyword.length);
+			if(_keywords[slot] == null){
+				_keywords[slot] = keyword;
+				++size;
+			}
+		}
+		_size = size;
+	}
+
+	public int size(){
+		return _size;
+	}
+
+	public boolean contains(String s){
+		char[] word = s.toCharArray();
+		return contains(word, 0, word.length);
+	}
+
+	/**
+	 * Whether the length chars of word starting from offset are a keyword.
+	 * Does not allocate.
+	 */
+	public boolean contains(char[] word, int offset, int length){
+		return _keywords[findSlot(word, offset, length)] != null;
+	}
+
+	/**
+	 * Returns the slot that holds word, or the empty slot where it would be
+	 * inserted if it is not in the table
+	 */
+	private int findSlot(char[] word, int offset, int length){
+		int hash = 0;
+		for(int i = offset; i < offset + length; ++i){
+			hash = 31 * hash + word[i];
+		}
+		// spread the high bits into the low bits used for the index
+		hash ^= (hash >>> 16);
+
+		int slot = hash & _mask;
+		while(_keywords[slot] != null && !matches(_keywords[slot], word, offset, length)){
+			slot = (slot + 1) & _mask;
+		}
+		return slot;
+	}
+
+	private static boolean matches(char[] keyword, char[] word, int offset, int length){
+		if(keyword.length != length){
+			return false;
+		}
+		for(int i = 0; i < length; ++i){
+			if(keyword[i] != word[offset + i]){
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -8,10 +8,16 @@
  */
 package com.myopicmobile.textwarrior.common;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Singleton class containing C-like symbols and operators but no keywords
+ *
+ * Scanners classify every char of a text, so the results of the isXXX()
+ * methods are tabulated for ASCII chars the first time they are needed.
+ * getCharClass() and getPairClass() look them up, and fall back to calling
+ * the isXXX() methods for other chars. Subclasses that override the isXXX()
+ * methods must therefore give the same result every time for the same chars.
  */
 public abstract class LanguageCFamily {
 	public final static char EOF = '\uFFFF';
@@ -19,9 +25,32 @@ public abstract class LanguageCFamily {
 	public final static char NEWLINE = '\n';
 	public final static char BACKSPACE = '\b';
 	public final static char TAB = '\t';
+
+	/** Bits of getCharClass() */
+	public final static int CHAR_WHITESPACE = 1;
+	public final static int CHAR_OPERATOR = 2;
+	public final static int CHAR_DELIMITER_A = 4;
+	public final static int CHAR_DELIMITER_B = 8;
+	public final static int CHAR_LINE_A_START = 16;
+	public final static int CHAR_LINE_B_START = 32;
+	public final static int CHAR_ESCAPE = 64;
+	public final static int CHAR_WORD_START = 128;
+
+	/** Bits of getPairClass() */
+	public final static int PAIR_LINE_START = 1;
+	public final static int PAIR_MULTILINE_START = 2;
+	public final static int PAIR_MULTILINE_END = 4;
+
+	/** Number of chars, starting from 0, that are tabulated */
+	public final static int TABLE_SIZE = 128;
 	
-	protected HashMap<String, Integer> _keywords;
-	protected HashMap<Character, Integer> _operators;
+	protected KeywordTable _keywords;
+	/** Sorted, so that non-ASCII operators can be found by binary search */
+	protected char[] _operators;
+	/** getCharClass() of chars less than TABLE_SIZE, or null if not computed yet */
+	private volatile int[] _charClasses = null;
+	/** getPairClass(c0, c1) at index (c0 * TABLE_SIZE + c1), for c0 and c1 less than TABLE_SIZE */
+	private volatile byte[] _pairClasses = null;
 	
 	private final static char[] basic_c_operators = {
 		'(', ')', '{', '}', '.', ',', ';', '=', '+', '-',
@@ -33,25 +62,130 @@ public abstract class LanguageCFamily {
 	
 	
 	protected void registerKeywords(String[] keywords){
-		_keywords = new HashMap<String, Integer>(keywords.length);
-		for(int i = 0; i < keywords.length; ++i){
-			_keywords.put(keywords[i], new Integer(Lexer.KEYWORD));
-		}
+		_keywords = new KeywordTable(keywords);
 	}
 	
 	protected void replaceOperators(char[] operators){
-		_operators = new HashMap<Character, Integer>(operators.length);
-		for(int i = 0; i < operators.length; ++i){
-			_operators.put(new Character(operators[i]), new Integer(Lexer.OPERATOR));
-		}
+		_operators = new char[operators.length];
+		System.arraycopy(operators, 0, _operators, 0, operators.length);
+		Arrays.sort(_operators);
+		_charClasses = null;
 	}
 	
 	public final boolean isOperator(char c){
-		return _operators.containsKey(new Character(c));
+		return Arrays.binarySearch(_operators, c) >= 0;
+	}
+
+	/**
+	 * Returns the CHAR_XXX bits that apply to c
+	 */
+	public final int getCharClass(char c){
+		if(c < TABLE_SIZE){
+			return getCharClasses()[c];
+		}
+		return classify(c);
+	}
+
+	/**
+	 * Returns the PAIR_XXX bits that apply to c0 followed by c1
+	 */
+	public final int getPairClass(char c0, char c1){
+		if((c0 | c1) < TABLE_SIZE){
+			return getPairClasses()[c0 * TABLE_SIZE + c1];
+		}
+		return classifyPair(c0, c1);
+	}
+
+	/**
+	 * Returns getCharClass() of all chars less than TABLE_SIZE.
+	 * Scanners can index the table directly instead of calling getCharClass().
+	 * The table must not be modified.
+	 */
+	public final int[] getCharClasses(){
+		int[] charClasses = _charClasses;
+		if(charClasses == null){
+			charClasses = new int[TABLE_SIZE];
+			for(char c = 0; c < TABLE_SIZE; ++c){
+				charClasses[c] = classify(c);
+			}
+			_charClasses = charClasses;
+		}
+		return charClasses;
+	}
+
+	/**
+	 * Returns getPairClass() of all pairs of chars less than TABLE_SIZE,
+	 * at index (c0 * TABLE_SIZE + c1).
+	 * Scanners can index the table directly instead of calling getPairClass().
+	 * The table must not be modified.
+	 */
+	public final byte[] getPairClasses(){
+		byte[] pairClasses = _pairClasses;
+		if(pairClasses == null){
+			pairClasses = new byte[TABLE_SIZE * TABLE_SIZE];
+			for(char c0 = 0; c0 < TABLE_SIZE; ++c0){
+				for(char c1 = 0; c1 < TABLE_SIZE; ++c1){
+					pairClasses[c0 * TABLE_SIZE + c1] = (byte) classifyPair(c0, c1);
+				}
+			}
+			_pairClasses = pairClasses;
+		}
+		return pairClasses;
+	}
+
+	private int classify(char c){
+		int charClass = 0;
+		if(isWhitespace(c)){
+			charClass |= CHAR_WHITESPACE;
+		}
+		if(isOperator(c)){
+			charClass |= CHAR_OPERATOR;
+		}
+		if(isDelimiterA(c)){
+			charClass |= CHAR_DELIMITER_A;
+		}
+		if(isDelimiterB(c)){
+			charClass |= CHAR_DELIMITER_B;
+		}
+		if(isLineAStart(c)){
+			charClass |= CHAR_LINE_A_START;
+		}
+		if(isLineBStart(c)){
+			charClass |= CHAR_LINE_B_START;
+		}
+		if(isEscapeChar(c)){
+			charClass |= CHAR_ESCAPE;
+		}
+		if(isWordStart(c)){
+			charClass |= CHAR_WORD_START;
+		}
+		return charClass;
+	}
+
+	private int classifyPair(char c0, char c1){
+		int pairClass = 0;
+		if(isLineStart(c0, c1)){
+			pairClass |= PAIR_LINE_START;
+		}
+		if(isMultilineStartDelimiter(c0, c1)){
+			pairClass |= PAIR_MULTILINE_START;
+		}
+		if(isMultilineEndDelimiter(c0, c1)){
+			pairClass |= PAIR_MULTILINE_END;
+		}
+		return pairClass;
 	}
 	
 	public final boolean isKeyword(String s){
-		return _keywords.containsKey(s);
+		return _keywords.contains(s);
+	}
+
+	/**
+	 * Whether the length chars of word starting from offset are a keyword.
+	 * Unlike isKeyword(String), this does not allocate.
+	 */
+	public final boolean isKeyword(char[] word, int offset, int length){
+		return _keywords.contains(word, offset, length);
 	}
 
 	public boolean isWhitespace(char c){
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A language whose symbols are read from a compiled grammar instead of
+ * being hard-coded in a subclass. Grammars are compiled from text with
+ * GrammarCompiler, so new languages can be added without code.
+ *
+ * Compiled grammar format, in the byte order of DataOutputStream:
+ * 1. int MAGIC, byte VERSION
+ * 2. The language name, with DataOutputStream.writeUTF()
+ * 3. boolean isProgLang()
+ * 4. int number of keywords, followed by each keyword with writeUTF()
+ * 5. Sets of chars, each a short count followed by the chars, in the
+ *    order of the CHARS_XXX indexes
+ * 6. Sets of char pairs, each a short count followed by two chars per
+ *    pair, in the order of the PAIRS_XXX indexes
+ * A count of -1 means the set is not given, and the LanguageCFamily
+ * default is used instead.
+ */
+public class LanguageDefinition extends LanguageCFamily{
+	public final static int MAGIC = 0x54574C47; // "TWLG"
+	public final static byte VERSION = 1;
+
+	public final static int CHARS_OPERATOR = 0;
+	public final static int CHARS_WORD_START = 1;
+	public final static int CHARS_DELIMITER_A = 2;
+	public final static int CHARS_DELIMITER_B = 3;
+	public final static int CHARS_LINE_A_START = 4;
+	public final static int CHARS_LINE_B_START = 5;
+	public final static int CHARS_ESCAPE = 6;
+	public final static int CHARS_SENTENCE_TERMINATOR = 7;
+	public final static int CHAR_SET_COUNT = 8;
+
+	public final static int PAIRS_LINE_START = 0;
+	public final static int PAIRS_MULTILINE_START = 1;
+	public final static int PAIRS_MULTILINE_END = 2;
+	public final static int PAIR_SET_COUNT = 3;
+
+	private final String _name;
+	private final boolean _isProgLang;
+	private final String[] _keywordList;
+	/** Sorted, or null if not given */
+	private final char[][] _charSets;
+	/** Sorted pairs, each stored as (c0 << 16 | c1), or null if not given */
+	private final int[][] _pairSets;
+
+	/**
+	 * @param charSets The chars of each CHARS_XXX set, or null for the sets
+	 * 		not given
+	 * @param pairSets The pairs of each PAIRS_XXX set as 2-char strings,
+	 * 		or null for the sets not given
+	 */
+	public LanguageDefinition(String name, boolean isProgLang,
+			String[] keywords, char[][] charSets, String[][] pairSets){
+		_name = name;
+		_isProgLang = isProgLang;
+		_keywordList = keywords.clone();
+		_charSets = new char[CHAR_SET_COUNT][];
+		for(int i = 0; i < CHAR_SET_COUNT; ++i){
+			if(charSets[i] != null){
+				_charSets[i] = charSets[i].clone();
+				Arrays.sort(_charSets[i]);
+			}
+		}
+		_pairSets = new int[PAIR_SET_COUNT][];
+		for(int i = 0; i < PAIR_SET_COUNT; ++i){
+			if(pairSets[i] != null){
+				_pairSets[i] = new int[pairSets[i].length];
+				for(int j = 0; j < pairSets[i].length; ++j){
+					String pair = pairSets[i][j];
+					_pairSets[i][j] = packPair(pair.charAt(0), pair.charAt(1));
+				}
+				Arrays.sort(_pairSets[i]);
+			}
+		}
+
+		registerKeywords(_keywordList);
+		if(_charSets[CHARS_OPERATOR] != null){
+			replaceOperators(_charSets[CHARS_OPERATOR]);
+		}
+	}
+
+	/**
+	 * Reads a compiled grammar
+	 *
+	 * @throws IOException if in is not a compiled grammar of a supported
+	 * 		version, or cannot be read
+	 */
+	public static LanguageDefinition read(InputStream in)
+	throws IOException{
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if(data.readInt() != MAGIC){
+			throw new IOException("Not a compiled grammar");
+		}
+		byte version = data.readByte();
+		if(version != VERSION){
+			throw new IOException("Unsupported grammar version " + version);
+		}
+
+		String name = data.readUTF();
+		boolean isProgLang = data.readBoolean();
+		String[] keywords = new String[data.readInt()];
+		for(int i = 0; i < keywords.length; ++i){
+			keywords[i] = data.readUTF();
+		}
+
+		char[][] charSets = new char[CHAR_SET_COUNT][];
+		for(int i = 0; i < CHAR_SET_COUNT; ++i){
+			int count = data.readShort();
+			if(count >= 0){
+				charSets[i] = new char[count];
+				for(int j = 0; j < count; ++j){
+					charSets[i][j] = data.readChar();
+				}
+			}
+		}
+
+		String[][] pairSets = new String[PAIR_SET_COUNT][];
+		for(int i = 0; i < PAIR_SET_COUNT; ++i){
+			int count = data.readShort();
+			if(count >= 0){
+				pairSets[i] = new String[count];
+				for(int j = 0; j < count; ++j){
+					char c0 = data.readChar();
+					char c1 = data.readChar();
+					pairSets[i][j] = new String(new char[]{c0, c1});
+				}
+			}
+		}
+
+		return new LanguageDefinition(name, isProgLang, keywords, charSets, pairSets);
+	}
+
+	/**
+	 * Writes this language as a compiled grammar
+	 */
+	public void write(OutputStream out)
+	throws IOException{
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeByte(VERSION);
+		data.writeUTF(_name);
+		data.writeBoolean(_isProgLang);
+		data.writeInt(_keywordList.length);
+		for(int i = 0; i < _keywordList.length; ++i){
+			data.writeUTF(_keywordList[i]);
+		}
+
+		for(int i = 0; i < CHAR_SET_COUNT; ++i){
+			char[] chars = _charSets[i];
+			if(chars == null){
+				data.writeShort(-1);
+				continue;
+			}
+			data.writeShort(chars.length);
+			for(int j = 0; j < chars.length; ++j){
+				data.writeChar(chars[j]);
+			}
+		}
+
+		for(int i = 0; i < PAIR_SET_COUNT; ++i){
+			int[] pairs = _pairSets[i];
+			if(pairs == null){
+				data.writeShort(-1);
+				continue;
+			}
+			data.writeShort(pairs.length);
+			for(int j = 0; j < pairs.length; ++j){
+				data.writeChar(pairs[j] >>> 16);
+				data.writeChar(pairs[j] & 0xFFFF);
+			}
+		}
+		data.flush();
+	}
+
+	public String getName(){
+		return _name;
+	}
+
+	private static int packPair(char c0, char c1){
+		return (c0 << 16) | c1;
+	}
+
+	private boolean inCharSet(int set, char c){
+		return Arrays.binarySearch(_charSets[set], c) >= 0;
+	}
+
+	private boolean inPairSet(int set, char c0, char c1){
+		return Arrays.binarySearch(_pairSets[set], packPair(c0, c1)) >= 0;
+	}
+
+	@Override
+	public boolean isProgLang(){
+		return _isProgLang;
+	}
+
+	@Override
+	public boolean isSentenceTerminator(char c){
+		return (_charSets[CHARS_SENTENCE_TERMINATOR] != null)
+				? inCharSet(CHARS_SENTENCE_TERMINATOR, c)
+				: super.isSentenceTerminator(c);
+	}
+
+	@Override
+	public boolean isEscapeChar(char c){
+		return (_charSets[CHARS_ESCAPE] != null)
+				? inCharSet(CHARS_ESCAPE, c)
+				: super.isEscapeChar(c);
+	}
+
+	@Override
+	public boolean isWordStart(char c){
+		return (_charSets[CHARS_WORD_START] != null)
+				? inCharSet(CHARS_WORD_START, c)
+				: super.isWordStart(c);
+	}
+
+	@Override
+	public boolean isDelimiterA(char c){
+		return (_charSets[CHARS_DELIMITER_A] != null)
+				? inCharSet(CHARS_DELIMITER_A, c)
+				: super.isDelimiterA(c);
+	}
+
+	@Override
+	public boolean isDelimiterB(char c){
+		return (_charSets[CHARS_DELIMITER_B] != null)
+				? inCharSet(CHARS_DELIMITER_B, c)
+				: super.isDelimiterB(c);
+	}
+
+	@Override
+	public boolean isLineAStart(char c){
+		return (_charSets[CHARS_LINE_A_START] != null)
+				? inCharSet(CHARS_LINE_A_START, c)
+				: super.isLineAStart(c);
+	}
+
+	@Override
+	public boolean isLineBStart(char c){
+		return (_charSets[CHARS_LINE_B_START] != null)
+				? inCharSet(CHARS_LINE_B_START, c)
+				: super.isLineBStart(c);
+	}
+
+	@Override
+	public boolean isLineStart(char c0, char c1){
+		return (_pairSets[PAIRS_LINE_START] != null)
+				? inPairSet(PAIRS_LINE_START, c0, c1)
+				: super.isLineStart(c0, c1);
+	}
+
+	@Override
+	public boolean isMultilineStartDelimiter(char c0, char c1){
+		return (_pairSets[PAIRS_MULTILINE_START] != null)
+				? inPairSet(PAIRS_MULTILINE_START, c0, c1)
+				: super.isMultilineStartDelimiter(c0, c1);
+	}
+
+	@Override
+	public boolean isMultilineEndDelimiter(char c0, char c1){
+		return (_pairSets[PAIRS_MULTILINE_END] != null)
+				? inPairSet(PAIRS_MULTILINE_END, c0, c1)
+				: super.isMultilineEndDelimiter(c0, c1);
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Guesses the language of a file from its name and the start of its text.
+ *
+ * In order, the language is looked up from:
+ * 1. The shebang line, like #!/usr/bin/env python
+ * 2. The file extension. Extensions shared by several languages, like .h,
+ *    are resolved by looking for telltale words in the sample.
+ * 3. Telltale words in the sample, for files without a known extension
+ *
+ * Languages other than the built-in ones are added with registerGrammar().
+ */
+public class LanguageDetector{
+	/** Number of chars at the start of a file that are examined */
+	public final static int SAMPLE_SIZE = 4096;
+
+	private final static HashMap<String, LanguageCFamily> _extensions =
+			new HashMap<String, LanguageCFamily>();
+	/** Grammars not read yet, by the extensions they were registered for */
+	private final static HashMap<String, GrammarOpener> _grammars =
+			new HashMap<String, GrammarOpener>();
+
+	static{
+		registerExtensions(LanguageC.getCharacterEncodings(), "c");
+		registerExtensions(LanguageCpp.getCharacterEncodings(),
+				"cpp", "cc", "cxx", "c++", "hpp", "hh", "hxx", "inl");
+		registerExtensions(LanguageCsharp.getCharacterEncodings(), "cs");
+		registerExtensions(LanguageJava.getCharacterEncodings(), "java");
+		registerExtensions(LanguageJavascript.getCharacterEncodings(), "js", "json");
+		registerExtensions(LanguageObjectiveC.getCharacterEncodings(), "m", "mm");
+		registerExtensions(LanguagePHP.getCharacterEncodings(),
+				"php", "php3", "php4", "php5", "phtml");
+		registerExtensions(LanguagePython.getCharacterEncodings(), "py", "pyw");
+		registerExtensions(LanguageRuby.getCharacterEncodings(), "rb", "rbw");
+		registerExtensions(LanguageNonProg.getCharacterEncodings(), "txt");
+	}
+
+	/**
+	 * Maps the given file extensions, without the dot, to language
+	 */
+	synchronized public static void registerExtensions(LanguageCFamily language,
+			String... extensions){
+		for(int i = 0; i < extensions.length; ++i){
+			_extensions.put(extensions[i].toLowerCase(), language);
+			_grammars.remove(extensions[i].toLowerCase());
+		}
+	}
+
+	/**
+	 * Maps the given file extensions, without the dot, to the language of
+	 * a compiled grammar. The grammar is only opened and read with
+	 * LanguageDefinition.read() when a file with one of the extensions is
+	 * first detected, so registering many grammars costs nothing up front.
+	 */
+	synchronized public static void registerGrammar(GrammarOpener grammar,
+			String... extensions){
+		for(int i = 0; i < extensions.length; ++i){
+			_extensions.remove(extensions[i].toLowerCase());
+			_grammars.put(extensions[i].toLowerCase(), grammar);
+		}
+	}
+
+	synchronized private static LanguageCFamily forExtension(String extension){
+		String key = extension.toLowerCase();
+		GrammarOpener grammar = _grammars.get(key);
+		if(grammar != null){
+			loadGrammar(grammar);
+		}
+		return _extensions.get(key);
+	}
+
+	/**
+	 * Reads grammar and maps all the extensions registered with it to its
+	 * language. A grammar that cannot be read is dropped.
+	 */
+	private static void loadGrammar(GrammarOpener grammar){
+		LanguageCFamily language = null;
+		try{
+			InputStream in = grammar.open();
+			try{
+				language = LanguageDefinition.read(in);
+			}
+			finally{
+				in.close();
+			}
+		}
+		catch(IOException ex){
+			TextWarriorException.assertVerbose(false,
+				"Cannot read grammar: " + ex.getMessage());
+		}
+
+		Iterator<Map.Entry<String, GrammarOpener>> entries =
+				_grammars.entrySet().iterator();
+		while(entries.hasNext()){
+			Map.Entry<String, GrammarOpener> entry = entries.next();
+			if(entry.getValue() == grammar){
+				if(language != null){
+					_extensions.put(entry.getKey(), language);
+				}
+				entries.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param fileName The name of the file, with or without the path
+	 * @param sample The first chars of the file
+	 * @param sampleLength Number of chars in sample, up to SAMPLE_SIZE of
+	 * 		which are examined
+	 *
+	 * @return The language of the file, or null if it cannot be told
+	 */
+	public static LanguageCFamily detect(String fileName,
+			char[] sample, int sampleLength){
+		String text = new String(sample, 0, Math.min(sampleLength, SAMPLE_SIZE));
+
+		LanguageCFamily language = fromShebang(text);
+		if(language != null){
+			return language;
+		}
+
+		String extension = getExtension(fileName);
+		if(extension.equals("h")){
+			return fromCHeader(text);
+		}
+		language = forExtension(extension);
+		if(language != null){
+			return language;
+		}
+
+		return fromContent(text);
+	}
+
+	private static String getExtension(String fileName){
+		int slash = fileName.lastIndexOf('/');
+		int dot = fileName.lastIndexOf('.');
+		return (dot > slash + 1) ? fileName.substring(dot + 1) : "";
+	}
+
+	private static LanguageCFamily fromShebang(String text){
+		if(!text.startsWith("#!")){
+			return null;
+		}
+		int lineEnd = text.indexOf(LanguageCFamily.NEWLINE);
+		String shebang = (lineEnd >= 0) ? text.substring(0, lineEnd) : text;
+
+		if(shebang.indexOf("python") >= 0){
+			return LanguagePython.getCharacterEncodings();
+		}
+		if(shebang.indexOf("ruby") >= 0){
+			return LanguageRuby.getCharacterEncodings();
+		}
+		if(shebang.indexOf("php") >= 0){
+			return LanguagePHP.getCharacterEncodings();
+		}
+		if(shebang.indexOf("node") >= 0){
+			return LanguageJavascript.getCharacterEncodings();
+		}
+		return null;
+	}
+
+	/**
+	 * .h files are shared by C, C++ and Objective-C
+	 */
+	private static LanguageCFamily fromCHeader(String text){
+		if(text.indexOf("@interface") >= 0 || text.indexOf("#import") >= 0){
+			return LanguageObjectiveC.getCharacterEncodings();
+		}
+		if(text.indexOf("class ") >= 0 || text.indexOf("namespace ") >= 0 ||
+				text.indexOf("template") >= 0 || text.indexOf("::") >= 0){
+			return LanguageCpp.getCharacterEncodings();
+		}
+		return LanguageC.getCharacterEncodings();
+	}
+
+	private static LanguageCFamily fromContent(String text){
+		if(text.indexOf("<?php") >= 0){
+			return LanguagePHP.getCharacterEncodings();
+		}
+		if(text.indexOf("#include") >= 0){
+			return fromCHeader(text);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Opens a compiled grammar given to registerGrammar()
+	 */
+	public interface GrammarOpener{
+		/** The caller closes the returned stream */
+		public InputStream open() throws IOException;
+	}
+}
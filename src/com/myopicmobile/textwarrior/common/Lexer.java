@@ -8,20 +8,39 @@
  */
 package com.myopicmobile.textwarrior.common;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 import com.myopicmobile.textwarrior.common.LanguageCFamily;
 import com.myopicmobile.textwarrior.common.DocumentProvider;
 import com.myopicmobile.textwarrior.common.Pair;
+import com.myopicmobile.textwarrior.common.SpanArray;
 import com.myopicmobile.textwarrior.common.TextWarriorException;
 
-import java.util.List;
-import java.util.Vector;
-
 /**
  * Does lexical analysis of a text for C-like languages.
- * The programming language syntax used is set as a static class variable.
+ * The programming language syntax used is the language of the document
+ * being lexed, so documents of different languages can be lexed at the
+ * same time by different Lexers.
+ *
+ * Lexing runs on a pool of worker threads shared by all Lexers, with
+ * one thread per processor. The first lex of a big document is split into
+ * chunks that are lexed in parallel on a second pool.
  */
 public class Lexer{
 	private final static int MAX_KEYWORD_LENGTH = 31;
+	/** Minimum number of chars between consecutive lexer state checkpoints */
+	private final static int CHECKPOINT_INTERVAL = 256;
+	/** Minimum document length, in chars, that is lexed in parallel chunks */
+	private final static int PARALLEL_MIN_LENGTH = 1 << 20;
+	/** More chunks than threads, so that threads done early can take more */
+	private final static int CHUNKS_PER_THREAD = 4;
+	private final static int CHUNK_THREADS = Runtime.getRuntime().availableProcessors();
 
 	public final static int UNKNOWN = -1;
 	public final static int NORMAL = 0;
@@ -66,51 +85,75 @@ public class Lexer{
 	public final static int SINGLE_SYMBOL_DELIMITED_A = 50;
 	public final static int SINGLE_SYMBOL_DELIMITED_B = 51;
 
-	private static LanguageCFamily _globalLanguage = LanguageNonProg.getCharacterEncodings();
-	synchronized public static void setLanguage(LanguageCFamily lang){
-		_globalLanguage = lang;
-	}
-
-	synchronized public static LanguageCFamily getLanguage(){
-		return _globalLanguage;
-	}
+	private final static ExecutorService _workerPool = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			new DaemonThreadFactory("Lexer"));
+	/**
+	 * Lexes chunks for the worker threads. Chunks never wait for other
+	 * tasks, so worker threads waiting for chunks cannot deadlock.
+	 */
+	private final static ExecutorService _chunkPool = Executors.newFixedThreadPool(
+			CHUNK_THREADS, new DaemonThreadFactory("Lexer chunk"));
 
 
 	private DocumentProvider _hDoc;
-	private LexThread _workerThread = null;
+	private LexTask _workerTask = null;
 	LexCallback _callback = null;
+	/** Spans before this offset are published before the rest are lexed */
+	private int _priorityEnd = -1;
+	/** The last complete lex, which the next lex starts from */
+	private LexResult _lastResult = null;
 
 	public Lexer(LexCallback callback){
 		_callback = callback;
 	}
 	
 	public void tokenize(DocumentProvider hDoc){
-		if(!Lexer.getLanguage().isProgLang()){
+		tokenize(hDoc, -1);
+	}
+
+	/**
+	 * Lexes hDoc, publishing the spans found so far through
+	 * LexCallback.lexProgress() as soon as the text before priorityEnd
+	 * has been lexed, such as the text visible on screen. The rest of the
+	 * text is lexed at a lower thread priority.
+	 * 
+	 * @param priorityEnd The char offset up to which spans are needed first,
+	 * 		or -1 if the spans are only needed when the whole text is lexed
+	 */
+	public void tokenize(DocumentProvider hDoc, int priorityEnd){
+		if(!hDoc.getLanguage().isProgLang()){
 			return;
 		}
 
-		//tokenize will modify the state of hDoc; make a copy
-		setDocument(new DocumentProvider(hDoc));
-		if(_workerThread == null){
-			_workerThread = new LexThread(this);
-			_workerThread.start();
+		setPriorityEnd(priorityEnd);
+		//tokenize reads an immutable copy, so hDoc can be edited meanwhile
+		setDocument(hDoc.snapshot());
+		synchronized(this){
+			// a task that has finished lexing cannot pick up the new snapshot
+			if(_workerTask == null || !_workerTask.restart()){
+				_workerTask = new LexTask(this);
+				_workerPool.execute(_workerTask);
+			}
 		}
-		else{
-			_workerThread.restart();
+	}
+
+	void tokenizeProgress(SpanArray partialResult, long version){
+		if(_callback != null){
+			_callback.lexProgress(partialResult, version);
 		}
 	}
 
-	void tokenizeDone(List<Pair> result){
+	void tokenizeDone(SpanArray result, long version){
 		if(_callback != null){
-			_callback.lexDone(result);
+			_callback.lexDone(result, version);
 		}
-		_workerThread = null;
 	}
 	
-	public void cancelTokenize(){
-		if(_workerThread != null){
-			_workerThread.abort();
-			_workerThread = null;
+	public synchronized void cancelTokenize(){
+		if(_workerTask != null){
+			_workerTask.abort();
+			_workerTask = null;
 		}
 	}
 
@@ -121,234 +164,847 @@ public class Lexer{
 	public synchronized DocumentProvider getDocument(){
 		return _hDoc;
 	}
+
+	synchronized void setPriorityEnd(int priorityEnd){
+		_priorityEnd = priorityEnd;
+	}
+
+	synchronized int getPriorityEnd(){
+		return _priorityEnd;
+	}
+
+	synchronized LexResult getLastResult(){
+		return _lastResult;
+	}
+
+	synchronized void setLastResult(LexResult result){
+		_lastResult = result;
+	}
+
+	/**
+	 * Returns the brackets found by the last complete lex, or null if there
+	 * is none. Compare BracketIndex.getVersion() with the version of the
+	 * document before using it.
+	 */
+	public synchronized BracketIndex getBracketIndex(){
+		return (_lastResult != null) ? _lastResult.brackets : null;
+	}
+
+
+	/**
+	 * The spans found in a snapshot of a document, and the lexer states
+	 * needed to lex the document again from somewhere in the middle.
+	 */
+	private static class LexResult{
+		final DocumentProvider doc;
+		final LanguageCFamily language;
+		final SpanArray tokens;
+		/**
+		 * Lexer states at the start of some lines, stored as spans of that
+		 * state. There is one at offset 0 and then one about every
+		 * CHECKPOINT_INTERVAL chars. The lexer is never in the middle of a
+		 * word at these points, so the state is all it needs to resume.
+		 */
+		final SpanArray checkpoints;
+		final BracketIndex brackets;
+
+		LexResult(DocumentProvider d, LanguageCFamily lang,
+				SpanArray t, SpanArray c, BracketIndex b){
+			doc = d;
+			language = lang;
+			tokens = t;
+			checkpoints = c;
+			brackets = b;
+		}
+	}
 	
 	
 	
 	
 	
-	private class LexThread extends Thread{
+	/**
+	 * Lexes the document of a Lexer until it stops changing. The hand-off
+	 * between restart() and the end of run() is guarded by the Lexer lock,
+	 * so a restart is either picked up by the task or refused, and then
+	 * the Lexer submits a new task.
+	 */
+	private class LexTask implements Runnable{
+		/** Whether to lex again. Guarded by the Lexer lock */
 		private boolean rescan = false;
+		/** Whether the task has stopped lexing. Guarded by the Lexer lock */
+		private boolean _isDone = false;
+		/** Whether the task was cancelled. Guarded by the Lexer lock */
+		private boolean _isCancelled = false;
 		private Lexer _lexManager;
 		/** can be set by another thread to stop the scan immediately */
 		private Flag _abort;
-		/** A collection of Pairs, where Pair.first is the start 
-		 *  position of the token, and Pair.second is the type of the token.*/
-		private Vector<Pair> _tokens;
-
-		public LexThread(Lexer p){
+		/**
+		 * Stops the chunks of the parallel lex in progress, or null if
+		 * there is none. Guarded by the Lexer lock
+		 */
+		private Flag _chunkAbort = null;
+		/** The start position and type of each token */
+		private SpanArray _tokens;
+		/** Version of the document that _tokens were obtained from */
+		private long _tokensVersion;
+		/** The state to start the next lex from, or null if it has to start over */
+		private LexResult _result;
+
+		public LexTask(Lexer p){
 			_lexManager = p;
 			_abort = new Flag();
 		}
 
 		public void run(){
-			do{
-				rescan = false;
+			boolean isComplete;
+			while(true){
 				_abort.clear();
+				setPriority(Thread.NORM_PRIORITY);
 				tokenize();
+
+				synchronized(_lexManager){
+					if(!rescan || _isCancelled){
+						_isDone = true;
+						if(_lexManager._workerTask == this){
+							_lexManager._workerTask = null;
+						}
+						isComplete = !_isCancelled && !_abort.isSet();
+						break;
+					}
+					rescan = false;
+				}
 			}
-			while(rescan);
+			// the pool thread goes on to lex other documents
+			setPriority(Thread.NORM_PRIORITY);
 
-			if(!_abort.isSet()){
-				// lex complete
-				_lexManager.tokenizeDone(_tokens);
+			if(isComplete){
+				_lexManager.setLastResult(_result);
+				_lexManager.tokenizeDone(_tokens, _tokensVersion);
 			}
 		}
 
-		public void restart() {
+		/**
+		 * Makes the task lex the document again. The caller must hold the
+		 * Lexer lock.
+		 *
+		 * @return false if the task is done and will not lex again
+		 */
+		public boolean restart() {
+			if(_isDone){
+				return false;
+			}
 			rescan = true;
 			_abort.set();
+			if(_chunkAbort != null){
+				_chunkAbort.set();
+			}
+			return true;
 		}
-		
+
+		/**
+		 * Stops the task for good. The caller must hold the Lexer lock.
+		 */
 		public void abort() {
+			_isCancelled = true;
 			_abort.set();
+			if(_chunkAbort != null){
+				_chunkAbort.set();
+			}
+		}
+
+		private void setPriority(int priority){
+			Thread.currentThread().setPriority(priority);
 		}
 
 		/**
 		 * Scans the document referenced by _lexManager for tokens.
 		 * The result is stored internally.
+		 *
+		 * If the previous lex was of an earlier version of the same document,
+		 * only the lines from the first change onwards are scanned, until
+		 * the lexer reaches a line that it starts in the same state as the
+		 * previous lex did. The spans of the previous lex from there on are
+		 * reused.
+		 *
+		 * Otherwise, or if most of a big document changed, the document is
+		 * lexed in parallel chunks.
 		 */
 		public void tokenize(){
 			DocumentProvider hDoc = getDocument();
-			LanguageCFamily language = Lexer.getLanguage();
-			Vector<Pair> tokens = new Vector<Pair>();
+			LanguageCFamily language = hDoc.getLanguage();
+			SpanArray tokens = new SpanArray();
+			SpanArray checkpoints = new SpanArray();
+			SpanArray brackets = new SpanArray();
 
 			if(!language.isProgLang()){
-				tokens.addElement(new Pair(0, NORMAL));
+				tokens.add(0, NORMAL);
 				_tokens = tokens;
+				_tokensVersion = hDoc.getVersion();
+				_result = null;
 				return;
 			}
 
-			char[] candidateWord = new char[MAX_KEYWORD_LENGTH];
-			int currentCharInWord = 0;
+			// the previous lex only helps if it was of the same document
+			LexResult previous = _lexManager.getLastResult();
+			if(previous != null && (previous.language != language
+					|| previous.doc.getTextId() != hDoc.getTextId())){
+				previous = null;
+			}
+			Pair change = (previous != null)
+					? hDoc.changesSince(previous.doc)
+					: new Pair(0, 0);
+			int changeLength = hDoc.docLength() - change.getSecond() - change.getFirst();
+
+			// lexing the changed text serially takes longer than lexing the
+			// whole text in parallel once most of a big text has changed
+			if(CHUNK_THREADS > 1 && changeLength >= PARALLEL_MIN_LENGTH
+					&& changeLength > hDoc.docLength() / 2){
+				tokenizeParallel(hDoc, language);
+				return;
+			}
 
-			int spanStartPosition = 0;
 			int workingPosition = 0;
 			int state = UNKNOWN;
-			char prevChar = 0;
-
-		    hDoc.seekChar(0);
-			while (hDoc.hasNext() && !_abort.isSet()){
-				char currentChar = hDoc.next();
-
-				switch(state){
-				case UNKNOWN: //fall-through
-				case NORMAL: //fall-through
-				case KEYWORD: //fall-through
-				case SINGLE_SYMBOL_WORD:
-					int pendingState = state;
-					boolean stateChanged = false;
-					if (language.isLineStart(prevChar, currentChar)){
-						pendingState = DOUBLE_SYMBOL_LINE;
-						stateChanged = true;
-					}
-					else if (language.isMultilineStartDelimiter(prevChar, currentChar)){
-						pendingState = DOUBLE_SYMBOL_DELIMITED_MULTILINE;
-						stateChanged = true;
-					}
-					else if (language.isDelimiterA(currentChar)){
-						pendingState = SINGLE_SYMBOL_DELIMITED_A;	
-						stateChanged = true;
+			int lengthChange = 0;
+			int changeEnd = 0; // end of the changed text in hDoc
+			int nextOldCheckpoint = 0;
+			if(previous != null){
+				lengthChange = hDoc.docLength() - previous.doc.docLength();
+				changeEnd = hDoc.docLength() - change.getSecond();
+
+				// resume from the last checkpoint before the change
+				int resume = previous.checkpoints.findSpan(change.getFirst());
+				workingPosition = previous.checkpoints.getStart(resume);
+				state = previous.checkpoints.getType(resume);
+				tokens.addAll(previous.tokens, 0,
+						previous.tokens.countBefore(workingPosition), 0);
+				checkpoints.addAll(previous.checkpoints, 0, resume + 1, 0);
+				brackets.addAll(previous.brackets.getBrackets(), 0,
+						previous.brackets.getBrackets().countBefore(workingPosition), 0);
+				nextOldCheckpoint = resume + 1;
+			}
+			else{
+				checkpoints.add(0, state);
+			}
+
+			IncrementalScanner scanner = new IncrementalScanner(language,
+					tokens, checkpoints, brackets, workingPosition, state,
+					previous, changeEnd, lengthChange, nextOldCheckpoint,
+					hDoc.getVersion());
+			boolean converged = scanner.scan(hDoc, _abort);
+
+			if(converged){
+				// splice in the spans of the previous lex from here on
+				int oldPosition = scanner.workingPosition - lengthChange;
+				tokens.addAll(previous.tokens,
+						previous.tokens.countBefore(oldPosition),
+						previous.tokens.size(), lengthChange);
+				checkpoints.addAll(previous.checkpoints, scanner.nextOldCheckpoint,
+						previous.checkpoints.size(), lengthChange);
+				SpanArray oldBrackets = previous.brackets.getBrackets();
+				brackets.addAll(oldBrackets, oldBrackets.countBefore(oldPosition),
+						oldBrackets.size(), lengthChange);
+			}
+
+			setResult(hDoc, language, tokens, checkpoints, brackets);
+		}
+
+		/**
+		 * Lexes hDoc from scratch by splitting it into chunks at line starts,
+		 * which are lexed at the same time on _chunkPool.
+		 *
+		 * Each chunk is lexed speculatively in the UNKNOWN state. When the
+		 * chunks are joined in order, a chunk is lexed again on this thread
+		 * if the lexer actually enters it inside a token, such as a
+		 * multi-line comment.
+		 */
+		private void tokenizeParallel(DocumentProvider hDoc, LanguageCFamily language){
+			// the chunks get a flag of their own, since _abort is cleared
+			// when the task lexes again
+			Flag chunkAbort = new Flag();
+			synchronized(_lexManager){
+				if(_abort.isSet()){
+					return;
+				}
+				_chunkAbort = chunkAbort;
+			}
+
+			int[] starts = splitAtLines(hDoc, CHUNK_THREADS * CHUNKS_PER_THREAD);
+			int chunkCount = starts.length - 1;
+			ArrayList<Future<Scanner>> futures = new ArrayList<Future<Scanner>>(chunkCount);
+			for(int i = 0; i < chunkCount; ++i){
+				futures.add(_chunkPool.submit(new ChunkTask(hDoc, language,
+						starts[i], starts[i + 1], chunkAbort)));
+			}
+
+			try{
+				joinChunks(hDoc, language, starts, futures);
+			}
+			finally{
+				// stop the chunks of an aborted lex, so that they do not
+				// hold up the chunks of the next one
+				chunkAbort.set();
+				for(int i = 0; i < chunkCount; ++i){
+					futures.get(i).cancel(false);
+				}
+				synchronized(_lexManager){
+					_chunkAbort = null;
+				}
+			}
+		}
+
+		/**
+		 * Joins the chunks lexed by futures in order, lexing again the ones
+		 * that were entered inside a token
+		 */
+		private void joinChunks(DocumentProvider hDoc, LanguageCFamily language,
+				int[] starts, ArrayList<Future<Scanner>> futures){
+			int chunkCount = futures.size();
+
+			SpanArray tokens = new SpanArray();
+			SpanArray checkpoints = new SpanArray();
+			SpanArray brackets = new SpanArray();
+			int nextPublish = getPriorityEnd();
+			Scanner last = null;
+			for(int i = 0; i < chunkCount; ++i){
+				Scanner chunk = waitFor(futures.get(i));
+				if(_abort.isSet()){
+					return;
+				}
+
+				int entryPosition = (last != null) ? last.workingPosition : 0;
+				int entryState = (last != null) ? last.state : UNKNOWN;
+				if(chunk == null || starts[i] != entryPosition
+						|| !isBetweenTokens(entryState)){
+					// the speculation was wrong
+					chunk = new ChunkTask(hDoc, language,
+							entryPosition, starts[i + 1], _abort).lex(entryState);
+				}
+
+				// lexing in the UNKNOWN state repeats the span type the
+				// previous chunk ended with, if the first token is of that type
+				int from = (!tokens.isEmpty() && !chunk.tokens.isEmpty()
+						&& chunk.tokens.getType(0) == tokens.getType(tokens.size() - 1))
+						? 1 : 0;
+				tokens.addAll(chunk.tokens, from, chunk.tokens.size(), 0);
+				checkpoints.addAll(chunk.checkpoints, 0, chunk.checkpoints.size(), 0);
+				brackets.addAll(chunk.brackets, 0, chunk.brackets.size(), 0);
+				last = chunk;
+
+				if(nextPublish >= 0 && chunk.workingPosition >= nextPublish
+						&& i < chunkCount - 1){
+					publishProgress(tokens, null, chunk.workingPosition, 0, 0,
+							hDoc.getVersion());
+					nextPublish = -1;
+				}
+			}
+
+			setResult(hDoc, language, tokens, checkpoints, brackets);
+		}
+
+		/**
+		 * Returns the result of future, or null if it failed
+		 */
+		private Scanner waitFor(Future<Scanner> future){
+			try{
+				return future.get();
+			}
+			catch(InterruptedException e){
+				_abort.set();
+			}
+			catch(ExecutionException e){
+				TextWarriorException.assertVerbose(false,
+						"Lexing a chunk failed: " + e.getCause());
+			}
+			return null;
+		}
+
+		private void setResult(DocumentProvider hDoc, LanguageCFamily language,
+				SpanArray tokens, SpanArray checkpoints, SpanArray brackets){
+			_result = new LexResult(hDoc, language, tokens, checkpoints,
+					new BracketIndex(brackets, hDoc.getVersion()));
+			if (tokens.isEmpty()){
+				// return value cannot be empty
+				tokens = SpanArray.createDefault();
+			}
+
+			_tokens = tokens;
+			_tokensVersion = hDoc.getVersion();
+		}
+
+		/**
+		 * Publishes a copy of the spans found before workingPosition.
+		 * The spans of the previous lex after the changed text are added
+		 * after them, so that the rest of the text is colored as before
+		 * until it is lexed.
+		 */
+		private void publishProgress(SpanArray tokens, LexResult previous,
+				int workingPosition, int changeEnd, int lengthChange,
+				long version){
+			SpanArray partial = new SpanArray();
+			partial.addAll(tokens, 0, tokens.size(), 0);
+			if(previous != null){
+				int oldStart = Math.max(workingPosition, changeEnd) - lengthChange;
+				partial.addAll(previous.tokens,
+						previous.tokens.countBefore(oldStart),
+						previous.tokens.size(), lengthChange);
+			}
+			if(partial.isEmpty()){
+				partial.add(0, NORMAL);
+			}
+			_lexManager.tokenizeProgress(partial, version);
+		}
+
+
+		/**
+		 * Scanner that stops where it reaches a line that the previous lex
+		 * started in the same state, and publishes the spans found so far
+		 * once it has lexed past the priority end.
+		 */
+		private class IncrementalScanner extends Scanner{
+			/** The previous lex of the document, or null to lex it all */
+			private final LexResult _previous;
+			/** End of the changed text */
+			private final int _changeEnd;
+			private final int _lengthChange;
+			private final long _version;
+			private int _nextPublish;
+			/** Index of the first checkpoint of _previous not passed yet */
+			int nextOldCheckpoint;
+
+			IncrementalScanner(LanguageCFamily lang, SpanArray tokens,
+					SpanArray checkpoints, SpanArray brackets,
+					int position, int startState,
+					LexResult previous, int changeEnd, int lengthChange,
+					int oldCheckpoint, long version){
+				super(lang, tokens, checkpoints, brackets, position, startState);
+				_previous = previous;
+				_changeEnd = changeEnd;
+				_lengthChange = lengthChange;
+				_version = version;
+				nextOldCheckpoint = oldCheckpoint;
+				// spans before the change are still valid, so only publish
+				// early if the priority region extends past it
+				_nextPublish = getPriorityEnd();
+				if(_nextPublish <= position){
+					_nextPublish = Integer.MAX_VALUE;
+				}
+			}
+
+			@Override
+			boolean atLineStart(){
+				// past the change, stop if the rest will be lexed the same
+				// way as last time
+				if(_previous != null && workingPosition >= _changeEnd){
+					SpanArray oldCheckpoints = _previous.checkpoints;
+					while(nextOldCheckpoint < oldCheckpoints.size() &&
+							oldCheckpoints.getStart(nextOldCheckpoint) + _lengthChange < workingPosition){
+						++nextOldCheckpoint;
 					}
-					else if (language.isDelimiterB(currentChar)){
-						pendingState = SINGLE_SYMBOL_DELIMITED_B;	
-						stateChanged = true;
+					if(nextOldCheckpoint < oldCheckpoints.size() &&
+							oldCheckpoints.getStart(nextOldCheckpoint) + _lengthChange == workingPosition &&
+							oldCheckpoints.getType(nextOldCheckpoint) == state){
+						return true;
 					}
-					else if (language.isLineAStart(currentChar)){
-						pendingState = SINGLE_SYMBOL_LINE_A;
-						stateChanged = true;
+				}
+
+				super.atLineStart();
+
+				// outside of words, every char lexed so far is
+				// covered by the spans found
+				if(workingPosition >= _nextPublish){
+					publishProgress(tokens, _previous, workingPosition,
+							_changeEnd, _lengthChange, _version);
+					// lex the rest in the background, and publish again
+					// whenever the lexed text has doubled
+					setPriority(Thread.MIN_PRIORITY);
+					_nextPublish = (workingPosition < Integer.MAX_VALUE / 2)
+							? 2 * workingPosition
+							: Integer.MAX_VALUE;
+				}
+				return false;
+			}
+		}
+	}//end inner class
+
+
+	/**
+	 * Returns the line starts that split hDoc into about chunkCount chunks
+	 * of similar length. The first element is 0 and the last is the
+	 * document length.
+	 */
+	private static int[] splitAtLines(DocumentProvider hDoc, int chunkCount){
+		int length = hDoc.docLength();
+		int[] starts = new int[chunkCount + 1];
+		int count = 1; // starts[0] is 0
+		for(int i = 1; i < chunkCount; ++i){
+			int row = hDoc.getRowIndex((int) ((long) length * i / chunkCount));
+			int start = hDoc.getStartCharOfRow(row + 1);
+			if(start > starts[count - 1] && start < length){
+				starts[count] = start;
+				++count;
+			}
+		}
+		starts[count] = length;
+		++count;
+
+		int[] result = new int[count];
+		System.arraycopy(starts, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Whether state is one that the lexer is in between tokens.
+	 * Lexing a line in the UNKNOWN state adds a span for its first token,
+	 * whatever the type, so it gives the same spans as lexing it in any of
+	 * these states, apart from some redundant spans.
+	 */
+	private static boolean isBetweenTokens(int state){
+		return (state == UNKNOWN || state == NORMAL ||
+				state == KEYWORD || state == SINGLE_SYMBOL_WORD);
+	}
+
+
+	/**
+	 * Lexes the chunk of a document between two line starts
+	 */
+	private static class ChunkTask implements Callable<Scanner>{
+		private final DocumentProvider _hDoc;
+		private final LanguageCFamily _language;
+		private final int _start;
+		private final int _end;
+		private final Flag _abort;
+
+		/**
+		 * @param start The line start to lex from
+		 * @param end The line start to lex up to. Lexing stops at the first
+		 * 		line start at or after end, which is past end if end is in
+		 * 		the middle of a token.
+		 */
+		ChunkTask(DocumentProvider hDoc, LanguageCFamily language,
+				int start, int end, Flag abort){
+			// each chunk needs its own iterator over the immutable text
+			_hDoc = new DocumentProvider(hDoc);
+			_language = language;
+			_start = start;
+			_end = end;
+			_abort = abort;
+		}
+
+		public Scanner call(){
+			return lex(UNKNOWN);
+		}
+
+		Scanner lex(int startState){
+			SpanArray checkpoints = new SpanArray();
+			checkpoints.add(_start, startState);
+			Scanner scanner = new Scanner(_language, new SpanArray(),
+					checkpoints, new SpanArray(), _start, startState){
+				@Override
+				boolean atLineStart(){
+					if(workingPosition >= _end){
+						return true;
 					}
-					else if (language.isLineBStart(currentChar)){
-						pendingState = SINGLE_SYMBOL_LINE_B;
-						stateChanged = true;
+					return super.atLineStart();
+				}
+			};
+			scanner.scan(_hDoc, _abort);
+			return scanner;
+		}
+	}
+
+
+	/**
+	 * The lexer state machine. A Scanner lexes a document from a line start
+	 * onwards, adding the spans it finds to tokens and the lexer state at
+	 * a line start about every CHECKPOINT_INTERVAL chars to checkpoints.
+	 * The brackets outside of tokens like strings and comments are added to
+	 * brackets, with the bracket char as the span type.
+	 */
+	private static class Scanner{
+		final LanguageCFamily language;
+		final SpanArray tokens;
+		final SpanArray checkpoints;
+		final SpanArray brackets;
+		/** Offset of the next char to lex */
+		int workingPosition;
+		int state;
+		private char prevChar;
+		private int lastCheckpoint;
+
+		Scanner(LanguageCFamily lang, SpanArray t, SpanArray c,
+				SpanArray b, int position, int startState){
+			language = lang;
+			tokens = t;
+			checkpoints = c;
+			brackets = b;
+			workingPosition = position;
+			state = startState;
+			prevChar = (position > 0) ? LanguageCFamily.NEWLINE : 0;
+			lastCheckpoint = position;
+		}
+
+		/**
+		 * Called at line starts, where the lexer is never in the middle of
+		 * a word. Subclasses can return true to stop the scan there.
+		 */
+		boolean atLineStart(){
+			if(workingPosition - lastCheckpoint >= CHECKPOINT_INTERVAL){
+				checkpoints.add(workingPosition, state);
+				lastCheckpoint = workingPosition;
+			}
+			return false;
+		}
+
+		/**
+		 * Lexes hDoc from workingPosition until atLineStart() returns true,
+		 * the end of hDoc is reached or abort is set
+		 *
+		 * @return true if atLineStart() stopped the scan
+		 */
+		boolean scan(DocumentProvider hDoc, Flag abort){
+			char[] candidateWord = new char[MAX_KEYWORD_LENGTH];
+			int currentCharInWord = 0;
+
+			int spanStartPosition = 0;
+			int workingPosition = this.workingPosition;
+			int state = this.state;
+			char prevChar = this.prevChar;
+			boolean stopped = false;
+			// classify chars by table lookups instead of virtual calls
+			final int[] charClasses = language.getCharClasses();
+			final byte[] pairClasses = language.getPairClasses();
+			final int tableSize = LanguageCFamily.TABLE_SIZE;
+			int prevClass = language.getCharClass(prevChar);
+
+			Segment segment = new Segment();
+			hDoc.seekChar(workingPosition);
+			scan:
+			while (!abort.isSet() && hDoc.nextSegment(segment)){
+				char[] chars = segment.array;
+				for(int i = segment.start; i < segment.end; ++i){
+					char currentChar = chars[i];
+					int charClass = (currentChar < tableSize)
+							? charClasses[currentChar]
+							: language.getCharClass(currentChar);
+
+					if(prevChar == LanguageCFamily.NEWLINE && currentCharInWord == 0){
+						this.workingPosition = workingPosition;
+						this.state = state;
+						if(atLineStart()){
+							stopped = true;
+							break scan;
+						}
 					}
+
+					switch(state){
+					case UNKNOWN: //fall-through
+					case NORMAL: //fall-through
+					case KEYWORD: //fall-through
+					case SINGLE_SYMBOL_WORD:
+						int pendingState = state;
+						boolean stateChanged = false;
+						int pairClass = ((prevChar | currentChar) < tableSize)
+								? pairClasses[prevChar * tableSize + currentChar]
+								: language.getPairClass(prevChar, currentChar);
+						if ((pairClass & LanguageCFamily.PAIR_LINE_START) != 0){
+							pendingState = DOUBLE_SYMBOL_LINE;
+							stateChanged = true;
+						}
+						else if ((pairClass & LanguageCFamily.PAIR_MULTILINE_START) != 0){
+							pendingState = DOUBLE_SYMBOL_DELIMITED_MULTILINE;
+							stateChanged = true;
+						}
+						else if ((charClass & LanguageCFamily.CHAR_DELIMITER_A) != 0){
+							pendingState = SINGLE_SYMBOL_DELIMITED_A;	
+							stateChanged = true;
+						}
+						else if ((charClass & LanguageCFamily.CHAR_DELIMITER_B) != 0){
+							pendingState = SINGLE_SYMBOL_DELIMITED_B;	
+							stateChanged = true;
+						}
+						else if ((charClass & LanguageCFamily.CHAR_LINE_A_START) != 0){
+							pendingState = SINGLE_SYMBOL_LINE_A;
+							stateChanged = true;
+						}
+						else if ((charClass & LanguageCFamily.CHAR_LINE_B_START) != 0){
+							pendingState = SINGLE_SYMBOL_LINE_B;
+							stateChanged = true;
+						}
 					
 					
-					if(stateChanged){
-						if (pendingState == DOUBLE_SYMBOL_LINE ||
-								pendingState == DOUBLE_SYMBOL_DELIMITED_MULTILINE){
-							// account for previous char
-							spanStartPosition = workingPosition - 1;
+						if(stateChanged){
+							if (pendingState == DOUBLE_SYMBOL_LINE ||
+									pendingState == DOUBLE_SYMBOL_DELIMITED_MULTILINE){
+								// account for previous char
+								spanStartPosition = workingPosition - 1;
 //TODO consider less greedy approach and avoid adding token for previous char
-							if(tokens.lastElement().getFirst() == spanStartPosition){
-								tokens.removeElementAt(tokens.size() - 1);
+								if(!tokens.isEmpty() &&
+										tokens.getStart(tokens.size() - 1) == spanStartPosition){
+									tokens.removeLast();
+								}
+								// the previous char is part of the token
+								if(!brackets.isEmpty() &&
+										brackets.getStart(brackets.size() - 1) == spanStartPosition){
+									brackets.removeLast();
+								}
+							}
+							else{
+								spanStartPosition = workingPosition;
 							}
-						}
-						else{
-							spanStartPosition = workingPosition;
-						}
 
-						// If a span appears mid-word, mark the chars preceding 
-						// it as NORMAL, if the previous span isn't already NORMAL
-						if(currentCharInWord > 0 && state != NORMAL){
-							tokens.addElement(new Pair(workingPosition - currentCharInWord, NORMAL));
-						}
+							// If a span appears mid-word, mark the chars preceding 
+							// it as NORMAL, if the previous span isn't already NORMAL
+							if(currentCharInWord > 0 && state != NORMAL){
+								tokens.add(workingPosition - currentCharInWord, NORMAL);
+							}
 
-						state = pendingState;
-						tokens.addElement(new Pair(spanStartPosition, state));
-						currentCharInWord = 0;
-					}
+							state = pendingState;
+							tokens.add(spanStartPosition, state);
+							currentCharInWord = 0;
+						}
 					
-					else if (language.isWhitespace(currentChar) || language.isOperator(currentChar)){
-						if (currentCharInWord > 0){
-							// full word obtained; mark the beginning of the word accordingly
-							if( language.isWordStart(candidateWord[0]) ){
-								spanStartPosition = workingPosition - currentCharInWord;
-								state = SINGLE_SYMBOL_WORD;
-								tokens.addElement(new Pair(spanStartPosition, state));
-							}
-							else if(language.isKeyword( new String(candidateWord, 0, currentCharInWord)) ){
-								spanStartPosition = workingPosition - currentCharInWord;
-								state = KEYWORD;
-								tokens.addElement(new Pair(spanStartPosition, state));
+						else if ((charClass & (LanguageCFamily.CHAR_WHITESPACE | LanguageCFamily.CHAR_OPERATOR)) != 0){
+							if (currentCharInWord > 0){
+								// full word obtained; mark the beginning of the word accordingly
+								if( (language.getCharClass(candidateWord[0]) & LanguageCFamily.CHAR_WORD_START) != 0 ){
+									spanStartPosition = workingPosition - currentCharInWord;
+									state = SINGLE_SYMBOL_WORD;
+									tokens.add(spanStartPosition, state);
+								}
+								else if(language.isKeyword(candidateWord, 0, currentCharInWord) ){
+									spanStartPosition = workingPosition - currentCharInWord;
+									state = KEYWORD;
+									tokens.add(spanStartPosition, state);
+								}
+								else if (state != NORMAL){
+									spanStartPosition = workingPosition - currentCharInWord;
+									state = NORMAL;
+									tokens.add(spanStartPosition, state);
+								}
+								currentCharInWord = 0;
 							}
-							else if (state != NORMAL){
-								spanStartPosition = workingPosition - currentCharInWord;
+
+							// mark operators as normal
+							if (state != NORMAL && (charClass & LanguageCFamily.CHAR_OPERATOR) != 0 ){
 								state = NORMAL;
-								tokens.addElement(new Pair(spanStartPosition, state));
+								tokens.add(workingPosition, state);
 							}
-							currentCharInWord = 0;
-						}
 
-						// mark operators as normal
-						if (state != NORMAL && language.isOperator(currentChar) ){
-							state = NORMAL;
-							tokens.addElement(new Pair(workingPosition, state));
+							if (BracketIndex.isBracket(currentChar)){
+								brackets.add(workingPosition, currentChar);
+							}
 						}
-					}
-					else if (currentCharInWord < MAX_KEYWORD_LENGTH){
-						// collect non-whitespace chars up to MAX_KEYWORD_LENGTH
-						candidateWord[currentCharInWord] = currentChar;
-						currentCharInWord++;
-					}
-					break;
+						else if (currentCharInWord < MAX_KEYWORD_LENGTH){
+							// collect non-whitespace chars up to MAX_KEYWORD_LENGTH
+							candidateWord[currentCharInWord] = currentChar;
+							currentCharInWord++;
+						}
+						break;
 					
 				
-				case DOUBLE_SYMBOL_LINE: // fall-through
-				case SINGLE_SYMBOL_LINE_A: // fall-through
-				case SINGLE_SYMBOL_LINE_B:
-					if (currentChar == '\n'){
-						state = UNKNOWN;
-					}
-					break;
+					case DOUBLE_SYMBOL_LINE: // fall-through
+					case SINGLE_SYMBOL_LINE_A: // fall-through
+					case SINGLE_SYMBOL_LINE_B:
+						if (currentChar == '\n'){
+							state = UNKNOWN;
+						}
+						break;
 					
 
-				case SINGLE_SYMBOL_DELIMITED_A:
-					if ((language.isDelimiterA(currentChar) && !language.isEscapeChar(prevChar)) ||
-						currentChar == '\n'){
-						state = UNKNOWN;
-					}
-					// consume escape of the escape character by assigning
-					// currentChar as something else so that it would not be
-					// treated as an escape char in the next iteration
-					else if (language.isEscapeChar(currentChar) && language.isEscapeChar(prevChar)){
-						currentChar = ' ';
-					}
-					break;
+					case SINGLE_SYMBOL_DELIMITED_A:
+						if (((charClass & LanguageCFamily.CHAR_DELIMITER_A) != 0 &&
+								(prevClass & LanguageCFamily.CHAR_ESCAPE) == 0) ||
+							currentChar == '\n'){
+							state = UNKNOWN;
+						}
+						// consume escape of the escape character by assigning
+						// currentChar as something else so that it would not be
+						// treated as an escape char in the next iteration
+						else if ((charClass & prevClass & LanguageCFamily.CHAR_ESCAPE) != 0){
+							currentChar = ' ';
+							charClass = charClasses[' '];
+						}
+						break;
 					
 					
-				case SINGLE_SYMBOL_DELIMITED_B:
-					if ((language.isDelimiterB(currentChar) && !language.isEscapeChar(prevChar)) ||
-						currentChar == '\n'){
-						state = UNKNOWN;
-					}
-					// consume escape of the escape character by assigning
-					// currentChar as something else so that it would not be
-					// treated as an escape char in the next iteration
-					else if (language.isEscapeChar(currentChar)
-							&& language.isEscapeChar(prevChar)){
-						currentChar = ' ';
-					}
-					break;
+					case SINGLE_SYMBOL_DELIMITED_B:
+						if (((charClass & LanguageCFamily.CHAR_DELIMITER_B) != 0 &&
+								(prevClass & LanguageCFamily.CHAR_ESCAPE) == 0) ||
+							currentChar == '\n'){
+							state = UNKNOWN;
+						}
+						// consume escape of the escape character by assigning
+						// currentChar as something else so that it would not be
+						// treated as an escape char in the next iteration
+						else if ((charClass & prevClass & LanguageCFamily.CHAR_ESCAPE) != 0){
+							currentChar = ' ';
+							charClass = charClasses[' '];
+						}
+						break;
 					
-				case DOUBLE_SYMBOL_DELIMITED_MULTILINE:
-					if (language.isMultilineEndDelimiter(prevChar, currentChar)){
-						state = UNKNOWN;
-					}
-					break;
+					case DOUBLE_SYMBOL_DELIMITED_MULTILINE:
+						int endPairClass = ((prevChar | currentChar) < tableSize)
+								? pairClasses[prevChar * tableSize + currentChar]
+								: language.getPairClass(prevChar, currentChar);
+						if ((endPairClass & LanguageCFamily.PAIR_MULTILINE_END) != 0){
+							state = UNKNOWN;
+						}
+						break;
 					
-				default:
-					TextWarriorException.assertVerbose(false, "Invalid state in TokenScanner");
-					break;
+					default:
+						TextWarriorException.assertVerbose(false, "Invalid state in TokenScanner");
+						break;
+					}
+					++workingPosition;
+					prevChar = currentChar;
+					prevClass = charClass;
 				}
-				++workingPosition;
-				prevChar = currentChar;
 			}
 			// end state machine
 
-
-			if (tokens.isEmpty()){
-				// return value cannot be empty
-				tokens.addElement(new Pair(0, NORMAL));
+			if(!stopped){
+				this.workingPosition = workingPosition;
+				this.state = state;
 			}
-
-			_tokens = tokens;
+			this.prevChar = prevChar;
+			return stopped;
 		}
-		
-		
-	}//end inner class
+	}
 	
 
+	private static class DaemonThreadFactory implements ThreadFactory{
+		private final String _name;
+
+		DaemonThreadFactory(String name){
+			_name = name;
+		}
+
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r, _name);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+
 	public interface LexCallback {
-		public void lexDone(List<Pair> results);
+		/**
+		 * @param results The spans found
+		 * @param version The version of the document that was lexed. The
+		 * 		results are stale if the document has changed since.
+		 */
+		public void lexDone(SpanArray results, long version);
+
+		/**
+		 * Called before lexDone() with the spans found so far, once the
+		 * text before the priority end given to tokenize() has been lexed.
+		 * This may be called more than once as lexing progresses.
+		 * 
+		 * @param partialResults The spans found so far, followed by the
+		 * 		spans of the previous lex for the text not lexed yet
+		 * @param version The version of the document being lexed
+		 */
+		public void lexProgress(SpanArray partialResults, long version);
 	}
 }
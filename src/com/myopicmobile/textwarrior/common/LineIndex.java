@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * Maps between line indices and char offsets of a TextBuffer in O(log n) time.
+ *
+ * The text is divided into consecutive chunks of about CHUNK_SIZE chars.
+ * The number of chars and newlines in each chunk are kept in two Fenwick
+ * trees, so that the chunk containing a given char offset or newline, and
+ * the number of chars and newlines before it, can be found in logarithmic
+ * time. The rest of a lookup is a scan of at most one chunk.
+ *
+ * Edits only change the sizes of the chunks they touch. Chunks that grow
+ * too big are split, and runs of chunks that shrink too small are merged
+ * once there are enough of them, so the chunk sizes stay bounded without
+ * ever rescanning the whole text.
+ *
+ * The chunks cover the whole text, including the EOF sentinel.
+ * LineIndex does not lock the TextBuffer. Callers must hold its lock.
+ */
+public class LineIndex {
+	private final static int CHUNK_SIZE = 1024;
+	/** Chunks that grow beyond this size are split */
+	private final static int MAX_CHUNK_SIZE = 2 * CHUNK_SIZE;
+
+	private final TextBuffer _text;
+	private int _chunkCount;
+	private int[] _lengths;
+	private int[] _newlines;
+	/** Fenwick trees over _lengths and _newlines. Index 0 is unused */
+	private int[] _lengthTree;
+	private int[] _newlineTree;
+	private int _textLength;
+
+	/** Results of the last call to findChunk() and findChunkOfNewline() */
+	private int _foundStart, _foundNewlines;
+
+	public LineIndex(TextBuffer text){
+		_text = text;
+	}
+
+	/**
+	 * Indexes the whole text of the TextBuffer
+	 */
+	public void rebuild(int textLength){
+		int count = Math.max((textLength + CHUNK_SIZE - 1) / CHUNK_SIZE, 1);
+		int[] lengths = new int[count];
+		int[] newlines = new int[count];
+		for(int i = 0; i < count; ++i){
+			int start = i * CHUNK_SIZE;
+			int end = Math.min(start + CHUNK_SIZE, textLength);
+			lengths[i] = end - start;
+			newlines[i] = _text.countNewlinesBetween(start, end);
+		}
+		_textLength = textLength;
+		setChunks(lengths, newlines, count);
+	}
+
+	/**
+	 * Returns the offset of the first char of line, which must be in [1, number of lines)
+	 */
+	public int lineStart(int line){
+		int chunk = findChunkOfNewline(line);
+		int newline = _text.findNewline(_foundStart, line - _foundNewlines);
+		TextWarriorException.assertVerbose(newline >= 0
+				&& newline < _foundStart + _lengths[chunk],
+				"LineIndex: Newline not found in its chunk");
+		return (newline >= 0) ? newline + 1 : -1;
+	}
+
+	/**
+	 * Returns the number of newlines before charOffset, which is the index
+	 * of the line that charOffset is on
+	 */
+	public int newlinesBefore(int charOffset){
+		findChunk(charOffset);
+		return _foundNewlines + _text.countNewlinesBetween(_foundStart, charOffset);
+	}
+
+	/**
+	 * Records the insertion of length chars, with the given number of
+	 * newlines among them, at charOffset.
+	 * Call this after the chars are inserted into the text.
+	 */
+	public void insert(int charOffset, int length, int newlines){
+		int chunk = findChunk(Math.min(charOffset, _textLength - 1));
+		add(chunk, length, newlines);
+		_textLength += length;
+
+		if(_lengths[chunk] > MAX_CHUNK_SIZE){
+			splitChunk(chunk, _foundStart);
+		}
+	}
+
+	/**
+	 * Records the deletion of length chars starting from charOffset.
+	 * Call this before the chars are removed from the text.
+	 */
+	public void delete(int charOffset, int length){
+		int chunk = findChunk(charOffset);
+		int chunkStart = _foundStart;
+		int offset = charOffset;
+		int end = charOffset + length;
+		while(offset < end){
+			int chunkEnd = chunkStart + _lengths[chunk];
+			int deleted = Math.min(end, chunkEnd) - offset;
+			add(chunk, -deleted, -_text.countNewlinesBetween(offset, offset + deleted));
+			offset += deleted;
+			chunkStart = chunkEnd;
+			++chunk;
+		}
+		_textLength -= length;
+
+		if(_chunkCount > 4 * (_textLength / CHUNK_SIZE) + 16){
+			mergeChunks();
+		}
+	}
+
+	/**
+	 * Finds the chunk containing charOffset, skipping empty chunks.
+	 * Sets _foundStart and _foundNewlines to the number of chars and
+	 * newlines before it.
+	 */
+	private int findChunk(int charOffset){
+		int chunk = 0;
+		int charsLeft = charOffset;
+		int newlines = 0;
+		for(int step = Integer.highestOneBit(_chunkCount); step > 0; step >>= 1){
+			int next = chunk + step;
+			if(next <= _chunkCount && _lengthTree[next] <= charsLeft){
+				chunk = next;
+				charsLeft -= _lengthTree[next];
+				newlines += _newlineTree[next];
+			}
+		}
+		_foundStart = charOffset - charsLeft;
+		_foundNewlines = newlines;
+		return chunk;
+	}
+
+	/**
+	 * Finds the chunk containing the n-th newline (1-based).
+	 * Sets _foundStart and _foundNewlines to the number of chars and
+	 * newlines before it.
+	 */
+	private int findChunkOfNewline(int n){
+		int chunk = 0;
+		int newlinesLeft = n;
+		int start = 0;
+		for(int step = Integer.highestOneBit(_chunkCount); step > 0; step >>= 1){
+			int next = chunk + step;
+			if(next <= _chunkCount && _newlineTree[next] < newlinesLeft){
+				chunk = next;
+				newlinesLeft -= _newlineTree[next];
+				start += _lengthTree[next];
+			}
+		}
+		_foundStart = start;
+		_foundNewlines = n - newlinesLeft;
+		return chunk;
+	}
+
+	private void add(int chunk, int length, int newlines){
+		_lengths[chunk] += length;
+		_newlines[chunk] += newlines;
+		for(int i = chunk + 1; i <= _chunkCount; i += i & -i){
+			_lengthTree[i] += length;
+			_newlineTree[i] += newlines;
+		}
+	}
+
+	/**
+	 * Replaces chunk, which starts at chunkStart, with chunks of CHUNK_SIZE chars
+	 */
+	private void splitChunk(int chunk, int chunkStart){
+		int length = _lengths[chunk];
+		int pieces = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		int count = _chunkCount + pieces - 1;
+		int[] lengths = new int[count];
+		int[] newlines = new int[count];
+		System.arraycopy(_lengths, 0, lengths, 0, chunk);
+		System.arraycopy(_newlines, 0, newlines, 0, chunk);
+
+		for(int i = 0; i < pieces; ++i){
+			int start = chunkStart + i * CHUNK_SIZE;
+			int end = chunkStart + Math.min((i + 1) * CHUNK_SIZE, length);
+			lengths[chunk + i] = end - start;
+			newlines[chunk + i] = _text.countNewlinesBetween(start, end);
+		}
+
+		int rest = _chunkCount - chunk - 1;
+		System.arraycopy(_lengths, chunk + 1, lengths, chunk + pieces, rest);
+		System.arraycopy(_newlines, chunk + 1, newlines, chunk + pieces, rest);
+		setChunks(lengths, newlines, count);
+	}
+
+	/**
+	 * Merges runs of adjacent chunks that fit in CHUNK_SIZE chars together
+	 */
+	private void mergeChunks(){
+		int count = 0;
+		for(int i = 0; i < _chunkCount; ++i){
+			if(count > 0 && _lengths[count - 1] + _lengths[i] <= CHUNK_SIZE){
+				_lengths[count - 1] += _lengths[i];
+				_newlines[count - 1] += _newlines[i];
+			}
+			else{
+				_lengths[count] = _lengths[i];
+				_newlines[count] = _newlines[i];
+				++count;
+			}
+		}
+		setChunks(_lengths, _newlines, count);
+	}
+
+	/**
+	 * Uses the first count entries of lengths and newlines as the chunks,
+	 * and builds the Fenwick trees over them in linear time
+	 */
+	private void setChunks(int[] lengths, int[] newlines, int count){
+		_lengths = lengths;
+		_newlines = newlines;
+		_chunkCount = count;
+		_lengthTree = new int[count + 1];
+		_newlineTree = new int[count + 1];
+		for(int i = 1; i <= count; ++i){
+			_lengthTree[i] += lengths[i - 1];
+			_newlineTree[i] += newlines[i - 1];
+			int parent = i + (i & -i);
+			if(parent <= count){
+				_lengthTree[parent] += _lengthTree[i];
+				_newlineTree[parent] += _newlineTree[i];
+			}
+		}
+	}
+}
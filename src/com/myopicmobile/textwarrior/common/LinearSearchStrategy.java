@@ -10,7 +10,13 @@ package com.myopicmobile.textwarrior.common;
 
 
 public class LinearSearchStrategy implements SearchStrategy{
+	/** Number of candidate positions read from the document at a time */
+	private final static int BLOCK_SIZE = 4096;
 	private int _unitsDone = 0;
+	/** Chars of the document being examined, read in bulk */
+	private char[] _window = new char[0];
+	/** Document offset of _window[0] */
+	private int _windowStart = 0;
 	
 	@Override
 	// only applicable to replaceAll operation
@@ -52,23 +58,24 @@ public class LinearSearchStrategy implements SearchStrategy{
 		}
 		
 		end = Math.min(end, src.docLength() - target.length() + 1);
+		char[] pattern = toPattern(target, isCaseSensitive);
 		int offset = start;
 		while(offset < end){
-			if(equals(src, target, offset, isCaseSensitive) &&
-			(!isWholeWord || isSandwichedByWhitespace(src, offset, target.length())) ){
-				break;
+			// read the candidates in this block, the chars they span and one
+			// more char on each side for the whole word check
+			int blockEnd = Math.min(offset + BLOCK_SIZE, end);
+			loadWindow(src, offset - 1, blockEnd + pattern.length);
+
+			while(offset < blockEnd){
+				if(matches(src, pattern, offset, isCaseSensitive, isWholeWord)){
+					return offset;
+				}
+				++offset;
+				++_unitsDone;
 			}
-			
-			++offset;
-			++_unitsDone;
 		}
 
-		if (offset < end){
-			return offset;
-		}
-		else{
-			return -1;
-		}
+		return -1;
 	}
 
 	@Override
@@ -104,22 +111,21 @@ public class LinearSearchStrategy implements SearchStrategy{
 			"Invalid end position given to TextBuffer.find");
 			end = -1;
 		}
+		char[] pattern = toPattern(target, isCaseSensitive);
 		int offset = Math.min(start, src.docLength()-target.length());
 		while(offset > end){
-			if(equals(src, target, offset, isCaseSensitive) &&
-				(!isWholeWord || isSandwichedByWhitespace(src, offset, target.length()) )){
-				break;
-			}
+			int blockEnd = Math.max(offset - BLOCK_SIZE, end);
+			loadWindow(src, blockEnd, offset + 1 + pattern.length);
 
-			--offset;
-		}
-		
-		if (offset > end){
-			return offset;
-		}
-		else{
-			return -1;
+			while(offset > blockEnd){
+				if(matches(src, pattern, offset, isCaseSensitive, isWholeWord)){
+					return offset;
+				}
+				--offset;
+			}
 		}
+
+		return -1;
 	}
 
 	@Override
@@ -160,46 +166,74 @@ public class LinearSearchStrategy implements SearchStrategy{
 	}
 	
 	
-	protected boolean equals(DocumentProvider src, String target,
-			int srcOffset, boolean isCaseSensitive){
-		if((src.docLength() - srcOffset) < target.length()){
-			//compared range in src must at least be as long as target
-			return false;
-		}
-		
-		int i;
-		for(i = 0; i < target.length(); ++i){
-			if (isCaseSensitive &&
-					target.charAt(i) != src.charAt(i + srcOffset)){
-				return false;
+	/**
+	 * Returns the chars to look for. For case-insensitive searches, they are
+	 * in lower case.
+	 */
+	private static char[] toPattern(String target, boolean isCaseSensitive){
+		char[] pattern = target.toCharArray();
+		if(!isCaseSensitive){
+			for(int i = 0; i < pattern.length; ++i){
+				pattern[i] = Character.toLowerCase(pattern[i]);
 			}
+		}
+		return pattern;
+	}
+
+	/**
+	 * Copies the chars of src from start (inclusive) to end (exclusive) into
+	 * _window. The range is clipped to the bounds of src.
+	 */
+	private void loadWindow(DocumentProvider src, int start, int end){
+		start = Math.max(start, 0);
+		end = Math.min(end, src.docLength());
+		if(_window.length < end - start){
+			_window = new char[end - start];
+		}
+		src.getChars(start, end, _window, 0);
+		_windowStart = start;
+	}
+
+	/**
+	 * Checks if pattern occurs at srcOffset. The chars from srcOffset - 1 to
+	 * srcOffset + pattern.length (inclusive, where they exist) must be
+	 * in _window.
+	 */
+	private boolean matches(DocumentProvider src, char[] pattern,
+			int srcOffset, boolean isCaseSensitive, boolean isWholeWord){
+		int windowOffset = srcOffset - _windowStart;
+		for(int i = 0; i < pattern.length; ++i){
+			char c = _window[windowOffset + i];
 			// for case-insensitive search, compare both strings in lower case
-			if (!isCaseSensitive &&
-					Character.toLowerCase(target.charAt(i)) != 
-					Character.toLowerCase(src.charAt(i + srcOffset))){
+			if(!isCaseSensitive){
+				c = Character.toLowerCase(c);
+			}
+			if(c != pattern[i]){
 				return false;
 			}
-			
 		}
 		
-		return true;
+		return !isWholeWord ||
+			isSandwichedByWhitespace(src, srcOffset, pattern.length);
 	}
 	
 	/**
 	 * Checks if a word starting at startPosition with size length is bounded 
-	 * by whitespace.
+	 * by whitespace. The chars before and after the word must be in _window.
 	 */
-	protected boolean isSandwichedByWhitespace(DocumentProvider src,
+	private boolean isSandwichedByWhitespace(DocumentProvider src,
 			int start, int length){
-		LanguageCFamily charSet = Lexer.getLanguage();
+		LanguageCFamily charSet = src.getLanguage();
 		boolean startWithWhitespace = (start == 0)
 				? true
-				: charSet.isWhitespace(src.charAt(start - 1));
+				: (charSet.getCharClass(_window[start - 1 - _windowStart])
+					& LanguageCFamily.CHAR_WHITESPACE) != 0;
 		
 		int end = start + length;
 		boolean endWithWhitespace = (end == src.docLength())
 				? true
-				: charSet.isWhitespace(src.charAt(end));
+				: (charSet.getCharClass(_window[end - _windowStart])
+					& LanguageCFamily.CHAR_WHITESPACE) != 0;
 	
 		return (startWithWhitespace && endWithWhitespace);
 	}
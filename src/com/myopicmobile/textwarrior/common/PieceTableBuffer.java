@@ -0,0 +1,682 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * A TextBuffer that stores its text in a piece table instead of a gap buffer.
+ *
+ * The text is described by a sequence of pieces, each of which refers to a
+ * run of characters in one of two buffers: a read-only original buffer that
+ * holds the text as it was loaded, and an append-only add buffer that holds
+ * every character inserted since. The pieces are kept in a randomized
+ * balanced tree (treap) ordered by text position. Each node caches the number
+ * of characters and newlines in its subtree, so inserting, deleting and
+ * looking up lines take O(log n) time in the number of pieces, no matter how
+ * far apart consecutive edits are.
+ *
+ * The positions of all newlines in both buffers are indexed when the
+ * characters are added, so that counting or locating newlines inside a piece
+ * is a binary search instead of a scan.
+ *
+ * The EOF sentinel is not stored in either buffer. It is implicitly the last
+ * character of the text.
+ *
+ * UndoStack relies on deleted characters remaining in the gap of TextBuffer
+ * until the next edit. PieceTableBuffer emulates this by keeping the pieces
+ * that were removed at the current edit point. This costs nothing extra, since
+ * the buffers the pieces refer to are never overwritten.
+ */
+public class PieceTableBuffer extends TextBuffer{
+	private final static int MIN_ADD_BUFFER_SIZE = 256;
+
+	private char[] _original = new char[0];
+	/** Offsets of newlines in _original, in ascending order */
+	private int[] _originalNewlines = new int[0];
+	private int _originalNewlineCount = 0;
+
+	private char[] _added = new char[MIN_ADD_BUFFER_SIZE];
+	private int _addedLength = 0;
+	/** Offsets of newlines in _added, in ascending order */
+	private int[] _addedNewlines = new int[MIN_ADD_BUFFER_SIZE];
+	private int _addedNewlineCount = 0;
+
+	private Piece _root = null;
+	/** Number of chars in the text, excluding the EOF sentinel */
+	private int _length = 0;
+
+	/** Where the previous edit ended. Analogous to _gapStartIndex of TextBuffer */
+	private int _editPoint = 0;
+	/** Pieces deleted at _editPoint. Analogous to the contents of the gap */
+	private Piece _gap = null;
+	/** The piece that the previous insertion went into, if it can be extended */
+	private Piece _lastInsert = null;
+
+	/** Last piece found by charAt(), to speed up sequential access */
+	private Piece _hotPiece = null;
+	private int _hotPieceStart = 0;
+
+	/** Results of the last call to split() */
+	private Piece _splitLeft, _splitRight;
+	/** State of the pseudo-random generator for piece priorities */
+	private int _seed = 0x2545F491;
+
+
+	public PieceTableBuffer(){
+		super();
+	}
+
+	@Override
+	synchronized public void setBuffer(char[] newBuffer, String encoding,
+			String EOLstyle, int textSize, int lineCount){
+		_originalFormat = encoding;
+		_originalEOLType = EOLstyle;
+		_original = newBuffer;
+		indexOriginalNewlines(textSize);
+
+		_added = new char[MIN_ADD_BUFFER_SIZE];
+		_addedLength = 0;
+		_addedNewlines = new int[MIN_ADD_BUFFER_SIZE];
+		_addedNewlineCount = 0;
+
+		_root = (textSize > 0) ? createPiece(false, 0, textSize) : null;
+		_length = textSize;
+		_lineCount = lineCount;
+		_editPoint = 0;
+		_gap = null;
+		_lastInsert = null;
+		_hotPiece = null;
+		textChanged(0, textSize);
+	}
+
+	private void indexOriginalNewlines(int textSize){
+		int newlines = 0;
+		for(int i = 0; i < textSize; ++i){
+			if(_original[i] == LanguageCFamily.NEWLINE){
+				++newlines;
+			}
+		}
+
+		_originalNewlines = new int[newlines];
+		_originalNewlineCount = 0;
+		for(int i = 0; i < textSize; ++i){
+			if(_original[i] == LanguageCFamily.NEWLINE){
+				_originalNewlines[_originalNewlineCount++] = i;
+			}
+		}
+	}
+
+	@Override
+	synchronized public int getCharOffset(int targetLine){
+		if(targetLine < 0 || targetLine >= _lineCount){
+			return -1;
+		}
+		if(targetLine == 0){
+			return 0;
+		}
+
+		// find the targetLine-th newline; the line starts right after it
+		int newlinesLeft = targetLine;
+		int pieceStart = 0;
+		Piece t = _root;
+		while(t != null){
+			int leftNewlines = subNewlines(t._left);
+			if(newlinesLeft <= leftNewlines){
+				t = t._left;
+				continue;
+			}
+
+			newlinesLeft -= leftNewlines;
+			pieceStart += subLength(t._left);
+			if(newlinesLeft <= t._newlines){
+				int newlinePosition = nthNewline(t, newlinesLeft);
+				return pieceStart + (newlinePosition - t._start) + 1;
+			}
+			newlinesLeft -= t._newlines;
+			pieceStart += t._length;
+			t = t._right;
+		}
+
+		TextWarriorException.assertVerbose(false,
+			"getCharOffset: Line count does not match the newlines in the text");
+		return -1;
+	}
+
+	@Override
+	synchronized public int getLineIndex(int charOffset){
+		if(!isValid(charOffset)){
+			return -1;
+		}
+
+		// count the newlines before charOffset
+		int line = 0;
+		int offset = charOffset;
+		Piece t = _root;
+		while(t != null){
+			int leftLength = subLength(t._left);
+			if(offset < leftLength){
+				t = t._left;
+				continue;
+			}
+
+			line += subNewlines(t._left);
+			offset -= leftLength;
+			if(offset < t._length){
+				line += countNewlines(t._isAdded, t._start, t._start + offset);
+				break;
+			}
+			line += t._newlines;
+			offset -= t._length;
+			t = t._right;
+		}
+
+		return line;
+	}
+
+	@Override
+	synchronized public int getLineLength(int targetLine){
+		int lineStart = getCharOffset(targetLine);
+		if(lineStart == -1){
+			return 0;
+		}
+
+		int nextLineStart = (targetLine + 1 < _lineCount)
+				? getCharOffset(targetLine + 1)
+				: _length + 1; // last line ends with the EOF sentinel
+		return nextLineStart - lineStart;
+	}
+
+	@Override
+	synchronized public char charAt(int charOffset){
+		if(charOffset >= _length){
+			return LanguageCFamily.EOF;
+		}
+
+		if(_hotPiece == null || charOffset < _hotPieceStart
+				|| charOffset >= _hotPieceStart + _hotPiece._length){
+			findPiece(charOffset);
+		}
+		return bufferOf(_hotPiece)[_hotPiece._start + charOffset - _hotPieceStart];
+	}
+
+	/**
+	 * Sets _hotPiece to the piece containing charOffset, and _hotPieceStart
+	 * to the text position of the first char of that piece.
+	 * Precondition: 0 <= charOffset < _length
+	 */
+	private void findPiece(int charOffset){
+		int offset = charOffset;
+		int pieceStart = 0;
+		Piece t = _root;
+		while(t != null){
+			int leftLength = subLength(t._left);
+			if(offset < leftLength){
+				t = t._left;
+			}
+			else if(offset < leftLength + t._length){
+				_hotPiece = t;
+				_hotPieceStart = pieceStart + leftLength;
+				return;
+			}
+			else{
+				offset -= leftLength + t._length;
+				pieceStart += leftLength + t._length;
+				t = t._right;
+			}
+		}
+	}
+
+	@Override
+	synchronized public void getChars(int srcBegin, int srcEnd,
+			char[] dst, int dstBegin){
+		if(srcBegin < 0 || srcEnd > _length + 1 || srcBegin > srcEnd){
+			TextWarriorException.assertVerbose(false,
+					"Invalid range given to TextBuffer.getChars");
+			return;
+		}
+
+		int textEnd = Math.min(srcEnd, _length);
+		if(srcBegin < textEnd){
+			copyChars(_root, srcBegin, textEnd - srcBegin, dst, dstBegin);
+		}
+		if(srcEnd > _length){
+			dst[dstBegin + srcEnd - srcBegin - 1] = LanguageCFamily.EOF;
+		}
+	}
+
+	@Override
+	synchronized public void getSegment(int charOffset, Segment seg){
+		if(!isValid(charOffset)){
+			seg.set(EOF_ONLY, 0, 0, charOffset);
+			return;
+		}
+		if(charOffset == _length){
+			seg.set(EOF_ONLY, 0, 1, charOffset);
+			return;
+		}
+
+		if(_hotPiece == null || charOffset < _hotPieceStart
+				|| charOffset >= _hotPieceStart + _hotPiece._length){
+			findPiece(charOffset);
+		}
+		seg.set(bufferOf(_hotPiece),
+				_hotPiece._start + charOffset - _hotPieceStart,
+				_hotPiece._start + _hotPiece._length,
+				charOffset);
+	}
+
+	@Override
+	char[] gapSubSequence(int charCount){
+		char[] chars = new char[charCount];
+		copyChars(_gap, 0, charCount, chars, 0);
+		return chars;
+	}
+
+	/**
+	 * Copies count chars, starting from position from of the text described
+	 * by the subtree t, into dst
+	 */
+	private void copyChars(Piece t, int from, int count, char[] dst, int dstOffset){
+		while(t != null && count > 0){
+			int leftLength = subLength(t._left);
+			if(from < leftLength){
+				int leftCount = Math.min(count, leftLength - from);
+				copyChars(t._left, from, leftCount, dst, dstOffset);
+				dstOffset += leftCount;
+				count -= leftCount;
+				from = leftLength;
+			}
+
+			int pieceEnd = leftLength + t._length;
+			if(count > 0 && from < pieceEnd){
+				int pieceCount = Math.min(count, pieceEnd - from);
+				System.arraycopy(bufferOf(t), t._start + from - leftLength,
+						dst, dstOffset, pieceCount);
+				dstOffset += pieceCount;
+				count -= pieceCount;
+				from += pieceCount;
+			}
+
+			from -= pieceEnd;
+			t = t._right;
+		}
+	}
+
+	@Override
+	synchronized void realInsert(char[] c, int charOffset){
+		if(c.length == 0){
+			return;
+		}
+
+		int addStart = _addedLength;
+		int newlines = appendToAddBuffer(c);
+
+		if(_lastInsert != null && charOffset == _editPoint
+				&& _lastInsert._isAdded
+				&& _lastInsert._start + _lastInsert._length == addStart){
+			// continuation of the previous insertion; lengthen its piece
+			extendPiece(charOffset - 1, c.length, newlines);
+		}
+		else{
+			Piece inserted = createPiece(true, addStart, c.length);
+			split(_root, charOffset);
+			_root = merge(merge(_splitLeft, inserted), _splitRight);
+			_lastInsert = inserted;
+		}
+
+		_length += c.length;
+		_lineCount += newlines;
+		_editPoint = charOffset + c.length;
+		_gap = null;
+		_hotPiece = null;
+		textChanged(charOffset, c.length);
+	}
+
+	/**
+	 * Lengthens the piece containing charOffset by length chars, which must
+	 * already be appended to the add buffer right after the piece
+	 */
+	private void extendPiece(int charOffset, int length, int newlines){
+		int offset = charOffset;
+		Piece t = _root;
+		while(t != null){
+			t._subLength += length;
+			t._subNewlines += newlines;
+
+			int leftLength = subLength(t._left);
+			if(offset < leftLength){
+				t = t._left;
+			}
+			else if(offset < leftLength + t._length){
+				TextWarriorException.assertVerbose(t == _lastInsert,
+					"extendPiece: Piece to extend is not the last inserted piece");
+				t._length += length;
+				t._newlines += newlines;
+				return;
+			}
+			else{
+				offset -= leftLength + t._length;
+				t = t._right;
+			}
+		}
+	}
+
+	/**
+	 * Appends c to the add buffer and indexes its newlines
+	 *
+	 * @return The number of newlines in c
+	 */
+	private int appendToAddBuffer(char[] c){
+		if(_addedLength + c.length > _added.length){
+			int newSize = Math.max(_added.length * 2, _addedLength + c.length);
+			char[] temp = new char[newSize];
+			System.arraycopy(_added, 0, temp, 0, _addedLength);
+			_added = temp;
+		}
+
+		int newlines = 0;
+		for(int i = 0; i < c.length; ++i){
+			if(c[i] == LanguageCFamily.NEWLINE){
+				if(_addedNewlineCount == _addedNewlines.length){
+					int[] temp = new int[_addedNewlines.length * 2];
+					System.arraycopy(_addedNewlines, 0, temp, 0, _addedNewlineCount);
+					_addedNewlines = temp;
+				}
+				_addedNewlines[_addedNewlineCount++] = _addedLength + i;
+				++newlines;
+			}
+		}
+
+		System.arraycopy(c, 0, _added, _addedLength, c.length);
+		_addedLength += c.length;
+		return newlines;
+	}
+
+	@Override
+	synchronized void realDelete(int charOffset, int maxChars){
+		int totalChars = Math.min(maxChars, _length - charOffset);
+		if(totalChars <= 0){
+			return;
+		}
+
+		Piece removed = removeRange(charOffset, totalChars);
+		if(charOffset + totalChars == _editPoint){
+			// continuation of the previous deletion, as with backspaces
+			_gap = merge(removed, _gap);
+		}
+		else{
+			_gap = removed;
+		}
+		_editPoint = charOffset;
+		_lastInsert = null;
+		textChanged(charOffset, 0);
+	}
+
+	@Override
+	synchronized void shiftGapStart(int displacement){
+		if(displacement < 0){
+			int start = _editPoint + displacement;
+			Piece removed = removeRange(start, -displacement);
+			_gap = merge(removed, _gap);
+			_editPoint = start;
+			textChanged(start, 0);
+		}
+		else if(displacement > 0){
+			split(_gap, displacement);
+			Piece restored = _splitLeft;
+			_gap = _splitRight;
+			_length += displacement;
+			_lineCount += subNewlines(restored);
+
+			split(_root, _editPoint);
+			_root = merge(merge(_splitLeft, restored), _splitRight);
+			textChanged(_editPoint, displacement);
+			_editPoint += displacement;
+		}
+		_lastInsert = null;
+		_hotPiece = null;
+	}
+
+	/**
+	 * Removes totalChars chars starting from charOffset from the text
+	 *
+	 * @return The removed pieces
+	 */
+	private Piece removeRange(int charOffset, int totalChars){
+		split(_root, charOffset);
+		Piece left = _splitLeft;
+		split(_splitRight, totalChars);
+		Piece removed = _splitLeft;
+		_root = merge(left, _splitRight);
+
+		_length -= totalChars;
+		_lineCount -= subNewlines(removed);
+		_hotPiece = null;
+		return removed;
+	}
+
+	@Override
+	synchronized public int getTextLength(){
+		return _length + 1;
+	}
+
+	/**
+	 * Copies the text into a new original buffer covered by a single piece.
+	 * This releases the chars of the add buffer that were deleted or
+	 * replaced, and the pieces that many small edits leave behind.
+	 */
+	@Override
+	protected void compactStorage(){
+		char[] text = new char[_length];
+		getChars(0, _length, text, 0);
+		_original = text;
+		indexOriginalNewlines(_length);
+
+		_added = new char[MIN_ADD_BUFFER_SIZE];
+		_addedLength = 0;
+		_addedNewlines = new int[MIN_ADD_BUFFER_SIZE];
+		_addedNewlineCount = 0;
+
+		_root = (_length > 0) ? createPiece(false, 0, _length) : null;
+		_editPoint = 0;
+		_gap = null;
+		_lastInsert = null;
+		_hotPiece = null;
+	}
+
+	/**
+	 * Lines are looked up with the newline counts of the pieces, so there
+	 * is no line cache to size
+	 */
+	@Override
+	synchronized public void setLineCacheSize(int lineCount){
+		TextWarriorException.assertVerbose(false,
+			"PieceTableBuffer has no line cache");
+	}
+
+	/** Always 0, since there is no line cache */
+	@Override
+	synchronized public long getLineCacheHits(){
+		return 0;
+	}
+
+	/** Always 0, since there is no line cache */
+	@Override
+	synchronized public long getLineCacheMisses(){
+		return 0;
+	}
+
+
+	//---------------------------------------------------------------------
+	//----------------------------- Treap ---------------------------------
+
+	/**
+	 * Splits the subtree t into two, so that _splitLeft describes the first
+	 * position chars and _splitRight describes the rest. A piece straddling
+	 * the split position is cut in two.
+	 */
+	private void split(Piece t, int position){
+		if(t == null){
+			_splitLeft = null;
+			_splitRight = null;
+			return;
+		}
+
+		int leftLength = subLength(t._left);
+		if(position <= leftLength){
+			split(t._left, position);
+			t._left = _splitRight;
+			update(t);
+			_splitRight = t;
+		}
+		else if(position >= leftLength + t._length){
+			split(t._right, position - leftLength - t._length);
+			t._right = _splitLeft;
+			update(t);
+			_splitLeft = t;
+		}
+		else{
+			int cut = position - leftLength;
+			Piece tail = new Piece(t._isAdded, t._start + cut, t._length - cut,
+					countNewlines(t._isAdded, t._start + cut, t._start + t._length),
+					t._priority); // same priority as t keeps the heap order valid
+			t._newlines -= tail._newlines;
+			t._length = cut;
+
+			tail._right = t._right;
+			t._right = null;
+			update(tail);
+			update(t);
+			_splitLeft = t;
+			_splitRight = tail;
+		}
+	}
+
+	/**
+	 * Joins the subtrees a and b, where all pieces in a come before
+	 * those in b
+	 */
+	private Piece merge(Piece a, Piece b){
+		if(a == null){
+			return b;
+		}
+		if(b == null){
+			return a;
+		}
+
+		if(a._priority >= b._priority){
+			a._right = merge(a._right, b);
+			update(a);
+			return a;
+		}
+		else{
+			b._left = merge(a, b._left);
+			update(b);
+			return b;
+		}
+	}
+
+	private Piece createPiece(boolean isAdded, int start, int length){
+		_seed ^= _seed << 13;
+		_seed ^= _seed >>> 17;
+		_seed ^= _seed << 5;
+		return new Piece(isAdded, start, length,
+				countNewlines(isAdded, start, start + length), _seed);
+	}
+
+	private static void update(Piece t){
+		t._subLength = t._length + subLength(t._left) + subLength(t._right);
+		t._subNewlines = t._newlines + subNewlines(t._left) + subNewlines(t._right);
+	}
+
+	private static int subLength(Piece t){
+		return (t == null) ? 0 : t._subLength;
+	}
+
+	private static int subNewlines(Piece t){
+		return (t == null) ? 0 : t._subNewlines;
+	}
+
+	private char[] bufferOf(Piece t){
+		return t._isAdded ? _added : _original;
+	}
+
+	/**
+	 * Returns the number of newlines between start (inclusive) and end
+	 * (exclusive) of the original or add buffer
+	 */
+	private int countNewlines(boolean isAdded, int start, int end){
+		if(isAdded){
+			return lowerBound(_addedNewlines, _addedNewlineCount, end)
+				- lowerBound(_addedNewlines, _addedNewlineCount, start);
+		}
+		else{
+			return lowerBound(_originalNewlines, _originalNewlineCount, end)
+				- lowerBound(_originalNewlines, _originalNewlineCount, start);
+		}
+	}
+
+	/**
+	 * Returns the buffer offset of the n-th newline (1-based) in piece t
+	 */
+	private int nthNewline(Piece t, int n){
+		if(t._isAdded){
+			int first = lowerBound(_addedNewlines, _addedNewlineCount, t._start);
+			return _addedNewlines[first + n - 1];
+		}
+		else{
+			int first = lowerBound(_originalNewlines, _originalNewlineCount, t._start);
+			return _originalNewlines[first + n - 1];
+		}
+	}
+
+	/**
+	 * Returns the index of the first of the count sorted values that is
+	 * not less than key
+	 */
+	private static int lowerBound(int[] values, int count, int key){
+		int low = 0;
+		int high = count;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(values[mid] < key){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+
+	private static final class Piece{
+		/** Whether the chars are in the add buffer or the original buffer */
+		final boolean _isAdded;
+		final int _start;
+		int _length;
+		int _newlines;
+		final int _priority;
+		Piece _left = null;
+		Piece _right = null;
+		/** Total chars in the subtree rooted at this piece */
+		int _subLength;
+		/** Total newlines in the subtree rooted at this piece */
+		int _subNewlines;
+
+		Piece(boolean isAdded, int start, int length, int newlines, int priority){
+			_isAdded = isAdded;
+			_start = start;
+			_length = length;
+			_newlines = newlines;
+			_priority = priority;
+			_subLength = length;
+			_subNewlines = newlines;
+		}
+	}
+}
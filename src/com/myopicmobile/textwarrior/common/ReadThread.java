@@ -51,6 +51,11 @@ public class ReadThread extends FileIOThread{
 		
 		try{
 			detectEncodingAndEOL();
+			if(_buf instanceof RopeBuffer){
+				readChunks(fs, (RopeBuffer) _buf);
+				return;
+			}
+
 			char[] newBuffer = allocateBuffer();
 
 			Pair statistics = _converter.readAndConvert(fs, newBuffer,
@@ -62,6 +67,7 @@ public class ReadThread extends FileIOThread{
             			_EOLchar,
             			statistics.getFirst(),
             			statistics.getSecond());
+				detectLanguage();
 				_isDone = true;
             	broadcastComplete(ProgressSource.READ);
             }
@@ -74,9 +80,71 @@ public class ReadThread extends FileIOThread{
 		}
 	}
 
+	/**
+	 * Reads the file into rope one leaf-sized chunk at a time, so that the
+	 * whole text never has to fit in a single array
+	 */
+	private void readChunks(FileInputStream fs, final RopeBuffer rope)
+	throws IOException{
+		estimateTextLength();
+		rope.beginLoad();
+
+		char[] chunkBuffer = new char[RopeBuffer.LOAD_LEAF_SIZE];
+		_converter.readAndConvert(fs, chunkBuffer,
+				new CharEncodingUtils.ChunkListener(){
+					public void onChunk(char[] chunk, int length){
+						rope.appendChunk(chunk, 0, length);
+					}
+				},
+				_encoding, _EOLchar, _abortFlag);
+
+		if(!_abortFlag.isSet()){
+			rope.endLoad(_encoding, _EOLchar);
+			detectLanguage();
+			_isDone = true;
+			broadcastComplete(ProgressSource.READ);
+		}
+		else{
+			rope.cancelLoad();
+			broadcastCancel(ProgressSource.READ);
+		}
+	}
+
+	/**
+	 * Sets the language of _buf from the file name and the start of the
+	 * text, so that the first lex already uses it. The language is left
+	 * unchanged if it cannot be told.
+	 */
+	private void detectLanguage(){
+		// exclude the EOF sentinel
+		int sampleLength = Math.min(_buf.getTextLength() - 1,
+				LanguageDetector.SAMPLE_SIZE);
+		char[] sample = new char[sampleLength];
+		_buf.getChars(0, sampleLength, sample, 0);
+
+		LanguageCFamily language = LanguageDetector.detect(_file.getName(),
+				sample, sampleLength);
+		if(language != null){
+			_buf.setLanguage(language);
+		}
+	}
+
 	// throws OutOfMemoryError if there is not enough memory or
 	// total characters > Integer.MAX_VALUE
 	private char[] allocateBuffer(){
+		int implSize = TextBuffer.memoryNeeded(estimateTextLength());
+		if(implSize == -1){
+			throw new OutOfMemoryError();
+		}
+
+		return new char[implSize];
+	}
+
+	/**
+	 * Returns the upper bound of the number of chars in the file
+	 */
+	// throws OutOfMemoryError if total characters > Integer.MAX_VALUE
+	private int estimateTextLength(){
 		TextWarriorException.assertVerbose(
 				!_encoding.equals(EncodingScheme.TEXT_ENCODING_AUTO),
 				"AUTO encoding not yet resolved");
@@ -93,13 +161,8 @@ public class ReadThread extends FileIOThread{
 			throw new OutOfMemoryError();
 		}
 
-		int implSize = TextBuffer.memoryNeeded((int) textLength);
-		if(implSize == -1){
-			throw new OutOfMemoryError();
-		}
-
 		_totalChar = (int) textLength;
-		return new char[implSize];
+		return _totalChar;
 	}
 
 	private void detectEncodingAndEOL() throws IOException{
@@ -0,0 +1,737 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.ArrayList;
+
+/**
+ * A TextBuffer that stores its text as a rope of small chunks instead of one
+ * contiguous array, for documents too big to be held in a single char[].
+ *
+ * The chunks are the leaves of a B+ tree. Each leaf holds at most
+ * MAX_LEAF_SIZE chars, and each node caches the number of chars and newlines
+ * under it. All leaves are at the same depth. Inserting, deleting, charAt()
+ * and line lookups therefore take O(log n) time plus a scan of one leaf, and
+ * growing the text never copies more than a leaf.
+ *
+ * Text can be loaded one chunk at a time with appendChunk() and endLoad(),
+ * so that a file does not have to be read into one giant array first.
+ *
+ * The EOF sentinel is not stored in any leaf. It is implicitly the last
+ * character of the text.
+ *
+ * UndoStack relies on deleted characters remaining in the gap of TextBuffer
+ * until the next edit. RopeBuffer emulates this by keeping a copy of the
+ * characters deleted at the current edit point.
+ */
+public class RopeBuffer extends TextBuffer{
+	/** Maximum number of chars in a leaf */
+	public final static int MAX_LEAF_SIZE = 4096;
+	/** Leaves are filled up to this size on loading, to leave room for edits */
+	public final static int LOAD_LEAF_SIZE = 3072;
+	private final static int MIN_LEAF_SIZE = MAX_LEAF_SIZE / 4;
+	private final static int MAX_CHILDREN = 32;
+	private final static int MIN_CHILDREN = MAX_CHILDREN / 4;
+	private final static int MIN_GAP_CAPACITY = 256;
+
+	private Node _root = createLeaf();
+
+	/** Where the previous edit ended. Analogous to _gapStartIndex of TextBuffer */
+	private int _editPoint = 0;
+	/**
+	 * Chars deleted at _editPoint, stored in _gap[_gapFront, _gap.length).
+	 * Analogous to the contents of the gap
+	 */
+	private char[] _gap = new char[MIN_GAP_CAPACITY];
+	private int _gapFront = MIN_GAP_CAPACITY;
+
+	/** Last leaf found by charAt(), to speed up sequential access */
+	private Node _hotLeaf = null;
+	private int _hotLeafStart = 0;
+
+	/** Leaves received by appendChunk() that are not in the tree yet */
+	private ArrayList<Node> _loadedLeaves = null;
+
+
+	public RopeBuffer(){
+		super();
+	}
+
+	@Override
+	synchronized public void setBuffer(char[] newBuffer, String encoding,
+			String EOLstyle, int textSize, int lineCount){
+		beginLoad();
+		for(int i = 0; i < textSize; i += LOAD_LEAF_SIZE){
+			int chunkSize = Math.min(LOAD_LEAF_SIZE, textSize - i);
+			appendChunk(newBuffer, i, chunkSize);
+		}
+		endLoad(encoding, EOLstyle);
+	}
+
+	/**
+	 * Prepares to receive new text through appendChunk(). The current text
+	 * is kept until endLoad() is called.
+	 */
+	synchronized public void beginLoad(){
+		_loadedLeaves = new ArrayList<Node>();
+	}
+
+	/**
+	 * Appends length chars of chunk, starting from offset, to the text being
+	 * loaded. The chars are copied, so chunk can be reused by the caller.
+	 */
+	synchronized public void appendChunk(char[] chunk, int offset, int length){
+		TextWarriorException.assertVerbose(_loadedLeaves != null,
+			"appendChunk: beginLoad() was not called");
+		while(length > 0){
+			int leafSize = Math.min(length, MAX_LEAF_SIZE);
+			Node leaf = createLeaf();
+			System.arraycopy(chunk, offset, leaf._chars, 0, leafSize);
+			leaf._length = leafSize;
+			leaf._newlines = countNewlines(leaf._chars, 0, leafSize);
+			_loadedLeaves.add(leaf);
+			offset += leafSize;
+			length -= leafSize;
+		}
+	}
+
+	/**
+	 * Discards the chunks received since beginLoad(), leaving the current
+	 * text unchanged
+	 */
+	synchronized public void cancelLoad(){
+		_loadedLeaves = null;
+	}
+
+	/**
+	 * Replaces the current text with the chunks received since beginLoad()
+	 */
+	synchronized public void endLoad(String encoding, String EOLstyle){
+		Node[] nodes = _loadedLeaves.toArray(new Node[_loadedLeaves.size()]);
+		_loadedLeaves = null;
+
+		if(nodes.length == 0){
+			_root = createLeaf();
+		}
+		else{
+			while(nodes.length > 1){
+				nodes = groupNodes(nodes, 0, nodes.length);
+			}
+			_root = nodes[0];
+		}
+
+		_originalFormat = encoding;
+		_originalEOLType = EOLstyle;
+		_lineCount = _root._newlines + 1;
+		_editPoint = 0;
+		clearGap();
+		_hotLeaf = null;
+		textChanged(0, _root._length);
+	}
+
+	@Override
+	synchronized public int getCharOffset(int targetLine){
+		if(targetLine < 0 || targetLine >= _lineCount){
+			return -1;
+		}
+		if(targetLine == 0){
+			return 0;
+		}
+
+		// find the targetLine-th newline; the line starts right after it
+		int newlinesLeft = targetLine;
+		int nodeStart = 0;
+		Node n = _root;
+		while(!n.isLeaf()){
+			int i = 0;
+			Node child = n._children[0];
+			while(newlinesLeft > child._newlines){
+				newlinesLeft -= child._newlines;
+				nodeStart += child._length;
+				child = n._children[++i];
+			}
+			n = child;
+		}
+
+		for(int i = 0; i < n._length; ++i){
+			if(n._chars[i] == LanguageCFamily.NEWLINE && --newlinesLeft == 0){
+				return nodeStart + i + 1;
+			}
+		}
+
+		TextWarriorException.assertVerbose(false,
+			"getCharOffset: Line count does not match the newlines in the text");
+		return -1;
+	}
+
+	@Override
+	synchronized public int getLineIndex(int charOffset){
+		if(!isValid(charOffset)){
+			return -1;
+		}
+		if(charOffset >= _root._length){
+			return _lineCount - 1; // EOF is on the last line
+		}
+
+		// count the newlines before charOffset
+		int line = 0;
+		int offset = charOffset;
+		Node n = _root;
+		while(!n.isLeaf()){
+			int i = 0;
+			Node child = n._children[0];
+			while(offset >= child._length){
+				offset -= child._length;
+				line += child._newlines;
+				child = n._children[++i];
+			}
+			n = child;
+		}
+
+		return line + countNewlines(n._chars, 0, offset);
+	}
+
+	@Override
+	synchronized public int getLineLength(int targetLine){
+		int lineStart = getCharOffset(targetLine);
+		if(lineStart == -1){
+			return 0;
+		}
+
+		int nextLineStart = (targetLine + 1 < _lineCount)
+				? getCharOffset(targetLine + 1)
+				: _root._length + 1; // last line ends with the EOF sentinel
+		return nextLineStart - lineStart;
+	}
+
+	@Override
+	synchronized public char charAt(int charOffset){
+		if(charOffset >= _root._length){
+			return LanguageCFamily.EOF;
+		}
+
+		if(_hotLeaf == null || charOffset < _hotLeafStart
+				|| charOffset >= _hotLeafStart + _hotLeaf._length){
+			findLeaf(charOffset);
+		}
+		return _hotLeaf._chars[charOffset - _hotLeafStart];
+	}
+
+	/**
+	 * Sets _hotLeaf to the leaf containing charOffset, and _hotLeafStart
+	 * to the text position of the first char of that leaf.
+	 * Precondition: 0 <= charOffset < length of text, excluding EOF
+	 */
+	private void findLeaf(int charOffset){
+		int offset = charOffset;
+		int nodeStart = 0;
+		Node n = _root;
+		while(!n.isLeaf()){
+			int i = 0;
+			Node child = n._children[0];
+			while(offset >= child._length){
+				offset -= child._length;
+				nodeStart += child._length;
+				child = n._children[++i];
+			}
+			n = child;
+		}
+		_hotLeaf = n;
+		_hotLeafStart = nodeStart;
+	}
+
+	@Override
+	synchronized public void getSegment(int charOffset, Segment seg){
+		if(!isValid(charOffset)){
+			seg.set(EOF_ONLY, 0, 0, charOffset);
+			return;
+		}
+		if(charOffset == _root._length){
+			seg.set(EOF_ONLY, 0, 1, charOffset);
+			return;
+		}
+
+		if(_hotLeaf == null || charOffset < _hotLeafStart
+				|| charOffset >= _hotLeafStart + _hotLeaf._length){
+			findLeaf(charOffset);
+		}
+		seg.set(_hotLeaf._chars, charOffset - _hotLeafStart, _hotLeaf._length,
+				charOffset);
+	}
+
+	@Override
+	synchronized public void getChars(int srcBegin, int srcEnd,
+			char[] dst, int dstBegin){
+		if(srcBegin < 0 || srcEnd > _root._length + 1 || srcBegin > srcEnd){
+			TextWarriorException.assertVerbose(false,
+					"Invalid range given to TextBuffer.getChars");
+			return;
+		}
+
+		int textEnd = Math.min(srcEnd, _root._length);
+		if(srcBegin < textEnd){
+			copyChars(_root, srcBegin, textEnd - srcBegin, dst, dstBegin);
+		}
+		if(srcEnd > _root._length){
+			dst[dstBegin + srcEnd - srcBegin - 1] = LanguageCFamily.EOF;
+		}
+	}
+
+	@Override
+	char[] gapSubSequence(int charCount){
+		char[] chars = new char[charCount];
+		System.arraycopy(_gap, _gapFront, chars, 0, charCount);
+		return chars;
+	}
+
+	/**
+	 * Copies count chars, starting from position from of the text under
+	 * node n, into dst
+	 */
+	private static void copyChars(Node n, int from, int count, char[] dst, int dstOffset){
+		if(n.isLeaf()){
+			System.arraycopy(n._chars, from, dst, dstOffset, count);
+			return;
+		}
+
+		for(int i = 0; i < n._childCount && count > 0; ++i){
+			Node child = n._children[i];
+			if(from < child._length){
+				int childCount = Math.min(count, child._length - from);
+				copyChars(child, from, childCount, dst, dstOffset);
+				dstOffset += childCount;
+				count -= childCount;
+				from = 0;
+			}
+			else{
+				from -= child._length;
+			}
+		}
+	}
+
+	@Override
+	synchronized void realInsert(char[] c, int charOffset){
+		insertChars(c, charOffset);
+		_editPoint = charOffset + c.length;
+		clearGap();
+	}
+
+	private void insertChars(char[] c, int charOffset){
+		if(c.length == 0){
+			return;
+		}
+
+		Node[] replacements = insert(_root, charOffset, c,
+				countNewlines(c, 0, c.length));
+		if(replacements != null){
+			// root was split; grow the tree upwards
+			while(replacements.length > 1){
+				replacements = groupNodes(replacements, 0, replacements.length);
+			}
+			_root = replacements[0];
+		}
+		_lineCount = _root._newlines + 1;
+		_hotLeaf = null;
+		textChanged(charOffset, c.length);
+	}
+
+	/**
+	 * Inserts c at offset of the text under node n.
+	 *
+	 * @return null if n had room for c, or the nodes that replace n if n had
+	 * 		to be split
+	 */
+	private Node[] insert(Node n, int offset, char[] c, int newlines){
+		if(n.isLeaf()){
+			if(n._length + c.length <= MAX_LEAF_SIZE){
+				System.arraycopy(n._chars, offset, n._chars, offset + c.length,
+						n._length - offset);
+				System.arraycopy(c, 0, n._chars, offset, c.length);
+				n._length += c.length;
+				n._newlines += newlines;
+				return null;
+			}
+			return splitLeaf(n, offset, c);
+		}
+
+		// find the child to insert into; insertions at the end of a child
+		// go into that child instead of the start of the next one
+		int i = 0;
+		while(i < n._childCount - 1 && offset > n._children[i]._length){
+			offset -= n._children[i]._length;
+			++i;
+		}
+
+		Node[] replacements = insert(n._children[i], offset, c, newlines);
+		n._length += c.length;
+		n._newlines += newlines;
+		if(replacements == null){
+			return null;
+		}
+
+		// replace child i with its replacements
+		int childCount = n._childCount - 1 + replacements.length;
+		Node[] children = new Node[Math.max(childCount, MAX_CHILDREN)];
+		System.arraycopy(n._children, 0, children, 0, i);
+		System.arraycopy(replacements, 0, children, i, replacements.length);
+		System.arraycopy(n._children, i + 1, children, i + replacements.length,
+				n._childCount - i - 1);
+
+		if(childCount <= MAX_CHILDREN){
+			n._children = children;
+			n._childCount = childCount;
+			return null;
+		}
+		return groupNodes(children, 0, childCount);
+	}
+
+	/**
+	 * Inserts c at offset of leaf, spreading the result over as many new
+	 * leaves as needed
+	 */
+	private Node[] splitLeaf(Node leaf, int offset, char[] c){
+		int total = leaf._length + c.length;
+		char[] combined = new char[total];
+		System.arraycopy(leaf._chars, 0, combined, 0, offset);
+		System.arraycopy(c, 0, combined, offset, c.length);
+		System.arraycopy(leaf._chars, offset, combined, offset + c.length,
+				leaf._length - offset);
+
+		int leafCount = (total + LOAD_LEAF_SIZE - 1) / LOAD_LEAF_SIZE;
+		Node[] leaves = new Node[leafCount];
+		int start = 0;
+		for(int i = 0; i < leafCount; ++i){
+			int end = (int) ((long) total * (i + 1) / leafCount);
+			Node newLeaf = createLeaf();
+			System.arraycopy(combined, start, newLeaf._chars, 0, end - start);
+			newLeaf._length = end - start;
+			newLeaf._newlines = countNewlines(newLeaf._chars, 0, newLeaf._length);
+			leaves[i] = newLeaf;
+			start = end;
+		}
+		return leaves;
+	}
+
+	/**
+	 * Distributes count nodes, starting from nodes[first], evenly among the
+	 * fewest parents that can hold them
+	 *
+	 * @return The new parent nodes
+	 */
+	private static Node[] groupNodes(Node[] nodes, int first, int count){
+		int groupCount = (count + MAX_CHILDREN - 1) / MAX_CHILDREN;
+		Node[] groups = new Node[groupCount];
+		int start = 0;
+		for(int i = 0; i < groupCount; ++i){
+			int end = count * (i + 1) / groupCount;
+			Node parent = new Node();
+			parent._children = new Node[MAX_CHILDREN];
+			System.arraycopy(nodes, first + start, parent._children, 0, end - start);
+			parent._childCount = end - start;
+			updateCounts(parent);
+			groups[i] = parent;
+			start = end;
+		}
+		return groups;
+	}
+
+	@Override
+	synchronized void realDelete(int charOffset, int maxChars){
+		int totalChars = Math.min(maxChars, _root._length - charOffset);
+		if(totalChars <= 0){
+			return;
+		}
+
+		if(charOffset + totalChars != _editPoint){
+			// not a continuation of the previous deletion
+			clearGap();
+		}
+		prependToGap(charOffset, totalChars);
+		deleteChars(charOffset, totalChars);
+		_editPoint = charOffset;
+	}
+
+	private void deleteChars(int charOffset, int totalChars){
+		delete(_root, charOffset, totalChars);
+
+		if(!_root.isLeaf() && _root._childCount == 0){
+			_root = createLeaf();
+		}
+		while(!_root.isLeaf() && _root._childCount == 1){
+			_root = _root._children[0];
+		}
+		_lineCount = _root._newlines + 1;
+		_hotLeaf = null;
+		textChanged(charOffset, 0);
+	}
+
+	/**
+	 * Deletes count chars starting from offset of the text under node n.
+	 * Children of n that become too small are merged with their neighbors.
+	 */
+	private void delete(Node n, int offset, int count){
+		if(n.isLeaf()){
+			n._newlines -= countNewlines(n._chars, offset, offset + count);
+			System.arraycopy(n._chars, offset + count, n._chars, offset,
+					n._length - offset - count);
+			n._length -= count;
+			return;
+		}
+
+		int i = 0;
+		while(i < n._childCount && count > 0){
+			Node child = n._children[i];
+			if(offset >= child._length){
+				offset -= child._length;
+				++i;
+			}
+			else if(offset == 0 && count >= child._length){
+				// whole child deleted
+				count -= child._length;
+				removeChildren(n, i, 1);
+			}
+			else{
+				int childCount = Math.min(count, child._length - offset);
+				delete(child, offset, childCount);
+				count -= childCount;
+				offset = 0;
+				++i;
+			}
+		}
+
+		mergeSmallChildren(n);
+		updateCounts(n);
+	}
+
+	private static void mergeSmallChildren(Node n){
+		int i = 0;
+		while(i < n._childCount && n._childCount > 1){
+			if(!isTooSmall(n._children[i])){
+				++i;
+				continue;
+			}
+
+			int left = (i + 1 < n._childCount) ? i : i - 1;
+			Node[] merged = mergeSiblings(n._children[left], n._children[left + 1]);
+			n._children[left] = merged[0];
+			if(merged.length == 2){
+				n._children[left + 1] = merged[1];
+				i = left + 2;
+			}
+			else{
+				removeChildren(n, left + 1, 1);
+				i = left; // merged node could still be too small
+			}
+		}
+	}
+
+	private static boolean isTooSmall(Node n){
+		return n.isLeaf() ? n._length < MIN_LEAF_SIZE : n._childCount < MIN_CHILDREN;
+	}
+
+	/**
+	 * Combines the contents of adjacent siblings a and b into one node, or
+	 * redistributes them evenly between two nodes if one is not enough
+	 */
+	private static Node[] mergeSiblings(Node a, Node b){
+		if(a.isLeaf()){
+			int total = a._length + b._length;
+			if(total <= MAX_LEAF_SIZE){
+				System.arraycopy(b._chars, 0, a._chars, a._length, b._length);
+				a._length = total;
+				a._newlines += b._newlines;
+				return new Node[]{a};
+			}
+
+			// move chars between a and b until they are equal in size
+			int aLength = total / 2;
+			if(aLength > a._length){
+				int moved = aLength - a._length;
+				System.arraycopy(b._chars, 0, a._chars, a._length, moved);
+				System.arraycopy(b._chars, moved, b._chars, 0, b._length - moved);
+			}
+			else{
+				int moved = a._length - aLength;
+				System.arraycopy(b._chars, 0, b._chars, moved, b._length);
+				System.arraycopy(a._chars, aLength, b._chars, 0, moved);
+			}
+			a._length = aLength;
+			b._length = total - aLength;
+			a._newlines = countNewlines(a._chars, 0, a._length);
+			b._newlines = countNewlines(b._chars, 0, b._length);
+			return new Node[]{a, b};
+		}
+		else{
+			Node combined = new Node();
+			combined._childCount = a._childCount + b._childCount;
+			combined._children = new Node[combined._childCount];
+			System.arraycopy(a._children, 0, combined._children, 0, a._childCount);
+			System.arraycopy(b._children, 0, combined._children,
+					a._childCount, b._childCount);
+			// a or b may have had a single child that was too small, but could
+			// not be merged because it had no siblings
+			mergeSmallChildren(combined);
+			return groupNodes(combined._children, 0, combined._childCount);
+		}
+	}
+
+	private static void removeChildren(Node n, int first, int count){
+		System.arraycopy(n._children, first + count, n._children, first,
+				n._childCount - first - count);
+		n._childCount -= count;
+		for(int i = n._childCount; i < n._childCount + count; ++i){
+			n._children[i] = null;
+		}
+	}
+
+	private static void updateCounts(Node n){
+		int length = 0;
+		int newlines = 0;
+		for(int i = 0; i < n._childCount; ++i){
+			length += n._children[i]._length;
+			newlines += n._children[i]._newlines;
+		}
+		n._length = length;
+		n._newlines = newlines;
+	}
+
+	@Override
+	synchronized void shiftGapStart(int displacement){
+		if(displacement < 0){
+			int start = _editPoint + displacement;
+			prependToGap(start, -displacement);
+			deleteChars(start, -displacement);
+			_editPoint = start;
+		}
+		else if(displacement > 0){
+			insertChars(gapSubSequence(displacement), _editPoint);
+			_gapFront += displacement;
+			_editPoint += displacement;
+		}
+	}
+
+	/**
+	 * Copies totalChars chars starting from charOffset to the front of the
+	 * emulated gap
+	 */
+	private void prependToGap(int charOffset, int totalChars){
+		if(_gapFront < totalChars){
+			int used = _gap.length - _gapFront;
+			int newCapacity = Math.max(_gap.length * 2, used + totalChars);
+			char[] temp = new char[newCapacity];
+			System.arraycopy(_gap, _gapFront, temp, newCapacity - used, used);
+			_gap = temp;
+			_gapFront = newCapacity - used;
+		}
+
+		_gapFront -= totalChars;
+		copyChars(_root, charOffset, totalChars, _gap, _gapFront);
+	}
+
+	private void clearGap(){
+		if(_gap.length > MAX_LEAF_SIZE){
+			// release memory used by a big deletion
+			_gap = new char[MIN_GAP_CAPACITY];
+		}
+		_gapFront = _gap.length;
+	}
+
+	@Override
+	synchronized public int getTextLength(){
+		return _root._length + 1;
+	}
+
+	/**
+	 * Rebuilds the tree with leaves filled up to LOAD_LEAF_SIZE, as if the
+	 * text was loaded again. Edits can leave many leaves barely above
+	 * MIN_LEAF_SIZE, wasting up to three quarters of their chars.
+	 */
+	@Override
+	protected void compactStorage(){
+		int length = _root._length;
+		Node[] nodes = new Node[(length + LOAD_LEAF_SIZE - 1) / LOAD_LEAF_SIZE];
+		for(int i = 0; i < nodes.length; ++i){
+			int start = i * LOAD_LEAF_SIZE;
+			int leafSize = Math.min(LOAD_LEAF_SIZE, length - start);
+			Node leaf = createLeaf();
+			copyChars(_root, start, leafSize, leaf._chars, 0);
+			leaf._length = leafSize;
+			leaf._newlines = countNewlines(leaf._chars, 0, leafSize);
+			nodes[i] = leaf;
+		}
+
+		if(nodes.length == 0){
+			_root = createLeaf();
+		}
+		else{
+			while(nodes.length > 1){
+				nodes = groupNodes(nodes, 0, nodes.length);
+			}
+			_root = nodes[0];
+		}
+		_editPoint = 0;
+		clearGap();
+		_hotLeaf = null;
+	}
+
+	/**
+	 * Lines are looked up with the newline counts of the nodes, so there
+	 * is no line cache to size
+	 */
+	@Override
+	synchronized public void setLineCacheSize(int lineCount){
+		TextWarriorException.assertVerbose(false,
+			"RopeBuffer has no line cache");
+	}
+
+	/** Always 0, since there is no line cache */
+	@Override
+	synchronized public long getLineCacheHits(){
+		return 0;
+	}
+
+	/** Always 0, since there is no line cache */
+	@Override
+	synchronized public long getLineCacheMisses(){
+		return 0;
+	}
+
+	private static int countNewlines(char[] chars, int start, int end){
+		int newlines = 0;
+		for(int i = start; i < end; ++i){
+			if(chars[i] == LanguageCFamily.NEWLINE){
+				++newlines;
+			}
+		}
+		return newlines;
+	}
+
+	private static Node createLeaf(){
+		Node leaf = new Node();
+		leaf._chars = new char[MAX_LEAF_SIZE];
+		return leaf;
+	}
+
+
+	private static final class Node{
+		/** Total chars under this node */
+		int _length = 0;
+		/** Total newlines under this node */
+		int _newlines = 0;
+		/** Text of a leaf; null for internal nodes */
+		char[] _chars = null;
+		/** Children of an internal node; null for leaves */
+		Node[] _children = null;
+		int _childCount = 0;
+
+		boolean isLeaf(){
+			return _chars != null;
+		}
+	}
+}
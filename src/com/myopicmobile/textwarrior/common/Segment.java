@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * A run of consecutive chars of a text that are stored contiguously,
+ * from array[start] (inclusive) to array[end] (exclusive).
+ *
+ * array is the storage of the text itself, not a copy. It must not be
+ * modified, and unless the text is a TextSnapshot, it is only meaningful
+ * until the next edit.
+ *
+ * The fields are public so that scanning loops can read them into locals.
+ */
+public class Segment{
+	public char[] array;
+	public int start;
+	public int end;
+	/** Offset in the text of array[start] */
+	public int charOffset;
+
+	public void set(char[] chars, int segmentStart, int segmentEnd,
+			int segmentCharOffset){
+		array = chars;
+		start = segmentStart;
+		end = segmentEnd;
+		charOffset = segmentCharOffset;
+	}
+
+	public int length(){
+		return end - start;
+	}
+}
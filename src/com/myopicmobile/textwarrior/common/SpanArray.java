@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * A list of spans, which are continuous sequences of characters that have
+ * the same format like color, font, etc.
+ *
+ * Each span is recorded as the char offset it starts at and its token type,
+ * like Lexer.KEYWORD. A span extends until the start of the next span, or
+ * until the end of the text for the last span. Spans must be added in order
+ * of increasing start offset.
+ *
+ * Spans are packed into one int array, two ints per span, so that lexing a
+ * big file does not create an object per token.
+ *
+ * SpanArray is not thread-safe. The Lexer hands over a SpanArray to the UI
+ * thread only after it is done adding spans to it, and nothing modifies it
+ * after that.
+ */
+public class SpanArray{
+	private final static int MIN_CAPACITY = 16;
+
+	/** start0, type0, start1, type1, ... */
+	private int[] _spans;
+	private int _size = 0;
+
+	public SpanArray(){
+		_spans = new int[2 * MIN_CAPACITY];
+	}
+
+	/**
+	 * Creates a SpanArray with one NORMAL span covering the whole text
+	 */
+	public static SpanArray createDefault(){
+		SpanArray spans = new SpanArray();
+		spans.add(0, Lexer.NORMAL);
+		return spans;
+	}
+
+	public int size(){
+		return _size;
+	}
+
+	public boolean isEmpty(){
+		return _size == 0;
+	}
+
+	/**
+	 * Returns the char offset that the spanIndex-th span starts at
+	 */
+	public int getStart(int spanIndex){
+		return _spans[2 * spanIndex];
+	}
+
+	/**
+	 * Returns the token type of the spanIndex-th span
+	 */
+	public int getType(int spanIndex){
+		return _spans[2 * spanIndex + 1];
+	}
+
+	/**
+	 * Appends a span. start must not be less than the start of the last span.
+	 */
+	public void add(int start, int type){
+		if(2 * _size == _spans.length){
+			int[] temp = new int[2 * _spans.length];
+			System.arraycopy(_spans, 0, temp, 0, _spans.length);
+			_spans = temp;
+		}
+		_spans[2 * _size] = start;
+		_spans[2 * _size + 1] = type;
+		++_size;
+	}
+
+	/**
+	 * Appends spans [from, to) of src, with their start offsets moved by shift
+	 */
+	public void addAll(SpanArray src, int from, int to, int shift){
+		int count = to - from;
+		if(count <= 0){
+			return;
+		}
+		if(2 * (_size + count) > _spans.length){
+			int[] temp = new int[Math.max(2 * _spans.length, 2 * (_size + count))];
+			System.arraycopy(_spans, 0, temp, 0, 2 * _size);
+			_spans = temp;
+		}
+		System.arraycopy(src._spans, 2 * from, _spans, 2 * _size, 2 * count);
+		if(shift != 0){
+			for(int i = _size; i < _size + count; ++i){
+				_spans[2 * i] += shift;
+			}
+		}
+		_size += count;
+	}
+
+	public void removeLast(){
+		if(_size > 0){
+			--_size;
+		}
+	}
+
+	/**
+	 * Returns the index of the span that charOffset is in, which is the last
+	 * span that starts at or before charOffset, or 0 if there is none
+	 */
+	public int findSpan(int charOffset){
+		int low = 0;
+		int high = _size - 1;
+		while(low < high){
+			int mid = (low + high + 1) >>> 1;
+			if(_spans[2 * mid] <= charOffset){
+				low = mid;
+			}
+			else{
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the number of spans that start before charOffset
+	 */
+	public int countBefore(int charOffset){
+		int low = 0;
+		int high = _size;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(_spans[2 * mid] < charOffset){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -10,41 +10,85 @@ package com.myopicmobile.textwarrior.common;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.List;
-import java.util.Vector;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 //TODO Have all methods work with charOffsets and move all gap handling to logicalToRealIndex()
 public class TextBuffer {
 	// gap size must be > 0 to insert into full buffers successfully
 	protected final static int MIN_GAP_SIZE = 50;
+	/** Maximum number of chars added to the gap when the buffer grows */
+	protected final static int MAX_GAP_GROWTH = 1 << 20;
+	/** Maximum gap size left by compact() */
+	protected final static int MAX_IDLE_GAP_SIZE = 1 << 16;
+	/** Segment storage for backends that do not store the EOF sentinel */
+	protected final static char[] EOF_ONLY = {LanguageCFamily.EOF};
+	/**
+	 * Source of version numbers. It is shared by all buffers so that
+	 * versions of different buffers never coincide
+	 */
+	private final static AtomicLong _versionCounter = new AtomicLong();
+	/** Source of ids, which tell buffers apart */
+	private final static AtomicLong _idCounter = new AtomicLong();
 	protected char[] _contents;
 	protected int _gapStartIndex;
 	/** One past end of gap */
 	protected int _gapEndIndex;
 	protected int _lineCount;
-	/** The number of times memory is allocated for the buffer */
-	private int _allocMultiplier;
 	private TextBufferCache _cache;
+	private LineIndex _lineIndex;
 	private UndoStack _undoStack;
+	/** Changes whenever the text changes */
+	protected long _version;
+	/** Identifies the buffer. Snapshots take the id of their buffer */
+	private final long _id;
+	/**
+	 * The last snapshot taken. It is kept as long as memory allows, so that
+	 * the next snapshot only has to copy the text changed since
+	 */
+	private SoftReference<TextSnapshot> _lastSnapshot = null;
+	/** First char offset changed since _lastSnapshot was taken */
+	private int _changeStart = 0;
+	/** Number of chars at the end of the text unchanged since _lastSnapshot was taken */
+	private int _unchangedEnd = 0;
 
 	protected String _originalFormat;
 	protected String _originalEOLType;
 	/** Continuous seq of chars that have the same format (color, font, etc.) */
-	protected List<Pair> _spans;
+	protected SpanArray _spans;
+	/** The language that the text is lexed as */
+	protected LanguageCFamily _language = LanguageNonProg.getCharacterEncodings();
 
 
 	public TextBuffer(){
 		_contents = new char[MIN_GAP_SIZE + 1]; // extra char for EOF
 		_contents[MIN_GAP_SIZE] = LanguageCFamily.EOF;
-		_allocMultiplier = 1;
 		_gapStartIndex = 0;
 		_gapEndIndex = MIN_GAP_SIZE;
 		_lineCount = 1;
 		_cache = new TextBufferCache();
+		_lineIndex = new LineIndex(this);
+		_lineIndex.rebuild(1); // only EOF
 		_undoStack = new UndoStack(this);
 		_originalFormat = EncodingScheme.TEXT_ENCODING_UTF8;
 		_originalEOLType = EncodingScheme.LINE_BREAK_LF;
+		_version = _versionCounter.incrementAndGet();
+		_id = _idCounter.incrementAndGet();
+	}
+
+	/**
+	 * For read-only subclasses that store the text themselves, like
+	 * TextSnapshot. Takes the version, id, format and language of text, and
+	 * allocates no gap buffer, line index, line cache or undo stack, so
+	 * the subclass must override every method that uses them.
+	 */
+	protected TextBuffer(TextBuffer text){
+		_version = text.getVersion();
+		_id = text.getId();
+		_originalFormat = text.getEncodingScheme();
+		_originalEOLType = text.getEOLType();
+		_language = text.getLanguage();
 	}
 
 	/**
@@ -73,7 +117,9 @@ public class TextBuffer {
 		_contents = newBuffer;
 		initGap(textSize);
 		_lineCount = lineCount;
-		_allocMultiplier = 1;
+		_cache.clear();
+		_lineIndex.rebuild(getTextLength());
+		textChanged(0, textSize);
 	}
 
 
@@ -102,162 +148,81 @@ public class TextBuffer {
 	 * @return The character offset of targetLine, or -1 if the line does not exist
 	 */
 	synchronized public int getCharOffset(int targetLine){
-		if(targetLine < 0){
+		if(targetLine < 0 || targetLine >= _lineCount){
 			return -1;
 		}
-		
-		// start search from nearest known lineIndex~charOffset pair
-		Pair cachedEntry = _cache.getNearestLine(targetLine);
-		int cachedLine = cachedEntry.getFirst();
-		int cachedOffset = cachedEntry.getSecond();
-
-		int offset;
-		if (targetLine > cachedLine){
-			offset = findCharOffset(targetLine, cachedLine, cachedOffset);
-		}
-		else if (targetLine < cachedLine){
-			offset = findCharOffsetBackward(targetLine, cachedLine, cachedOffset);
+		if(targetLine == 0){
+			return 0;
 		}
-		else{
-			offset = cachedOffset;
+
+		// recently used lines need not be looked up again
+		int offset = _cache.getCharOffset(targetLine);
+		if(offset >= 0){
+			return offset;
 		}
-		
+
+		offset = _lineIndex.lineStart(targetLine);
 		if (offset >= 0){
 			// seek successful
 			_cache.updateEntry(targetLine, offset);
 		}
-
 		return offset;
 	}
 
-	/*
-	 * Precondition: startOffset is the offset of startLine
+	/**
+	 * Get the line number that charOffset is on
 	 */
-	private int findCharOffset(int targetLine, int startLine, int startOffset){
-		int workingLine = startLine;
-		int offset = logicalToRealIndex(startOffset);
-
-		TextWarriorException.assertVerbose(isValid(startOffset),
-			"findCharOffsetBackward: Invalid startingOffset given");
-		
-		while((workingLine < targetLine) && (offset < _contents.length)){
-			if (_contents[offset] == LanguageCFamily.NEWLINE){
-				++workingLine;
-			}
-			++offset;
-			
-			// skip the gap
-			if(offset == _gapStartIndex){
-				offset = _gapEndIndex;
-			}
+	synchronized public int getLineIndex(int charOffset){
+		if(!isValid(charOffset)){
+			return -1;
 		}
 
-		if (workingLine != targetLine){
-			return -1;
+		int line = _cache.getLineIndex(charOffset);
+		if(line >= 0){
+			return line;
 		}
-		return realToLogicalIndex(offset);
+		return _lineIndex.newlinesBefore(charOffset);
 	}
 
-	/*
-	 * Precondition: startOffset is the offset of startLine
+	/**
+	 * Counts the newlines from fromOffset (inclusive) to toOffset (exclusive).
+	 * 
+	 * Only LineIndex should use this method. No error checking is done.
 	 */
-	private int findCharOffsetBackward(int targetLine, int startLine, int startOffset){
-		if (targetLine == 0){
-			return 0;
+	final int countNewlinesBetween(int fromOffset, int toOffset){
+		if(toOffset <= _gapStartIndex){
+			return countNewlines(fromOffset, toOffset - fromOffset);
 		}
-
-		TextWarriorException.assertVerbose(isValid(startOffset),
-			"findCharOffsetBackward: Invalid startOffset given");
-		
-		int workingLine = startLine;
-		int offset = logicalToRealIndex(startOffset);
-		while(workingLine > (targetLine-1) && offset >= 0){ 
-			// skip behind the gap
-			if(offset == _gapEndIndex){
-				offset = _gapStartIndex;
-			}
-			--offset;
-
-			if (_contents[offset] == LanguageCFamily.NEWLINE){
-				--workingLine;
-			}
-
-		}
-		
-		int charOffset;
-		if (offset >= 0){
-			// now at the '\n' of the line before targetLine
-			charOffset = realToLogicalIndex(offset);
-			++charOffset;
+		else if(fromOffset >= _gapStartIndex){
+			return countNewlines(fromOffset + gapSize(), toOffset - fromOffset);
 		}
-		else{
-			TextWarriorException.assertVerbose(false,
-				"findCharOffsetBackward: Invalid cache entry or line arguments");
-			charOffset = -1;
-		}
-
-		return charOffset;
+		return countNewlines(fromOffset, _gapStartIndex - fromOffset)
+				+ countNewlines(_gapEndIndex, toOffset - _gapStartIndex);
 	}
 
 	/**
-	 * Get the line number that charOffset is on
+	 * Finds the n-th newline (1-based) at or after fromOffset.
+	 * 
+	 * Only LineIndex should use this method.
+	 * 
+	 * @return The char offset of the newline, or -1 if there are fewer than
+	 * 		n newlines after fromOffset
 	 */
-	synchronized public int getLineIndex(int charOffset){
-		if(!isValid(charOffset)){
-			return -1;
-		}
-		
-		Pair cachedEntry = _cache.getNearestCharOffset(charOffset);
-		int line = cachedEntry.getFirst();
-		int offset = logicalToRealIndex(cachedEntry.getSecond());
-		int targetOffset = logicalToRealIndex(charOffset);
-		int lastKnownLine = -1;
-		int lastKnownCharOffset = -1;
-		
-		if (targetOffset > offset){
-			// search forward
-			while((offset < targetOffset) && (offset < _contents.length)){			
-				if (_contents[offset] == LanguageCFamily.NEWLINE){
-					++line;
-					lastKnownLine = line;
-					lastKnownCharOffset = realToLogicalIndex(offset) + 1;
-				}
-				
-				++offset;
-				// skip the gap
-				if(offset == _gapStartIndex){
-					offset = _gapEndIndex;
-				}
-			}
-		}
-		else if (targetOffset < offset){
-			// search backward
-			while((offset > targetOffset) && (offset > 0)){
-				// skip behind the gap
-				if(offset == _gapEndIndex){
-					offset = _gapStartIndex;
-				}
-				--offset;
-				
-				if (_contents[offset] == LanguageCFamily.NEWLINE){
-					lastKnownLine = line;
-					lastKnownCharOffset = realToLogicalIndex(offset) + 1;
-					--line;
-				}
+	final int findNewline(int fromOffset, int n){
+		int newlinesLeft = n;
+		int offset = logicalToRealIndex(fromOffset);
+		while(offset < _contents.length){
+			// skip the gap
+			if(offset == _gapStartIndex){
+				offset = _gapEndIndex;
+				continue;
 			}
-		}
-
-
-		if (offset == targetOffset){
-			if(lastKnownLine != -1){
-				// cache the lookup entry
-				_cache.updateEntry(lastKnownLine, lastKnownCharOffset);
+			if(_contents[offset] == LanguageCFamily.NEWLINE && --newlinesLeft == 0){
+				return realToLogicalIndex(offset);
 			}
-			return line;
-		}
-		else{
-			return -1;
+			++offset;
 		}
+		return -1;
 	}
 
 
@@ -317,20 +282,78 @@ public class TextBuffer {
 			// -1 to exclude terminal EOF
 			totalChars = getTextLength() - charOffset - 1;
 		}
-		int realIndex = logicalToRealIndex(charOffset);
 		char[] chars = new char[totalChars];
-		
-		for (int i = 0; i < totalChars; ++i){
-			chars[i] = _contents[realIndex];
-			++realIndex;
-			// skip the gap
-			if(realIndex == _gapStartIndex){
-				realIndex = _gapEndIndex;
-			}
-		}
-		
+		getChars(charOffset, charOffset + totalChars, chars, 0);
 		return chars;
 	}
+
+	/**
+	 * Returns a view of up to maxChars number of chars starting at charOffset,
+	 * without copying them. The terminal EOF is excluded.
+	 * 
+	 * The view reads from this buffer directly, so it is only meaningful
+	 * until the next edit.
+	 * 
+	 * @return The view, which is empty if charOffset is invalid
+	 */
+	synchronized public BufferCharSequence getCharSequence(int charOffset, int maxChars){
+		if(!isValid(charOffset)){
+			return new BufferCharSequence(this, 0, 0);
+		}
+		int end = (int) Math.min((long) charOffset + Math.max(maxChars, 0),
+				getTextLength() - 1);
+		return new BufferCharSequence(this, charOffset, end);
+	}
+
+	/**
+	 * Copies the chars from srcBegin (inclusive) to srcEnd (exclusive) into
+	 * dst, starting at dstBegin. The range may include the terminal EOF.
+	 * 
+	 * If the range is invalid, nothing is copied.
+	 */
+	synchronized public void getChars(int srcBegin, int srcEnd,
+			char[] dst, int dstBegin){
+		if(srcBegin < 0 || srcEnd > getTextLength() || srcBegin > srcEnd){
+			TextWarriorException.assertVerbose(false,
+					"Invalid range given to TextBuffer.getChars");
+			return;
+		}
+
+		if(srcEnd <= _gapStartIndex){
+			System.arraycopy(_contents, srcBegin, dst, dstBegin, srcEnd - srcBegin);
+		}
+		else if(srcBegin >= _gapStartIndex){
+			System.arraycopy(_contents, srcBegin + gapSize(), dst, dstBegin,
+					srcEnd - srcBegin);
+		}
+		else{
+			// range straddles the gap
+			int beforeGap = _gapStartIndex - srcBegin;
+			System.arraycopy(_contents, srcBegin, dst, dstBegin, beforeGap);
+			System.arraycopy(_contents, _gapEndIndex, dst, dstBegin + beforeGap,
+					srcEnd - _gapStartIndex);
+		}
+	}
+	
+	/**
+	 * Sets seg to the chars from charOffset up to the next break in their
+	 * storage, which for a gap buffer is either the gap or the end of the
+	 * text. The chars are not copied.
+	 * 
+	 * If charOffset is invalid, seg is set to be empty.
+	 */
+	synchronized public void getSegment(int charOffset, Segment seg){
+		if(!isValid(charOffset)){
+			seg.set(EOF_ONLY, 0, 0, charOffset);
+		}
+		else if(isBeforeGap(charOffset)){
+			seg.set(_contents, charOffset, _gapStartIndex, charOffset);
+		}
+		else{
+			seg.set(_contents, charOffset + gapSize(), _contents.length,
+					charOffset);
+		}
+	}
 	
 	/**
 	 * Gets charCount number of consecutive characters starting from _gapStartIndex.
@@ -339,11 +362,7 @@ public class TextBuffer {
 	 */
 	char[] gapSubSequence(int charCount){
 		char[] chars = new char[charCount];
-		
-		for (int i = 0; i < charCount; ++i){
-			chars[i] = _contents[_gapStartIndex + i];
-		}
-		
+		System.arraycopy(_contents, _gapStartIndex, chars, 0, charCount);
 		return chars;
 	}
 
@@ -380,15 +399,14 @@ public class TextBuffer {
 			growBufferBy(c.length - gapSize());
 		}
 
-		for (int i = 0; i < c.length; ++i){
-			if(c[i] == LanguageCFamily.NEWLINE){
-				++_lineCount;
-			}
-			_contents[_gapStartIndex] = c[i];
-			++_gapStartIndex;
-		}
+		System.arraycopy(c, 0, _contents, _gapStartIndex, c.length);
+		int newlines = countNewlines(_gapStartIndex, c.length);
+		_lineCount += newlines;
+		_gapStartIndex += c.length;
+		_lineIndex.insert(charOffset, c.length, newlines);
+		_cache.textInserted(charOffset, c.length, newlines);
 
-		_cache.invalidateCache(charOffset);
+		textChanged(charOffset, c.length);
 	}
 	
 	/**
@@ -420,15 +438,19 @@ public class TextBuffer {
 			}
 		}
 
+		_lineIndex.delete(charOffset, totalChars);
+
 		// increase gap size
+		int newlines = 0;
 		for(int i = 0; i < totalChars; ++i){
 			--_gapStartIndex;
 			if(_contents[_gapStartIndex] == LanguageCFamily.NEWLINE){
-				--_lineCount;
+				++newlines;
 			}
 		}
-
-		_cache.invalidateCache(charOffset);
+		_lineCount -= newlines;
+		_cache.textDeleted(charOffset, totalChars, newlines);
+		textChanged(charOffset, 0);
 	}
 
 	/**
@@ -439,15 +461,78 @@ public class TextBuffer {
 	 * of insertions/deletions. No error checking is done.
 	 */
 	synchronized void shiftGapStart(int displacement){
+		// text before the gap has the same logical and real indices
+		int editOffset = (displacement >= 0)
+				? _gapStartIndex
+				: _gapStartIndex + displacement;
+
 		if(displacement >= 0){
-			_lineCount += countNewlines(_gapStartIndex, displacement);
+			int newlines = countNewlines(_gapStartIndex, displacement);
+			_lineCount += newlines;
+			_gapStartIndex += displacement;
+			_lineIndex.insert(editOffset, displacement, newlines);
+			_cache.textInserted(editOffset, displacement, newlines);
 		}
 		else{
-			_lineCount -= countNewlines(_gapStartIndex + displacement, -displacement);
+			int newlines = countNewlines(editOffset, -displacement);
+			_lineCount -= newlines;
+			_lineIndex.delete(editOffset, -displacement);
+			_gapStartIndex += displacement;
+			_cache.textDeleted(editOffset, -displacement, newlines);
 		}
+		textChanged(editOffset, Math.max(displacement, 0));
+	}
+
+	/**
+	 * Records that the text from charOffset onwards was replaced, and that
+	 * the replacement ends charsInserted chars after charOffset.
+	 * Every method that modifies the text must call this afterwards.
+	 */
+	final protected void textChanged(int charOffset, int charsInserted){
+		_version = _versionCounter.incrementAndGet();
+		_changeStart = Math.min(_changeStart, charOffset);
+		_unchangedEnd = Math.min(_unchangedEnd,
+				getTextLength() - charOffset - charsInserted);
+	}
 
-		_gapStartIndex += displacement;
-		_cache.invalidateCache(realToLogicalIndex(_gapStartIndex - 1) + 1);
+	/**
+	 * Returns the version of the text. The version changes whenever the
+	 * text changes, and is never the same for two different buffers.
+	 */
+	synchronized public long getVersion(){
+		return _version;
+	}
+
+	/**
+	 * Returns the id of the buffer, which is shared by its snapshots and
+	 * stays the same when the text changes
+	 */
+	public long getId(){
+		return _id;
+	}
+
+	/**
+	 * Returns an immutable copy of the current text, which other threads
+	 * can read without locking this buffer.
+	 * 
+	 * Only the text changed since the previous snapshot is copied; the rest
+	 * is shared with the previous snapshot.
+	 */
+	synchronized public TextSnapshot snapshot(){
+		TextSnapshot previous = (_lastSnapshot != null)
+				? _lastSnapshot.get()
+				: null;
+		if(previous != null && previous.getVersion() == _version
+				&& previous.getLanguage() == _language){
+			return previous;
+		}
+
+		TextSnapshot snapshot = new TextSnapshot(this, previous,
+				_changeStart, _unchangedEnd);
+		_lastSnapshot = new SoftReference<TextSnapshot>(snapshot);
+		_changeStart = Integer.MAX_VALUE;
+		_unchangedEnd = Integer.MAX_VALUE;
+		return snapshot;
 	}
 
 	//does NOT skip the gap when examining consecutive positions
@@ -466,22 +551,28 @@ public class TextBuffer {
 	 * Adjusts gap so that _gapStartIndex is at newGapStart
 	 */
 	final protected void shiftGapLeft(int newGapStart){
-		while(_gapStartIndex > newGapStart){
-			--_gapEndIndex;
-			--_gapStartIndex;
-			_contents[_gapEndIndex] = _contents[_gapStartIndex];
+		int charsToMove = _gapStartIndex - newGapStart;
+		if(charsToMove <= 0){
+			return;
 		}
+		_gapEndIndex -= charsToMove;
+		_gapStartIndex = newGapStart;
+		System.arraycopy(_contents, _gapStartIndex, _contents, _gapEndIndex,
+				charsToMove);
 	}
 
 	/**
 	 * Adjusts gap so that _gapEndIndex is at newGapEnd
 	 */
 	final protected void shiftGapRight(int newGapEnd){
-		while(_gapEndIndex < newGapEnd){
-			_contents[_gapStartIndex] = _contents[_gapEndIndex];
-			++_gapStartIndex;
-			++_gapEndIndex;
+		int charsToMove = newGapEnd - _gapEndIndex;
+		if(charsToMove <= 0){
+			return;
 		}
+		System.arraycopy(_contents, _gapEndIndex, _contents, _gapStartIndex,
+				charsToMove);
+		_gapStartIndex += charsToMove;
+		_gapEndIndex = newGapEnd;
 	}
 	
 	/**
@@ -489,55 +580,112 @@ public class TextBuffer {
 	 * Precondition: real contents are from _contents[0] to _contents[contentsLength-1]
 	 */
 	protected void initGap(int contentsLength){
-		int toPosition = _contents.length - 1;
-		_contents[toPosition--] = LanguageCFamily.EOF; // mark end of file
-		int fromPosition = contentsLength - 1;
-		while(fromPosition >= 0){
-			_contents[toPosition--] = _contents[fromPosition--];
-		}
+		int eofIndex = _contents.length - 1;
+		System.arraycopy(_contents, 0, _contents, eofIndex - contentsLength,
+				contentsLength);
+		_contents[eofIndex] = LanguageCFamily.EOF; // mark end of file
 		_gapStartIndex = 0;
-		_gapEndIndex = toPosition + 1; // went one-past in the while loop
+		_gapEndIndex = eofIndex - contentsLength;
 	}
 	
 	/**
-	 * Copies _contents into a buffer that is larger by
-	 * 		minIncrement + INITIAL_GAP_SIZE * _allocCount bytes.
+	 * Copies _contents into a buffer with a gap that is larger by at least
+	 * minIncrement chars.
 	 * 
-	 * _allocMultiplier doubles on every call to this method, to avoid the 
-	 * overhead of repeated allocations.
+	 * The extra space grows with the size of the text, so that a series of
+	 * insertions only reallocates a logarithmic number of times. It is capped
+	 * at MAX_GAP_GROWTH so that big files do not reserve too much memory.
 	 */
+	// throws OutOfMemoryError if the new size > Integer.MAX_VALUE
 	protected void growBufferBy(int minIncrement){
-		//TODO handle new size > MAX_INT or allocation failure
-		int increasedSize = minIncrement + MIN_GAP_SIZE * _allocMultiplier;
-		char[] temp = new char[_contents.length + increasedSize];
-		int i = 0;
-		while(i < _gapStartIndex){
-			temp[i] = _contents[i];
-			++i;
-		}
-		
-		i = _gapEndIndex;
-		while(i < _contents.length){
-			temp[i + increasedSize] = _contents[i];
-			++i;
+		int spare = Math.max(MIN_GAP_SIZE,
+				Math.min(getTextLength() >> 1, MAX_GAP_GROWTH));
+		long newGapSize = (long) gapSize() + minIncrement + spare;
+		if(getTextLength() + newGapSize > Integer.MAX_VALUE){
+			newGapSize = Integer.MAX_VALUE - getTextLength();
+			if(newGapSize < gapSize() + minIncrement){
+				throw new OutOfMemoryError();
+			}
 		}
+		resizeGap((int) newGapSize);
+	}
 
-		_gapEndIndex += increasedSize;
+	/**
+	 * Copies _contents into a buffer with a gap of newGapSize chars
+	 */
+	private void resizeGap(int newGapSize){
+		int afterGap = _contents.length - _gapEndIndex;
+		char[] temp = new char[_gapStartIndex + newGapSize + afterGap];
+		System.arraycopy(_contents, 0, temp, 0, _gapStartIndex);
+		System.arraycopy(_contents, _gapEndIndex, temp, temp.length - afterGap,
+				afterGap);
+		_gapEndIndex = temp.length - afterGap;
 		_contents = temp;
-		_allocMultiplier <<= 1;
+	}
+
+	/**
+	 * Releases memory held by an oversized gap, as left behind by a big
+	 * deletion or a series of big insertions.
+	 * 
+	 * Intended to be called when the user is not editing, such as when the
+	 * application is paused, since this copies the whole text.
+	 */
+	synchronized public void compact(){
+		// deleted chars in the gap may be discarded. This also means the
+		// next edit will not be merged with the previous one for undo
+		_undoStack.recordPendingData();
+		compactStorage();
+	}
+
+	/**
+	 * Releases the memory of the storage that compact() is free to discard.
+	 * Subclasses that store the text differently override this.
+	 */
+	protected void compactStorage(){
+		int idleGapSize = Math.max(MIN_GAP_SIZE,
+				Math.min(getTextLength() >> 3, MAX_IDLE_GAP_SIZE));
+		if(gapSize() > 2 * idleGapSize){
+			resizeGap(idleGapSize);
+		}
 	}
 	
 	/**
 	 * Returns the total number of characters in the text, including the 
 	 * EOF sentinel char
 	 */
-	final synchronized public int getTextLength(){
+	synchronized public int getTextLength(){
 		return _contents.length - gapSize();
 	}
 
 	final synchronized public int getLineCount(){
 		return _lineCount;
 	}
+
+	/**
+	 * Sets the number of lines remembered by the cache used to look up
+	 * line offsets. Bigger caches suit devices that can spare the memory
+	 * and views that show many lines at once. The cache starts empty again.
+	 *
+	 * Subclasses that index their lines without the cache do not use it,
+	 * and report no hits or misses.
+	 */
+	synchronized public void setLineCacheSize(int lineCount){
+		_cache = new TextBufferCache(lineCount);
+	}
+
+	/**
+	 * Returns the number of line lookups answered by the line cache
+	 */
+	synchronized public long getLineCacheHits(){
+		return _cache.getHitCount();
+	}
+
+	/**
+	 * Returns the number of line lookups not answered by the line cache
+	 */
+	synchronized public long getLineCacheMisses(){
+		return _cache.getMissCount();
+	}
 	
 	final synchronized public boolean isValid(int charOffset){
 		if(charOffset >= 0 && charOffset < getTextLength()){
@@ -584,11 +732,10 @@ public class TextBuffer {
 	}
 	
 	public void clearSpans(){
-		_spans = new Vector<Pair>();
-	    _spans.add(new Pair(0, Lexer.NORMAL));
+		_spans = SpanArray.createDefault();
 	}
 	
-	public List<Pair> getSpans(){
+	public SpanArray getSpans(){
 		return _spans;
 	}
 	
@@ -597,13 +744,24 @@ public class TextBuffer {
 	 * Spans are continuous sequences of characters that have the same format 
 	 * like color, font, etc.
 	 * 
-	 * @param spans A collection of Pairs, where Pair.first is the start 
-	 * 		position of the token, and Pair.second is the type of the token.
+	 * @param spans The start position and type of each token, in order
 	 */
-	public void setSpans(List<Pair> spans){
+	public void setSpans(SpanArray spans){
 		_spans = spans;
 	}
 
+	synchronized public LanguageCFamily getLanguage(){
+		return _language;
+	}
+
+	/**
+	 * Sets the language that the text is lexed as. Snapshots taken
+	 * afterwards carry the new language.
+	 */
+	synchronized public void setLanguage(LanguageCFamily language){
+		_language = language;
+	}
+
 	/**
 	 * Returns true if in batch edit mode
 	 */
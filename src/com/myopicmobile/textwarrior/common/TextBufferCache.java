@@ -9,115 +9,221 @@
 package com.myopicmobile.textwarrior.common;
 
 /**
- * A LRU cache that stores the last seek line and its corresponding index so
- * that future lookups can start from the cached position instead of
- * the beginning of the file
- * 
- * _cache.Pair.First = line index
- * _cache.Pair.Second = character offset of first character in that line
- * 
+ * A LRU cache of recently looked up lines and the char offsets they start at,
+ * so that repeated lookups of the same lines do not have to search the text.
+ *
+ * Entries are kept sorted by char offset, which is also the order of their
+ * line indices, in parallel arrays so that lookups are a binary search and
+ * do not allocate. When the text is edited, entries after the edit are
+ * shifted by the number of chars and newlines inserted or deleted instead
+ * of being discarded.
+ *
  * TextBufferCache always has one valid entry (0,0) signifying that in line 0,
- * the first character is at offset 0. This is true even for an "empty" file, 
+ * the first character is at offset 0. This is true even for an "empty" file,
  * which is not really empty because TextBuffer inserts a EOF character in it.
- * 
- * Therefore, _cache[0] is always occupied by the entry (0,0). It is not affected
- * by invalidateCache, cache miss, etc. operations
+ *
+ * Therefore, entry 0 is always (0,0). It is not affected by edits, cache
+ * misses, evictions, etc.
+ *
+ * The numbers of hits and misses are counted to help choose a cache size.
  */
 public class TextBufferCache {
-	private static final int CACHE_SIZE = 4; // minimum = 1
-	private Pair[] _cache = new Pair[CACHE_SIZE];
-	
+	public static final int DEFAULT_CACHE_SIZE = 16;
+
+	private final int _capacity; // minimum = 1
+	private int _size;
+	private final int[] _lines;
+	private final int[] _offsets;
+	/** Value of _clock when each entry was last used */
+	private final int[] _lastUsed;
+	private int _clock = 0;
+	private long _hits = 0;
+	private long _misses = 0;
+
 	public TextBufferCache(){
-		_cache[0] = new Pair(0, 0); // invariant lineIndex and charOffset relation
-		for (int i = 1; i < CACHE_SIZE; ++i){
-			_cache[i] = new Pair(-1, -1);
-			// -1 line index is used implicitly in calculations in getNearestMatch
-		}
+		this(DEFAULT_CACHE_SIZE);
 	}
 
-	//TODO consider extracting common parts with getNearestCharOffset(int)
-	public Pair getNearestLine(int lineIndex){
-		int nearestMatch = 0;
-		int nearestDistance = Integer.MAX_VALUE;
-		for(int i = 0; i < CACHE_SIZE; ++i){
-			int distance = Math.abs(lineIndex - _cache[i].getFirst());
-			if (distance < nearestDistance){
-				nearestDistance = distance;
-				nearestMatch = i;
-			}
+	public TextBufferCache(int capacity){
+		_capacity = Math.max(capacity, 1);
+		_lines = new int[_capacity];
+		_offsets = new int[_capacity];
+		_lastUsed = new int[_capacity];
+		_size = 1; // invariant lineIndex and charOffset relation (0,0)
+	}
+
+	public int getCapacity(){
+		return _capacity;
+	}
+
+	public long getHitCount(){
+		return _hits;
+	}
+
+	public long getMissCount(){
+		return _misses;
+	}
+
+	/**
+	 * Returns the char offset that lineIndex starts at, or -1 if lineIndex
+	 * is not cached
+	 */
+	public int getCharOffset(int lineIndex){
+		int i = findLine(lineIndex);
+		if(_lines[i] != lineIndex){
+			++_misses;
+			return -1;
 		}
+		++_hits;
+		_lastUsed[i] = ++_clock;
+		return _offsets[i];
+	}
 
-		Pair nearestEntry = _cache[nearestMatch];
-		makeHead(nearestMatch);
-		return nearestEntry;
+	/**
+	 * Returns the line that charOffset is on, or -1 if that cannot be told
+	 * from the cache. This is the case unless charOffset is the start of a
+	 * cached line, or lies between the starts of two consecutive cached lines.
+	 */
+	public int getLineIndex(int charOffset){
+		int i = findCharOffset(charOffset);
+		if(_offsets[i] != charOffset &&
+				(i + 1 >= _size || _lines[i + 1] != _lines[i] + 1)){
+			++_misses;
+			return -1;
+		}
+		++_hits;
+		_lastUsed[i] = ++_clock;
+		return _lines[i];
 	}
-	
-	public Pair getNearestCharOffset(int charOffset){
-		int nearestMatch = 0;
-		int nearestDistance = Integer.MAX_VALUE;
-		for(int i = 0; i < CACHE_SIZE; ++i){
-			int distance = Math.abs(charOffset - _cache[i].getSecond());
-			if (distance < nearestDistance){
-				nearestDistance = distance;
-				nearestMatch = i;
+
+	/**
+	 * Returns the position of the last entry with line index <= lineIndex
+	 */
+	private int findLine(int lineIndex){
+		int low = 0;
+		int high = _size - 1;
+		while(low < high){
+			int mid = (low + high + 1) >>> 1;
+			if(_lines[mid] <= lineIndex){
+				low = mid;
+			}
+			else{
+				high = mid - 1;
 			}
 		}
-		
-		Pair nearestEntry = _cache[nearestMatch];
-		makeHead(nearestMatch);
-		return nearestEntry;
+		return low;
 	}
-	
+
 	/**
-	 * Place _cache[newHead] at the top of the list
+	 * Returns the position of the last entry with char offset <= charOffset
 	 */
-	private void makeHead(int newHead){
-		if(newHead == 0){
-			return;
-		}
-		
-		Pair temp = _cache[newHead];
-		for(int i = newHead; i > 1; --i){
-			_cache[i] = _cache[i-1];
+	private int findCharOffset(int charOffset){
+		int low = 0;
+		int high = _size - 1;
+		while(low < high){
+			int mid = (low + high + 1) >>> 1;
+			if(_offsets[mid] <= charOffset){
+				low = mid;
+			}
+			else{
+				high = mid - 1;
+			}
 		}
-		_cache[1] = temp; // _cache[0] is always occupied by (0,0)
+		return low;
 	}
-	
+
 	public void updateEntry(int lineIndex, int charOffset){
 		if(lineIndex <= 0){
 		// lineIndex 0 always has 0 charOffset; ignore. Also ignore negative lineIndex
 			return;
 		}
 
-		if(!replaceEntry(lineIndex, charOffset)){
-			insertEntry(lineIndex, charOffset);
+		int i = findLine(lineIndex);
+		if(_lines[i] == lineIndex){
+			_offsets[i] = charOffset;
+			_lastUsed[i] = ++_clock;
+			return;
+		}
+
+		int insertAt = i + 1;
+		if(_size == _capacity){
+			if(_capacity == 1){
+				return;
+			}
+			int evicted = leastRecentlyUsed();
+			removeEntries(evicted, evicted + 1);
+			if(evicted < insertAt){
+				--insertAt;
+			}
 		}
+
+		int entriesAfter = _size - insertAt;
+		System.arraycopy(_lines, insertAt, _lines, insertAt + 1, entriesAfter);
+		System.arraycopy(_offsets, insertAt, _offsets, insertAt + 1, entriesAfter);
+		System.arraycopy(_lastUsed, insertAt, _lastUsed, insertAt + 1, entriesAfter);
+		_lines[insertAt] = lineIndex;
+		_offsets[insertAt] = charOffset;
+		_lastUsed[insertAt] = ++_clock;
+		++_size;
 	}
-	
-	private boolean replaceEntry(int lineIndex, int charOffset){
-		for (int i = 1; i < CACHE_SIZE; ++i){
-			if(_cache[i].getFirst() == lineIndex){
-				_cache[i].setSecond(charOffset);
-				return true;
+
+	private int leastRecentlyUsed(){
+		int oldest = 1; // entry 0 is never evicted
+		for(int i = 2; i < _size; ++i){
+			// compare ages rather than times, in case _clock wraps around
+			if(_clock - _lastUsed[i] > _clock - _lastUsed[oldest]){
+				oldest = i;
 			}
 		}
-		return false;
+		return oldest;
 	}
-	
-	private void insertEntry(int lineIndex, int charOffset){
-		makeHead(CACHE_SIZE-1); // rotate right list of entries
-		// replace head (most recently used entry) with new entry
-		_cache[1] = new Pair(lineIndex, charOffset);
+
+	/**
+	 * Removes the entries at positions [from, to)
+	 */
+	private void removeEntries(int from, int to){
+		int entriesAfter = _size - to;
+		System.arraycopy(_lines, to, _lines, from, entriesAfter);
+		System.arraycopy(_offsets, to, _offsets, from, entriesAfter);
+		System.arraycopy(_lastUsed, to, _lastUsed, from, entriesAfter);
+		_size -= to - from;
 	}
 
 	/**
-	 * Invalidate all cache entries that have char offset >= fromCharOffset
+	 * Updates the entries after charCount chars, of which newlines are line
+	 * terminators, were inserted at charOffset
 	 */
-	final protected void invalidateCache(int fromCharOffset){
-		for (int i = 1; i < CACHE_SIZE; ++i){
-			if(_cache[i].getSecond() >= fromCharOffset){
-				_cache[i] = new Pair(-1, -1);
-			}
+	final protected void textInserted(int charOffset, int charCount, int newlines){
+		// lines starting at charOffset still start there
+		for(int i = findCharOffset(charOffset) + 1; i < _size; ++i){
+			_offsets[i] += charCount;
+			_lines[i] += newlines;
+		}
+	}
+
+	/**
+	 * Updates the entries after charCount chars, of which newlines are line
+	 * terminators, were deleted from charOffset onwards
+	 */
+	final protected void textDeleted(int charOffset, int charCount, int newlines){
+		// lines starting inside the deleted range, or right after it,
+		// may now start elsewhere
+		int from = findCharOffset(charOffset) + 1;
+		int to = findCharOffset(charOffset + charCount) + 1;
+		if(to > from){
+			removeEntries(from, to);
 		}
+
+		for(int i = from; i < _size; ++i){
+			_offsets[i] -= charCount;
+			_lines[i] -= newlines;
+		}
+	}
+
+	/**
+	 * Removes all entries except (0,0), as when the whole text is replaced
+	 */
+	final protected void clear(){
+		_size = 1;
 	}
 }
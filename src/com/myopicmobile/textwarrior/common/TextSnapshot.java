@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+/**
+ * An immutable copy of the text of a TextBuffer, as it was at one version.
+ *
+ * Worker threads like the lexer, find and save read snapshots instead of the
+ * live TextBuffer, so that they neither lock the TextBuffer nor get blocked
+ * by edits made on the UI thread. Since a snapshot never changes, any number
+ * of threads can read it without synchronization.
+ *
+ * The text is stored in chunks of up to CHUNK_SIZE chars. The chunks are
+ * never modified once created, so a new snapshot of the same TextBuffer
+ * shares all chunks outside the range edited since the previous snapshot,
+ * and only copies the edited range.
+ *
+ * A snapshot carries the version of the TextBuffer it was taken from.
+ * Results computed from it are stale if the version of the TextBuffer
+ * has changed since.
+ *
+ * Methods that modify the text do nothing.
+ */
+public class TextSnapshot extends TextBuffer{
+	private final static int CHUNK_SIZE = 4096;
+
+	private final char[][] _chunks;
+	/** Offset of the first char of each chunk, followed by the text length */
+	private final int[] _chunkStarts;
+	/** Number of newlines before each chunk, followed by the total */
+	private final int[] _newlinesBefore;
+	/**
+	 * Index of the chunk read last, to speed up sequential access.
+	 * It is only a hint that is checked before use, so it is safe for
+	 * threads to overwrite each other's value.
+	 */
+	private int _hotChunk = 0;
+
+	/**
+	 * Takes a snapshot of text. Chunks of previous, an earlier snapshot of
+	 * the same text, are reused where possible.
+	 *
+	 * @param previous An earlier snapshot of text, or null
+	 * @param changeStart Offset of the first char changed since previous
+	 * @param unchangedEnd Number of chars at the end of the text unchanged
+	 * 		since previous
+	 */
+	TextSnapshot(TextBuffer text, TextSnapshot previous,
+			int changeStart, int unchangedEnd){
+		super(text);
+
+		int length = text.getTextLength();
+		int oldCount = 0;
+		int oldLength = 0;
+		// previous chunks [0, head) and [tail, oldCount) are still valid
+		int head = 0;
+		int tail = 0;
+		if(previous != null){
+			oldCount = previous._chunks.length;
+			oldLength = previous._chunkStarts[oldCount];
+			head = previous.findChunk(Math.min(changeStart, oldLength));
+			tail = previous.findChunk(Math.max(oldLength - unchangedEnd, 0));
+			if(previous._chunkStarts[tail] < oldLength - unchangedEnd){
+				++tail;
+			}
+			tail = Math.max(tail, head);
+
+			// rebuild small neighbouring chunks too, so that repeated edits
+			// at the same place do not fragment the text
+			if(head > 0 && previous.chunkLength(head - 1) < CHUNK_SIZE / 2){
+				--head;
+			}
+			if(tail < oldCount && previous.chunkLength(tail) < CHUNK_SIZE / 2){
+				++tail;
+			}
+		}
+
+		int copyStart = (previous != null) ? previous._chunkStarts[head] : 0;
+		int copyEnd = (previous != null)
+				? previous._chunkStarts[tail] + length - oldLength
+				: length;
+		int copiedCount = (copyEnd - copyStart + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		int count = head + copiedCount + (oldCount - tail);
+
+		_chunks = new char[count][];
+		_chunkStarts = new int[count + 1];
+		_newlinesBefore = new int[count + 1];
+		if(previous != null){
+			System.arraycopy(previous._chunks, 0, _chunks, 0, head);
+			System.arraycopy(previous._chunkStarts, 0, _chunkStarts, 0, head + 1);
+			System.arraycopy(previous._newlinesBefore, 0, _newlinesBefore, 0, head + 1);
+		}
+
+		int i = head;
+		for(int start = copyStart; start < copyEnd; start += CHUNK_SIZE){
+			char[] chunk = new char[Math.min(CHUNK_SIZE, copyEnd - start)];
+			text.getChars(start, start + chunk.length, chunk, 0);
+			_chunks[i] = chunk;
+			_chunkStarts[i + 1] = start + chunk.length;
+			_newlinesBefore[i + 1] = _newlinesBefore[i] + countNewlines(chunk);
+			++i;
+		}
+
+		if(previous != null){
+			int lengthChange = length - oldLength;
+			int newlineChange = _newlinesBefore[i] - previous._newlinesBefore[tail];
+			for(int j = tail; j < oldCount; ++j){
+				_chunks[i] = previous._chunks[j];
+				_chunkStarts[i + 1] = previous._chunkStarts[j + 1] + lengthChange;
+				_newlinesBefore[i + 1] = previous._newlinesBefore[j + 1] + newlineChange;
+				++i;
+			}
+		}
+
+		_lineCount = _newlinesBefore[count] + 1;
+		TextWarriorException.assertVerbose(_chunkStarts[count] == length
+				&& _lineCount == text.getLineCount(),
+				"TextSnapshot does not match the text it was taken from");
+	}
+
+	private static int countNewlines(char[] chunk){
+		int newlines = 0;
+		for(int i = 0; i < chunk.length; ++i){
+			if(chunk[i] == LanguageCFamily.NEWLINE){
+				++newlines;
+			}
+		}
+		return newlines;
+	}
+
+	private int chunkLength(int chunkIndex){
+		return _chunkStarts[chunkIndex + 1] - _chunkStarts[chunkIndex];
+	}
+
+	/**
+	 * Returns the index of the chunk containing charOffset, or the number of
+	 * chunks if charOffset is the text length
+	 */
+	private int findChunk(int charOffset){
+		int hot = _hotChunk;
+		if(hot < _chunks.length && charOffset >= _chunkStarts[hot]
+				&& charOffset < _chunkStarts[hot + 1]){
+			return hot;
+		}
+
+		// find the last chunk that starts at or before charOffset
+		int low = 0;
+		int high = _chunks.length;
+		while(low < high){
+			int mid = (low + high + 1) >>> 1;
+			if(_chunkStarts[mid] <= charOffset){
+				low = mid;
+			}
+			else{
+				high = mid - 1;
+			}
+		}
+
+		if(low < _chunks.length){
+			_hotChunk = low;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the index of the chunk containing the n-th newline (1-based)
+	 */
+	private int findChunkOfNewline(int n){
+		int low = 0;
+		int high = _chunks.length - 1;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(_newlinesBefore[mid + 1] < n){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Finds the range of text that differs between older and this snapshot.
+	 * 
+	 * Chunks shared with older are skipped without comparing their chars,
+	 * so this is fast if this snapshot was taken from the same TextBuffer
+	 * after older. Otherwise, the chars are compared one by one.
+	 * 
+	 * @return Pair.first is the offset of the first char that differs, and
+	 * 		Pair.second is the number of chars at the end of the text that are
+	 * 		the same in both snapshots. The two ranges do not overlap in either
+	 * 		snapshot.
+	 */
+	public Pair changesSince(TextSnapshot older){
+		int oldLength = older.getTextLength();
+		int length = getTextLength();
+		int maxUnchanged = Math.min(oldLength, length);
+
+		int i = 0;
+		while(i < _chunks.length && i < older._chunks.length
+				&& _chunks[i] == older._chunks[i]
+				&& _chunkStarts[i] == older._chunkStarts[i]){
+			++i;
+		}
+		int changeStart = Math.min(_chunkStarts[i], maxUnchanged);
+		while(changeStart < maxUnchanged
+				&& charAt(changeStart) == older.charAt(changeStart)){
+			++changeStart;
+		}
+
+		int j = _chunks.length - 1;
+		int oldJ = older._chunks.length - 1;
+		while(j >= 0 && oldJ >= 0
+				&& _chunks[j] == older._chunks[oldJ]
+				&& length - _chunkStarts[j] == oldLength - older._chunkStarts[oldJ]){
+			--j;
+			--oldJ;
+		}
+		maxUnchanged -= changeStart;
+		int unchangedEnd = Math.min(length - _chunkStarts[j + 1], maxUnchanged);
+		while(unchangedEnd < maxUnchanged
+				&& charAt(length - unchangedEnd - 1)
+					== older.charAt(oldLength - unchangedEnd - 1)){
+			++unchangedEnd;
+		}
+
+		return new Pair(changeStart, unchangedEnd);
+	}
+
+	@Override
+	public long getVersion(){
+		return _version;
+	}
+
+	/**
+	 * Returns this, since a snapshot never changes
+	 */
+	@Override
+	public TextSnapshot snapshot(){
+		return this;
+	}
+
+	@Override
+	public int getTextLength(){
+		return _chunkStarts[_chunks.length];
+	}
+
+	@Override
+	public char charAt(int charOffset){
+		int i = findChunk(charOffset);
+		return _chunks[i][charOffset - _chunkStarts[i]];
+	}
+
+	@Override
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		if(srcBegin < 0 || srcEnd > getTextLength() || srcBegin > srcEnd){
+			TextWarriorException.assertVerbose(false,
+					"Invalid range given to TextSnapshot.getChars");
+			return;
+		}
+
+		int offset = srcBegin;
+		int i = findChunk(srcBegin);
+		while(offset < srcEnd){
+			int count = Math.min(srcEnd, _chunkStarts[i + 1]) - offset;
+			System.arraycopy(_chunks[i], offset - _chunkStarts[i],
+					dst, dstBegin + offset - srcBegin, count);
+			offset += count;
+			++i;
+		}
+	}
+
+	@Override
+	public void getSegment(int charOffset, Segment seg){
+		if(charOffset < 0 || charOffset >= getTextLength()){
+			TextWarriorException.assertVerbose(false,
+					"Invalid charOffset given to TextSnapshot");
+			seg.set(EOF_ONLY, 0, 0, charOffset);
+			return;
+		}
+
+		int i = findChunk(charOffset);
+		seg.set(_chunks[i], charOffset - _chunkStarts[i], _chunks[i].length,
+				charOffset);
+	}
+
+	@Override
+	public int getCharOffset(int targetLine){
+		if(targetLine < 0 || targetLine >= _lineCount){
+			return -1;
+		}
+		if(targetLine == 0){
+			return 0;
+		}
+
+		// the line starts after the targetLine-th newline
+		int i = findChunkOfNewline(targetLine);
+		int newlinesLeft = targetLine - _newlinesBefore[i];
+		char[] chunk = _chunks[i];
+		for(int j = 0; j < chunk.length; ++j){
+			if(chunk[j] == LanguageCFamily.NEWLINE && --newlinesLeft == 0){
+				return _chunkStarts[i] + j + 1;
+			}
+		}
+
+		TextWarriorException.assertVerbose(false,
+			"getCharOffset: Line count does not match the newlines in the text");
+		return -1;
+	}
+
+	@Override
+	public int getLineIndex(int charOffset){
+		if(charOffset < 0 || charOffset >= getTextLength()){
+			TextWarriorException.assertVerbose(false,
+					"Invalid charOffset given to TextSnapshot");
+			return -1;
+		}
+
+		int i = findChunk(charOffset);
+		int line = _newlinesBefore[i];
+		char[] chunk = _chunks[i];
+		for(int j = charOffset - _chunkStarts[i] - 1; j >= 0; --j){
+			if(chunk[j] == LanguageCFamily.NEWLINE){
+				++line;
+			}
+		}
+		return line;
+	}
+
+	@Override
+	public int getLineLength(int targetLine){
+		int lineStart = getCharOffset(targetLine);
+		if(lineStart == -1){
+			return 0;
+		}
+
+		int nextLineStart = (targetLine + 1 < _lineCount)
+				? getCharOffset(targetLine + 1)
+				: getTextLength();
+		return nextLineStart - lineStart;
+	}
+
+
+	//---------------------------------------------------------------------
+	//----------------- Modifications are not supported -------------------
+
+	@Override
+	public void setBuffer(char[] newBuffer, String encoding,
+			String EOLstyle, int textSize, int lineCount){
+		TextWarriorException.assertVerbose(false, "TextSnapshot is read-only");
+	}
+
+	@Override
+	public void insert(char[] c, int charOffset, long timestamp){
+		TextWarriorException.assertVerbose(false, "TextSnapshot is read-only");
+	}
+
+	@Override
+	public void delete(int charOffset, int maxChars, long timestamp){
+		TextWarriorException.assertVerbose(false, "TextSnapshot is read-only");
+	}
+
+	@Override
+	void realInsert(char[] c, int charOffset){
+		TextWarriorException.assertVerbose(false, "TextSnapshot is read-only");
+	}
+
+	@Override
+	void realDelete(int charOffset, int maxChars){
+		TextWarriorException.assertVerbose(false, "TextSnapshot is read-only");
+	}
+
+	@Override
+	void shiftGapStart(int displacement){
+		TextWarriorException.assertVerbose(false, "TextSnapshot is read-only");
+	}
+
+	@Override
+	public void compact(){
+		// nothing to release
+	}
+
+	/**
+	 * Does nothing, since lines are looked up from the chunks
+	 */
+	@Override
+	public void setLineCacheSize(int lineCount){
+		// no line cache
+	}
+
+	@Override
+	public long getLineCacheHits(){
+		return 0;
+	}
+
+	@Override
+	public long getLineCacheMisses(){
+		return 0;
+	}
+
+	@Override
+	public boolean isBatchEdit(){
+		return false;
+	}
+
+	@Override
+	public void beginBatchEdit(){
+		TextWarriorException.assertVerbose(false, "TextSnapshot is read-only");
+	}
+
+	@Override
+	public void endBatchEdit(){
+		TextWarriorException.assertVerbose(false, "TextSnapshot is read-only");
+	}
+
+	@Override
+	public boolean canUndo(){
+		return false;
+	}
+
+	@Override
+	public boolean canRedo(){
+		return false;
+	}
+
+	@Override
+	public int undo(){
+		return -1;
+	}
+
+	@Override
+	public int redo(){
+		return -1;
+	}
+}
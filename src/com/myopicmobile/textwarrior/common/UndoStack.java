@@ -130,12 +130,16 @@ public class UndoStack {
 		if(canUndo()){
 			Command c = _stack.get(_top - 1);
 			
-			if(c instanceof InsertCommand
-					&& c.merge(start, length, time)){
-				mergeSuccess = true;
-			}
-			else{
-				c.recordData();
+			// a command that was undone and redone already has its data, and
+			// the text it refers to may no longer be in the gap
+			if(c._data == null){
+				if(c instanceof InsertCommand
+						&& c.merge(start, length, time)){
+					mergeSuccess = true;
+				}
+				else{
+					c.recordData();
+				}
 			}
 		}
 		
@@ -160,12 +164,16 @@ public class UndoStack {
 		if(canUndo()){
 			Command c = _stack.get(_top - 1);
 			
-			if(c instanceof DeleteCommand
-					&& c.merge(start, length, time)){
-				mergeSuccess = true;
-			}
-			else{
-				c.recordData();
+			// a command that was undone and redone already has its data, and
+			// the text it refers to may no longer be in the gap
+			if(c._data == null){
+				if(c instanceof DeleteCommand
+						&& c.merge(start, length, time)){
+					mergeSuccess = true;
+				}
+				else{
+					c.recordData();
+				}
 			}
 		}
 		
@@ -180,6 +188,20 @@ public class UndoStack {
 		_lastEditTime = time;
 	}
 	
+	/**
+	 * Copies the affected text of the topmost entry, if it has not been
+	 * copied yet. TextBuffer calls this before discarding the contents of
+	 * its gap.
+	 */
+	void recordPendingData(){
+		if(canUndo()){
+			Command c = _stack.get(_top - 1);
+			if(c._data == null){
+				c.recordData();
+			}
+		}
+	}
+	
 	private void push(Command c){
 		trimStack();
 		++_top;
@@ -222,7 +244,7 @@ public class UndoStack {
 		/** Length of the affected segment */
 		public int _length;
 		/** Contents of the affected segment */
-		public String _data;
+		public char[] _data;
 		/** Group ID. Commands of the same group are undone/redone as a unit */
 		public int _group;
 		
@@ -279,7 +301,7 @@ public class UndoStack {
 		@Override
 		public void recordData() {
 			//TODO handle memory allocation failure
-			_data = new String(_buf.subSequence(_start, _length));
+			_data = _buf.subSequence(_start, _length);
 		}
 
 		@Override
@@ -295,7 +317,7 @@ public class UndoStack {
 
 		@Override
 		public void redo() {
-			_buf.realInsert(_data.toCharArray(), _start);
+			_buf.realInsert(_data, _start);
 		}
 
 		@Override
@@ -328,7 +350,7 @@ public class UndoStack {
 			}
 			
 			if((time - _lastEditTime) < MERGE_TIME
-					&& newStart == _start - _length - length + 1){
+					&& newStart + length == _start){
 				_start = newStart;
 				_length += length;
 				trimStack();
@@ -341,7 +363,7 @@ public class UndoStack {
 		@Override
 		public void recordData() {
 			//TODO handle memory allocation failure
-			_data = new String(_buf.gapSubSequence(_length));
+			_data = _buf.gapSubSequence(_length);
 		}
 
 		@Override
@@ -351,7 +373,7 @@ public class UndoStack {
 				_buf.shiftGapStart(_length);
 			}
 			else{
-				_buf.realInsert(_data.toCharArray(), _start);
+				_buf.realInsert(_data, _start);
 			}
 		}
 
@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.common;
+
+import java.util.Arrays;
+
+/**
+ * Where the rows of a text are broken into visual rows by word wrap.
+ *
+ * A row is broken before the first word that does not fit within the wrap
+ * width, or mid-word if the word alone is wider than that. For each row,
+ * the index stores the offsets from the row start at which its second and
+ * later visual rows start.
+ *
+ * The rows are divided into consecutive chunks of about CHUNK_ROWS rows.
+ * The number of rows and visual rows in each chunk are kept in two Fenwick
+ * trees, so mapping between rows and visual rows is a logarithmic search
+ * followed by a scan of at most one chunk.
+ *
+ * When the text changes, sync() measures only the rows that were edited,
+ * and rows inserted or removed only change the chunks they are in. Chunks
+ * that grow too big are split, and chunks that shrink too small are merged
+ * once there are enough of them, like in LineIndex.
+ * Building the index for a new width measures every row, and should be
+ * done off the UI thread for big texts.
+ */
+public class WrapIndex{
+	/** Interface for measuring the advance of chars in pixels */
+	public interface Measurer{
+		public int getAdvance(char c);
+	}
+
+	/** Number of rows measured between checks for an abort when building */
+	public final static int ROWS_PER_CHUNK = 256;
+
+	private final static int CHUNK_ROWS = 128;
+	/** Chunks that grow beyond this many rows are split */
+	private final static int MAX_CHUNK_ROWS = 2 * CHUNK_ROWS;
+
+	/** The text the index describes */
+	private DocumentProvider _text;
+	private final int _width;
+	private int _rowCount;
+	private int _chunkCount;
+	/**
+	 * For each row of each chunk, the offsets from the row start of its
+	 * visual rows after the first, or null if the row fits on one visual row
+	 */
+	private int[][][] _rows;
+	private int[] _visualRows;
+	/** Fenwick trees over the row counts and _visualRows. Index 0 is unused */
+	private int[] _rowTree;
+	private int[] _visualTree;
+
+	/** Results of the last call to findChunk() */
+	private int _foundRows, _foundVisualRows;
+
+	private WrapIndex(DocumentProvider text, int width){
+		_text = text;
+		_width = width;
+	}
+
+	/**
+	 * Breaks every row of text into visual rows no wider than width.
+	 *
+	 * @param text A snapshot of the text to wrap
+	 * @param abort Checked every ROWS_PER_CHUNK rows, or null if building
+	 * 		cannot be aborted
+	 * @return The index, or null if it was aborted
+	 */
+	public static WrapIndex build(DocumentProvider text, int width,
+			Measurer measurer, Flag abort){
+		WrapIndex index = new WrapIndex(text, width);
+		int[][] rows = index.measureRows(text, 0, text.rowCount(),
+				measurer, abort);
+		if(rows == null){
+			return null;
+		}
+		index.setRows(rows);
+		return index;
+	}
+
+	public int getWidth(){
+		return _width;
+	}
+
+	/**
+	 * Re-measures the rows of doc changed since the last call
+	 *
+	 * @return true if the visual rows changed
+	 */
+	public boolean sync(DocumentProvider doc, Measurer measurer){
+		if(_text.getVersion() == doc.getVersion()){
+			return false;
+		}
+
+		DocumentProvider text = doc.snapshot();
+		Pair change = text.changesSince(_text);
+		int changeStart = change.getFirst();
+		int oldLength = _text.docLength();
+		int length = text.docLength();
+		int oldChangeEnd = Math.max(changeStart, oldLength - change.getSecond());
+		int changeEnd = Math.max(changeStart, length - change.getSecond());
+
+		// the rows with changed chars, up to and including the row of the
+		// first unchanged char after the change
+		int firstRow = text.getRowIndex(Math.min(changeStart, length - 1));
+		int oldLastRow = _text.getRowIndex(Math.min(oldChangeEnd, oldLength - 1));
+		int lastRow = text.getRowIndex(Math.min(changeEnd, length - 1));
+		int[][] changed = measureRows(text, firstRow, lastRow - firstRow + 1,
+				measurer, null);
+		replaceRows(firstRow, oldLastRow - firstRow + 1, changed);
+
+		_text = text;
+		return true;
+	}
+
+	/**
+	 * Measures count rows from firstRow, in a single pass over the text
+	 *
+	 * @return The breaks of each row, or null if aborted
+	 */
+	private int[][] measureRows(DocumentProvider text, int firstRow, int count,
+			Measurer measurer, Flag abort){
+		int[][] rows = new int[count][];
+		int[] breaks = new int[4];
+		int breakCount = 0;
+		int row = 0;
+		int offset = 0; // from the row start
+		int visualStart = 0;
+		int x = 0;
+		// start of the word after the last space or tab, and its advance
+		int wordStart = -1;
+		int wordX = 0;
+
+		Segment segment = new Segment();
+		text.seekLine(firstRow);
+		while(row < count && text.nextSegment(segment)){
+			char[] chars = segment.array;
+			for(int i = segment.start; i < segment.end && row < count; ++i){
+				char c = chars[i];
+				if(c == LanguageCFamily.NEWLINE || c == LanguageCFamily.EOF){
+					// the end of a row may hang past the width
+					if(breakCount > 0){
+						rows[row] = Arrays.copyOf(breaks, breakCount);
+					}
+					++row;
+					if(abort != null && row % ROWS_PER_CHUNK == 0 && abort.isSet()){
+						return null;
+					}
+					breakCount = 0;
+					offset = 0;
+					visualStart = 0;
+					x = 0;
+					wordStart = -1;
+					wordX = 0;
+					continue;
+				}
+
+				int advance = measurer.getAdvance(c);
+				boolean isSpace = (c == ' ' || c == LanguageCFamily.TAB);
+				// like the end of a row, spaces may hang past the width
+				if(x + advance > _width && offset > visualStart && !isSpace){
+					if(wordStart > visualStart){
+						// move the word to the next visual row
+						visualStart = wordStart;
+						x = wordX;
+					}
+					else{
+						visualStart = offset;
+						x = 0;
+					}
+					if(breakCount == breaks.length){
+						breaks = Arrays.copyOf(breaks, breakCount * 2);
+					}
+					breaks[breakCount++] = visualStart;
+				}
+
+				x += advance;
+				if(isSpace){
+					wordStart = offset + 1;
+					wordX = 0;
+				}
+				else{
+					wordX += advance;
+				}
+				++offset;
+			}
+		}
+		return rows;
+	}
+
+	private static int visualRowCount(int[] breaks){
+		return (breaks == null) ? 1 : breaks.length + 1;
+	}
+
+	/**
+	 * Replaces count rows from firstRow with rows.
+	 * Only the chunks holding the replaced rows are changed.
+	 */
+	private void replaceRows(int firstRow, int count, int[][] rows){
+		int chunk = findChunk(firstRow);
+		int offset = firstRow - _foundRows;
+		int[][] old = _rows[chunk];
+		int removed = Math.min(count, old.length - offset);
+
+		int[][] merged = new int[old.length - removed + rows.length][];
+		System.arraycopy(old, 0, merged, 0, offset);
+		System.arraycopy(rows, 0, merged, offset, rows.length);
+		System.arraycopy(old, offset + removed, merged, offset + rows.length,
+				old.length - offset - removed);
+		setChunk(chunk, merged);
+
+		// the rest of the replaced rows start the chunks after it
+		for(int next = chunk + 1; removed < count; ++next){
+			int[][] nextRows = _rows[next];
+			int n = Math.min(count - removed, nextRows.length);
+			setChunk(next, Arrays.copyOfRange(nextRows, n, nextRows.length));
+			removed += n;
+		}
+
+		if(merged.length > MAX_CHUNK_ROWS){
+			splitChunk(chunk);
+		}
+		else if(_chunkCount > 4 * (_rowCount / CHUNK_ROWS) + 16){
+			mergeChunks();
+		}
+	}
+
+	/**
+	 * Finds the chunk containing row, skipping empty chunks.
+	 * Sets _foundRows and _foundVisualRows to the number of rows and
+	 * visual rows before it. If row is rowCount(), returns _chunkCount.
+	 */
+	private int findChunk(int row){
+		int chunk = 0;
+		int rowsLeft = row;
+		int visualRows = 0;
+		for(int step = Integer.highestOneBit(_chunkCount); step > 0; step >>= 1){
+			int next = chunk + step;
+			if(next <= _chunkCount && _rowTree[next] <= rowsLeft){
+				chunk = next;
+				rowsLeft -= _rowTree[next];
+				visualRows += _visualTree[next];
+			}
+		}
+		_foundRows = row - rowsLeft;
+		_foundVisualRows = visualRows;
+		return chunk;
+	}
+
+	/**
+	 * Replaces the rows of chunk, updating the Fenwick trees by the change
+	 * in its row and visual row counts
+	 */
+	private void setChunk(int chunk, int[][] rows){
+		int rowDelta = rows.length - _rows[chunk].length;
+		int visualRows = 0;
+		for(int[] breaks : rows){
+			visualRows += visualRowCount(breaks);
+		}
+		int visualDelta = visualRows - _visualRows[chunk];
+
+		_rows[chunk] = rows;
+		_visualRows[chunk] = visualRows;
+		_rowCount += rowDelta;
+		for(int i = chunk + 1; i <= _chunkCount; i += i & -i){
+			_rowTree[i] += rowDelta;
+			_visualTree[i] += visualDelta;
+		}
+	}
+
+	/**
+	 * Replaces chunk with chunks of CHUNK_ROWS rows
+	 */
+	private void splitChunk(int chunk){
+		int[][] rows = _rows[chunk];
+		int pieces = (rows.length + CHUNK_ROWS - 1) / CHUNK_ROWS;
+		int count = _chunkCount + pieces - 1;
+		int[][][] chunks = new int[count][][];
+		System.arraycopy(_rows, 0, chunks, 0, chunk);
+		for(int i = 0; i < pieces; ++i){
+			chunks[chunk + i] = Arrays.copyOfRange(rows, i * CHUNK_ROWS,
+					Math.min((i + 1) * CHUNK_ROWS, rows.length));
+		}
+		System.arraycopy(_rows, chunk + 1, chunks, chunk + pieces,
+				_chunkCount - chunk - 1);
+		setChunks(chunks, count);
+	}
+
+	/**
+	 * Merges runs of adjacent chunks that fit in CHUNK_ROWS rows together
+	 */
+	private void mergeChunks(){
+		int count = 0;
+		for(int i = 0; i < _chunkCount; ++i){
+			int[][] rows = _rows[i];
+			if(count > 0 && _rows[count - 1].length + rows.length <= CHUNK_ROWS){
+				int[][] last = _rows[count - 1];
+				int[][] merged = Arrays.copyOf(last, last.length + rows.length);
+				System.arraycopy(rows, 0, merged, last.length, rows.length);
+				_rows[count - 1] = merged;
+			}
+			else{
+				_rows[count++] = rows;
+			}
+		}
+		Arrays.fill(_rows, count, _chunkCount, null);
+		setChunks(_rows, count);
+	}
+
+	/**
+	 * Divides rows into chunks of CHUNK_ROWS rows
+	 */
+	private void setRows(int[][] rows){
+		int count = Math.max((rows.length + CHUNK_ROWS - 1) / CHUNK_ROWS, 1);
+		int[][][] chunks = new int[count][][];
+		for(int i = 0; i < count; ++i){
+			chunks[i] = Arrays.copyOfRange(rows, Math.min(i * CHUNK_ROWS, rows.length),
+					Math.min((i + 1) * CHUNK_ROWS, rows.length));
+		}
+		setChunks(chunks, count);
+	}
+
+	/**
+	 * Uses the first count entries of chunks as the chunks, and builds
+	 * the Fenwick trees over them in linear time
+	 */
+	private void setChunks(int[][][] chunks, int count){
+		_rows = chunks;
+		_visualRows = new int[chunks.length];
+		_chunkCount = count;
+		_rowCount = 0;
+		_rowTree = new int[count + 1];
+		_visualTree = new int[count + 1];
+		for(int i = 1; i <= count; ++i){
+			int[][] rows = chunks[i - 1];
+			int visualRows = 0;
+			for(int[] breaks : rows){
+				visualRows += visualRowCount(breaks);
+			}
+			_visualRows[i - 1] = visualRows;
+			_rowCount += rows.length;
+			_rowTree[i] += rows.length;
+			_visualTree[i] += visualRows;
+			int parent = i + (i & -i);
+			if(parent <= count){
+				_rowTree[parent] += _rowTree[i];
+				_visualTree[parent] += _visualTree[i];
+			}
+		}
+	}
+
+	public int rowCount(){
+		return _rowCount;
+	}
+
+	/**
+	 * Returns the number of visual rows before row. If row is rowCount(),
+	 * this is the total number of visual rows.
+	 */
+	public int getFirstVisualRow(int row){
+		int chunk = findChunk(row);
+		int visualRow = _foundVisualRows;
+		for(int i = _foundRows; i < row; ++i){
+			visualRow += visualRowCount(_rows[chunk][i - _foundRows]);
+		}
+		return visualRow;
+	}
+
+	public int visualRowCount(){
+		return getFirstVisualRow(_rowCount);
+	}
+
+	/**
+	 * Returns the row that visualRow is part of, or rowCount() if visualRow
+	 * is past the end of the text
+	 */
+	public int getRowOfVisualRow(int visualRow){
+		int chunk = 0;
+		int row = 0;
+		int remaining = visualRow;
+		for(int step = Integer.highestOneBit(_chunkCount); step > 0; step >>= 1){
+			int next = chunk + step;
+			if(next <= _chunkCount && _visualTree[next] <= remaining){
+				chunk = next;
+				row += _rowTree[next];
+				remaining -= _visualTree[next];
+			}
+		}
+		if(chunk == _chunkCount){
+			return _rowCount;
+		}
+
+		for(int[] breaks : _rows[chunk]){
+			remaining -= visualRowCount(breaks);
+			if(remaining < 0){
+				break;
+			}
+			++row;
+		}
+		return row;
+	}
+
+	public int getVisualRowCount(int row){
+		return visualRowCount(getBreaks(row));
+	}
+
+	/**
+	 * Returns the offsets from the start of row at which its visual rows
+	 * after the first start, or null if the row is not wrapped.
+	 * The returned array must not be modified.
+	 */
+	public int[] getBreaks(int row){
+		int chunk = findChunk(row);
+		return _rows[chunk][row - _foundRows];
+	}
+
+	/**
+	 * Returns which of the visual rows of row, counting from 0, the char
+	 * offsetInRow chars from the row start is on
+	 */
+	public int getPart(int row, int offsetInRow){
+		int[] breaks = getBreaks(row);
+		if(breaks == null){
+			return 0;
+		}
+		int low = 0;
+		int high = breaks.length;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(breaks[mid] <= offsetInRow){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
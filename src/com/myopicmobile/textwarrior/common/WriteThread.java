@@ -21,7 +21,8 @@ public class WriteThread extends FileIOThread{
 	public WriteThread(File file, DocumentProvider hDoc,
 	String encoding, String EOLchar){
 		super(file, encoding, EOLchar);
-		_hDoc = hDoc;
+		// write an immutable copy, so that editing can go on meanwhile
+		_hDoc = hDoc.snapshot();
 		_totalChar = _hDoc.docLength();
 		TextWarriorException.assertVerbose(_totalChar > 0,
 				 "File to save must have at least 1 char");
@@ -69,6 +70,15 @@ public class WriteThread extends FileIOThread{
 		}
 	}
 
+	/**
+	 * Returns the version of the document that is written.
+	 * If the document has a different version now, it was edited after the
+	 * write started, and the edits are not in the file.
+	 */
+	public long getVersion(){
+		return _hDoc.getVersion();
+	}
+
 	@Override
 	public int getMax(){
 		return MAX_PROGRESS;
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2011 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.myopicmobile.textwarrior.tools;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+
+import com.myopicmobile.textwarrior.common.GrammarCompiler;
+import com.myopicmobile.textwarrior.common.LanguageDefinition;
+
+/**
+ * Command line front end of GrammarCompiler, run on the desktop ahead of
+ * time. It is kept out of src so that it is not built into the library.
+ * Compile it together with src, then run it as in
+ * java com.myopicmobile.textwarrior.tools.CompileGrammar grammars/go.grammar ../assets/grammars/go.tlg
+ */
+public class CompileGrammar{
+	public static void main(String[] args)
+	throws IOException{
+		if(args.length != 2){
+			System.err.println("Usage: CompileGrammar <description> <compiled grammar>");
+			System.exit(1);
+		}
+
+		LanguageDefinition language;
+		Reader in = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+		try{
+			language = GrammarCompiler.compile(in);
+		}
+		finally{
+			in.close();
+		}
+
+		OutputStream out = new FileOutputStream(args[1]);
+		try{
+			language.write(out);
+		}
+		finally{
+			out.close();
+		}
+	}
+}